@@ -0,0 +1,574 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Deterministic CBOR encoding of feature collections.
+ *
+ * The ordinary Jackson serialization writes maps in
+ * {@link java.util.HashMap} iteration order with indefinite-length
+ * containers, so two equal collections may serialize to different
+ * bytes.  This encoder follows the canonical CBOR rules of RFC 7049
+ * section 3.9: every container has a definite length, every integer
+ * and length uses its shortest form, and map keys are sorted
+ * shortest first, then bytewise.  Equal collections therefore always
+ * produce identical bytes, which can be hashed or compared without
+ * decoding.  The output is ordinary fc01 data and is readable by all
+ * existing readers.
+ *
+ * Floating-point values (in {@link GeoCoords} and
+ * {@link SparseVector}) are written as 64-bit floats, except that
+ * whole-number sparse vector values are written as integers, as the
+ * vector's own serializer does.  A NaN geo coordinate component is
+ * written as null, its "unknown" marker; a NaN vector value is the
+ * half-precision NaN <tt>0xf97e00</tt>.  Feature types this class does not
+ * know about are encoded with the supplied {@link ObjectMapper};
+ * their bytes are embedded as-is and are only as deterministic as
+ * their serializer.
+ *
+ * Optionally, repeated strings within a record can be written as
+ * CBOR string references, which makes the output smaller but no
+ * longer plain fc01; see {@link #CanonicalCbor(ObjectMapper, boolean)}.
+ * A {@link Namespace} rewrites canonical records so that references
+ * also reach back into earlier records, which is where most of the
+ * repetition in a chunk is.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class CanonicalCbor {
+    private final ObjectMapper mapper;
+    private final boolean stringRefs;
+    private final boolean knownTypesOnly;
+
+    /**
+     * Create a canonical encoder.
+     *
+     * @param mapper  CBOR object mapper used for unknown feature types
+     */
+    public CanonicalCbor(ObjectMapper mapper) {
+        this(mapper, false);
+    }
+
+    /**
+     * Create a canonical encoder, optionally with string references.
+     *
+     * With string references, each record is a stringref namespace
+     * (tag 256), and a text string that already appeared in the
+     * record is written as a reference to it (tag 25 and its index).
+     * Such records can only be read by {@link ChunkReader}, and every
+     * feature must be of a type this class knows about.
+     *
+     * @param mapper      CBOR object mapper used for unknown feature
+     *                    types
+     * @param stringRefs  If true, write string references
+     */
+    public CanonicalCbor(ObjectMapper mapper, boolean stringRefs) {
+        this(mapper, stringRefs, stringRefs);
+    }
+
+    private CanonicalCbor(ObjectMapper mapper, boolean stringRefs,
+                          boolean knownTypesOnly) {
+        this.mapper = mapper;
+        this.stringRefs = stringRefs;
+        this.knownTypesOnly = knownTypesOnly;
+    }
+
+    /**
+     * Create an encoder of records for a {@link Namespace}.
+     *
+     * Its output has no references of its own, but, as with string
+     * references, every feature must be of a type this class knows
+     * about.
+     *
+     * @param mapper  CBOR object mapper
+     * @return        Encoder whose output {@link Namespace#rewrite}
+     *                accepts
+     */
+    static CanonicalCbor forNamespace(ObjectMapper mapper) {
+        return new CanonicalCbor(mapper, false, true);
+    }
+
+    /**
+     * Encode a feature collection.
+     *
+     * @param fc  Collection to encode
+     * @return    Canonical CBOR bytes
+     * @throws IOException  if an unknown feature type cannot be encoded
+     */
+    public byte[] encode(FeatureCollection fc) throws IOException {
+        Output out = new Output(stringRefs
+                                ? new HashMap<ByteBuffer, Integer>() : null);
+        encode(fc, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a feature collection to a stream.
+     *
+     * @param fc   Collection to encode
+     * @param os   Stream to write to; it is not closed or flushed
+     * @throws IOException  if writing fails
+     */
+    public void encode(FeatureCollection fc, OutputStream os)
+        throws IOException {
+        Output out = new Output(stringRefs
+                                ? new HashMap<ByteBuffer, Integer>() : null);
+        encode(fc, out);
+        os.write(out.buf, 0, out.len);
+    }
+
+    private void encode(FeatureCollection fc, Output out) throws IOException {
+        Map<String, Feature> features = fc.rawFeatures();
+        if (stringRefs) {
+            out.header(Cbor.MAJOR_TAG, Cbor.TAG_STRINGREF_NAMESPACE);
+        }
+        out.header(Cbor.MAJOR_ARRAY, 2);
+        // Metadata keys "v" and "ro" are already in canonical order
+        out.header(Cbor.MAJOR_MAP, fc.isReadOnly() ? 2 : 1);
+        out.text(utf8("v"));
+        out.text(utf8(FeatureCollection.Metadata.FC01_VERSION));
+        if (fc.isReadOnly()) {
+            out.text(utf8("ro"));
+            out.integer(1);
+        }
+
+        Entry<Feature>[] entries = sorted(features);
+        out.header(Cbor.MAJOR_MAP, entries.length);
+        for (Entry<Feature> e : entries) {
+            out.text(e.key);
+            encodeFeature(e.value, out);
+        }
+    }
+
+    private void encodeFeature(Feature f, Output out) throws IOException {
+        if (f instanceof StringFeature) {
+            String v = ((StringFeature)f).getValue();
+            if (v == null) {
+                out.simple(22);
+            } else {
+                out.text(utf8(v));
+            }
+        } else if (f instanceof StringCounter) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_STRING_COUNTER);
+            encodeCounter(((StringCounter)f).getStrings(), out);
+        } else if (f instanceof PrefixCounter) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_STRING_COUNTER);
+            encodeCounter(((PrefixCounter)f).toStringCounter().getStrings(),
+                          out);
+        } else if (f instanceof OffHeapStringCounter) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_STRING_COUNTER);
+            encodeOffHeap((OffHeapStringCounter)f, out);
+        } else if (f instanceof SparseVector) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_SPARSE_VECTOR);
+            encodeVector((SparseVector)f, out);
+        } else if (f instanceof FeatureTokens) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_FEATURE_TOKENS);
+            encodeTokens((FeatureTokens)f, out);
+        } else if (f instanceof GeoCoords) {
+            out.header(Cbor.MAJOR_TAG, FeatureCollection.CBOR_GEO_COORDS);
+            encodeCoords((GeoCoords)f, out);
+        } else if (knownTypesOnly) {
+            // The embedded strings would be numbered by readers but
+            // not by us
+            throw new IOException
+                ("cannot use string references with feature type " +
+                 f.getClass().getName());
+        } else {
+            out.raw(mapper.writeValueAsBytes(f));
+        }
+    }
+
+    private static void encodeCounter(Map<String, Integer> strings,
+                                      Output out) {
+        Entry<Integer>[] entries = sorted(strings);
+        out.header(Cbor.MAJOR_MAP, entries.length);
+        for (Entry<Integer> e : entries) {
+            out.text(e.key);
+            out.integer(e.value.intValue());
+        }
+    }
+
+    private static void encodeOffHeap(OffHeapStringCounter oh, Output out)
+        throws IOException {
+        final List<Entry<Integer>> list = new ArrayList<Entry<Integer>>();
+        oh.forEach(new OffHeapStringCounter.Visitor() {
+                public void visit(ByteBuffer utf8, int count) {
+                    byte[] key = new byte[utf8.remaining()];
+                    utf8.get(key);
+                    list.add(new Entry<Integer>(key, count));
+                }
+            });
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<Integer>[] entries = list.toArray(new Entry[list.size()]);
+        Arrays.sort(entries, KEY_ORDER);
+        out.header(Cbor.MAJOR_MAP, entries.length);
+        for (Entry<Integer> e : entries) {
+            out.text(e.key);
+            out.integer(e.value.intValue());
+        }
+    }
+
+    private static void encodeVector(SparseVector v, Output out) {
+        out.header(Cbor.MAJOR_ARRAY, 2L * v.size());
+        for (int i = 0; i < v.size(); i++) {
+            out.integer(v.getIndex(i));
+            double d = v.getValue(i);
+            if (SparseVector.isWhole(d)) {
+                out.integer((long)d);
+            } else {
+                out.real(d);
+            }
+        }
+    }
+
+    private static void encodeTokens(FeatureTokens ft, Output out) {
+        Entry<FeatureTokens.TokenSequences>[] entries =
+            sorted(ft.getTokens());
+        out.header(Cbor.MAJOR_MAP, entries.length);
+        for (Entry<FeatureTokens.TokenSequences> e : entries) {
+            out.text(e.key);
+            FeatureTokens.TokenSequences seqs = e.value;
+            out.header(Cbor.MAJOR_ARRAY, seqs.size());
+            for (int s = 0; s < seqs.size(); s++) {
+                out.header(Cbor.MAJOR_ARRAY, seqs.length(s));
+                for (int i = 0; i < seqs.length(s); i++) {
+                    out.header(Cbor.MAJOR_ARRAY, 3);
+                    out.text(utf8(seqs.getTaggerId(s, i)));
+                    out.integer(seqs.getSentenceId(s, i));
+                    out.integer(seqs.getTokenId(s, i));
+                }
+            }
+        }
+    }
+
+    private static void encodeCoords(GeoCoords geo, Output out) {
+        Entry<GeoCoords.Coordinates>[] entries = sorted(geo.getCoords());
+        out.header(Cbor.MAJOR_MAP, entries.length);
+        for (Entry<GeoCoords.Coordinates> e : entries) {
+            out.text(e.key);
+            GeoCoords.Coordinates c = e.value;
+            out.header(Cbor.MAJOR_ARRAY, c.size());
+            for (int i = 0; i < c.size(); i++) {
+                out.header(Cbor.MAJOR_ARRAY, 4);
+                out.component(c.getLongitude(i));
+                out.component(c.getLatitude(i));
+                out.component(c.getAltitude(i));
+                out.component(c.getTime(i));
+            }
+        }
+    }
+
+    /* Key ordering */
+
+    /**
+     * A string reference namespace shared by consecutive records.
+     *
+     * A record encoded by a per-record namespace repeats every
+     * feature name and every common term in full in each record.
+     * This rewrites canonical records, in order, so that a record
+     * opening the namespace is tagged 256, and every later record
+     * continues it untagged: any string numbered in an earlier record
+     * is written as a reference.  The records of one namespace can
+     * only be decoded in order from the one that opened it, which
+     * {@link CborDecoder} does.  The rewritten bytes are
+     * deterministic for a given sequence of records, but a record's
+     * bytes depend on the records before it.
+     *
+     * The numbered strings are kept until the next namespace is
+     * opened.  Instances are not thread-safe.
+     */
+    static final class Namespace {
+        private final Map<ByteBuffer, Integer> refs =
+            new HashMap<ByteBuffer, Integer>();
+        private byte[] in;
+        private int pos;
+        private int end;
+
+        /**
+         * Rewrite one record.
+         *
+         * @param record  Record from an encoder made by
+         *                {@link CanonicalCbor#forNamespace}
+         * @param open    If true, start a new namespace with this
+         *                record, forgetting all earlier strings
+         * @return        Record with string references
+         * @throws IOException  if the record is not well-formed
+         *                      CBOR, or already has references
+         */
+        byte[] rewrite(byte[] record, boolean open) throws IOException {
+            if (open) {
+                refs.clear();
+            }
+            Output out = new Output(refs);
+            if (open) {
+                out.header(Cbor.MAJOR_TAG, Cbor.TAG_STRINGREF_NAMESPACE);
+            }
+            in = record;
+            pos = 0;
+            end = record.length;
+            try {
+                item(out);
+                if (pos != end) {
+                    throw error("trailing bytes after record");
+                }
+            } finally {
+                in = null;
+            }
+            return out.toByteArray();
+        }
+
+        private void item(Output out) throws IOException {
+            int start = pos;
+            int initial = next();
+            int major = initial >> 5;
+            int info = initial & 0x1f;
+            if (info == 31) {
+                if (major == Cbor.MAJOR_SIMPLE) {
+                    throw error("unexpected break");
+                }
+                // Indefinite lengths are copied as they are, and
+                // chunked strings are never numbered
+                copy(out, start, pos);
+                while (peek() != 0xff) {
+                    if (major == Cbor.MAJOR_TEXT ||
+                        major == Cbor.MAJOR_BYTES) {
+                        int chunk = pos;
+                        int ci = next();
+                        if ((ci >> 5) != major || (ci & 0x1f) == 31) {
+                            throw error("invalid chunk in string");
+                        }
+                        skip(argument(major, ci & 0x1f));
+                        copy(out, chunk, pos);
+                    } else {
+                        item(out);
+                    }
+                }
+                pos++;
+                copy(out, pos - 1, pos);
+                return;
+            }
+            long arg = argument(major, info);
+            switch (major) {
+            case Cbor.MAJOR_TEXT:
+                out.text(Arrays.copyOfRange(in, pos, skip(arg)));
+                break;
+            case Cbor.MAJOR_BYTES:
+                copy(out, start, skip(arg));
+                break;
+            case Cbor.MAJOR_ARRAY:
+            case Cbor.MAJOR_MAP:
+                copy(out, start, pos);
+                long items = (major == Cbor.MAJOR_MAP) ? 2 * arg : arg;
+                for (long i = 0; i < items; i++) {
+                    item(out);
+                }
+                break;
+            case Cbor.MAJOR_TAG:
+                if (arg == Cbor.TAG_STRINGREF ||
+                    arg == Cbor.TAG_STRINGREF_NAMESPACE) {
+                    throw error("record already has string references");
+                }
+                copy(out, start, pos);
+                item(out);
+                break;
+            default:
+                copy(out, start, pos);
+                break;
+            }
+        }
+
+        private int peek() throws IOException {
+            if (pos >= end) {
+                throw error("record ends inside an item");
+            }
+            return in[pos] & 0xff;
+        }
+
+        private int next() throws IOException {
+            int b = peek();
+            pos++;
+            return b;
+        }
+
+        /** Read an argument; simple values and floats are not decoded */
+        private long argument(int major, int info) throws IOException {
+            if (info < 24) {
+                return info;
+            }
+            if (info > 27) {
+                throw error("invalid CBOR additional information " + info);
+            }
+            int bytes = 1 << (info - 24);
+            if (major == Cbor.MAJOR_SIMPLE) {
+                skip(bytes);
+                return 0;
+            }
+            long v = 0;
+            for (int i = 0; i < bytes; i++) {
+                v = (v << 8) | next();
+            }
+            if (v < 0) {
+                throw error("CBOR argument out of range");
+            }
+            return v;
+        }
+
+        private int skip(long n) throws IOException {
+            if (n > end - pos) {
+                throw error("record ends inside an item");
+            }
+            pos += (int)n;
+            return pos;
+        }
+
+        private void copy(Output out, int from, int to) {
+            out.ensure(to - from);
+            System.arraycopy(in, from, out.buf, out.len, to - from);
+            out.len += to - from;
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at byte " + pos);
+        }
+    }
+
+    private static class Entry<V> {
+        final byte[] key;
+        final V value;
+
+        Entry(byte[] key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /** Canonical key order: shorter keys first, then bytewise */
+    private static final Comparator<Entry<?>> KEY_ORDER =
+        new Comparator<Entry<?>>() {
+            public int compare(Entry<?> a, Entry<?> b) {
+                if (a.key.length != b.key.length) {
+                    return a.key.length - b.key.length;
+                }
+                return CsrExporter.compareUtf8(a.key, b.key);
+            }
+        };
+
+    private static <V> Entry<V>[] sorted(Map<String, V> map) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<V>[] entries = new Entry[map.size()];
+        int i = 0;
+        for (Map.Entry<String, V> e : map.entrySet()) {
+            entries[i++] = new Entry<V>(utf8(e.getKey()), e.getValue());
+        }
+        Arrays.sort(entries, KEY_ORDER);
+        return entries;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Growable output buffer */
+    private static class Output {
+        byte[] buf = new byte[256];
+        int len = 0;
+        /** Indexes of the numbered strings, if writing references */
+        final Map<ByteBuffer, Integer> refs;
+
+        Output(Map<ByteBuffer, Integer> refs) {
+            this.refs = refs;
+        }
+
+        void ensure(int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(len + n, 2 * buf.length));
+            }
+        }
+
+        void header(int major, long value) {
+            ensure(Cbor.MAX_HEADER);
+            len = Cbor.header(buf, len, major, value);
+        }
+
+        void integer(long value) {
+            ensure(Cbor.MAX_HEADER);
+            len = Cbor.integer(buf, len, value);
+        }
+
+        void text(byte[] utf8) {
+            if (refs != null) {
+                ByteBuffer key = ByteBuffer.wrap(utf8);
+                Integer index = refs.get(key);
+                if (index != null) {
+                    header(Cbor.MAJOR_TAG, Cbor.TAG_STRINGREF);
+                    integer(index.intValue());
+                    return;
+                }
+                if (utf8.length >= Cbor.stringRefMinLength(refs.size())) {
+                    refs.put(key, refs.size());
+                }
+            }
+            header(Cbor.MAJOR_TEXT, utf8.length);
+            raw(utf8);
+        }
+
+        void simple(int value) {
+            header(Cbor.MAJOR_SIMPLE, value);
+        }
+
+        /** A geo coordinate component, with NaN for "unknown" as null */
+        void component(double d) {
+            if (Double.isNaN(d)) {
+                simple(22);  // null
+                return;
+            }
+            real(d);
+        }
+
+        void real(double d) {
+            if (Double.isNaN(d)) {
+                // The one canonical NaN: half-precision 0x7e00
+                ensure(3);
+                buf[len++] = (byte)0xf9;
+                buf[len++] = (byte)0x7e;
+                buf[len++] = (byte)0x00;
+                return;
+            }
+            ensure(9);
+            buf[len++] = (byte)0xfb;
+            long bits = Double.doubleToLongBits(d);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[len++] = (byte)(bits >> shift);
+            }
+        }
+
+        void raw(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+/**
+ * Low-level CBOR encoding helpers.
+ *
+ * Most serialization goes through Jackson, but a few fast paths
+ * write raw CBOR item headers themselves.  These always use the
+ * shortest encoding for a value, as RFC 7049 section 3.9 recommends.
+ */
+final class Cbor {
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    /** Longest possible item header */
+    static final int MAX_HEADER = 9;
+
+    /** Tag of a reference to an earlier string in a namespace */
+    static final int TAG_STRINGREF = 25;
+    /** Tag of an item that starts a string reference namespace */
+    static final int TAG_STRINGREF_NAMESPACE = 256;
+
+    private Cbor() {
+    }
+
+    /**
+     * Encode an item header.
+     *
+     * @param dst    Destination buffer, with at least
+     *               {@link #MAX_HEADER} bytes free at <tt>off</tt>
+     * @param off    Offset to start writing at
+     * @param major  Major type, 0 through 7
+     * @param value  Unsigned argument (length, count, or value)
+     * @return       Offset just past the header
+     */
+    static int header(byte[] dst, int off, int major, long value) {
+        int mt = major << 5;
+        if (value < 0) {
+            throw new IllegalArgumentException("negative CBOR argument");
+        }
+        if (value < 24) {
+            dst[off++] = (byte)(mt | (int)value);
+        } else if (value < 0x100L) {
+            dst[off++] = (byte)(mt | 24);
+            dst[off++] = (byte)value;
+        } else if (value < 0x10000L) {
+            dst[off++] = (byte)(mt | 25);
+            dst[off++] = (byte)(value >> 8);
+            dst[off++] = (byte)value;
+        } else if (value < 0x100000000L) {
+            dst[off++] = (byte)(mt | 26);
+            dst[off++] = (byte)(value >> 24);
+            dst[off++] = (byte)(value >> 16);
+            dst[off++] = (byte)(value >> 8);
+            dst[off++] = (byte)value;
+        } else {
+            dst[off++] = (byte)(mt | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                dst[off++] = (byte)(value >> shift);
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Get the shortest string that is numbered in a namespace.
+     *
+     * Under the stringref convention, a string is assigned the next
+     * index in its namespace only if it is at least as long as a
+     * reference to that index would be, so that a reference is never
+     * longer than the string it replaces.
+     *
+     * @param index  Index the string would be assigned
+     * @return       Minimum length in bytes
+     */
+    static int stringRefMinLength(long index) {
+        if (index < 24) {
+            return 3;
+        } else if (index < 0x100L) {
+            return 4;
+        } else if (index < 0x10000L) {
+            return 5;
+        } else if (index < 0x100000000L) {
+            return 7;
+        } else {
+            return 11;
+        }
+    }
+
+    /**
+     * Encode a signed integer.
+     *
+     * @param dst    Destination buffer, with at least
+     *               {@link #MAX_HEADER} bytes free at <tt>off</tt>
+     * @param off    Offset to start writing at
+     * @param value  Integer to encode
+     * @return       Offset just past the encoded integer
+     */
+    static int integer(byte[] dst, int off, long value) {
+        if (value >= 0) {
+            return header(dst, off, MAJOR_UNSIGNED, value);
+        } else {
+            return header(dst, off, MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decoder of single fc01 records, with or without string references.
+ *
+ * Jackson's CBOR parser cannot read string references, which appear
+ * in places it only accepts text, such as map keys, so
+ * {@link ChunkReader} hands records that use them to this decoder.
+ * It reads one complete record from a byte array, accepting
+ * definite and indefinite lengths, so it also reads plain records.
+ *
+ * Inside a stringref namespace (tag 256), every text string long
+ * enough to be numbered is remembered in order, and a reference
+ * (tag 25) resolves to the very same {@link String} object, so a
+ * string repeated throughout a record is decoded from UTF-8 only
+ * once and shared by every use.  A namespace opened by a tagged
+ * record continues through the untagged records that follow it, as
+ * {@link CanonicalCbor.Namespace} writes them, until the next tagged
+ * record; records must therefore be decoded in order, starting from
+ * one that opens a namespace.  Feature types other than those in
+ * this package's format description are rejected.  Instances are
+ * not thread-safe.
+ */
+final class CborDecoder {
+    private static final int BREAK = 0xff;
+    private static final int NULL = 0xf6;
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+    /**
+     * Numbered strings of the current namespace, or null if no record
+     * has opened one
+     */
+    private List<String> refs;
+    private final List<String> table = new ArrayList<String>();
+    /** Names of counter features to decode off the heap */
+    private Set<String> offHeap = Collections.emptySet();
+
+    /**
+     * Decode some counter features into {@link OffHeapStringCounter}.
+     *
+     * @param names  Feature names, never <tt>null</tt>
+     */
+    void setOffHeapFeatures(Set<String> names) {
+        offHeap = names;
+    }
+
+    /**
+     * Check whether a record starts a stringref namespace.
+     *
+     * @param b    Buffer holding the start of a record
+     * @param off  Offset of the record
+     * @param len  Number of bytes available
+     * @return     <tt>true</tt> if the record is tagged 256
+     */
+    static boolean isStringRefNamespace(byte[] b, int off, int len) {
+        return len >= 3 && (b[off] & 0xff) == 0xd9 &&
+            b[off + 1] == 0x01 && b[off + 2] == 0x00;
+    }
+
+    /**
+     * Decode one record.
+     *
+     * A record that does not open a namespace continues the one the
+     * last decoded record was in, if any.
+     *
+     * @param b      Buffer holding exactly one record
+     * @param off    Offset of the record
+     * @param len    Length of the record
+     * @param fc     Collection to fill; it is emptied first
+     * @param spare  Features to recycle by name, or <tt>null</tt>
+     * @throws IOException  if the record is malformed
+     */
+    void decode(byte[] b, int off, int len, FeatureCollection fc,
+                Map<String, Feature> spare)
+        throws IOException {
+        buf = b;
+        pos = off;
+        end = off + len;
+        boolean ok = false;
+        try {
+            if (isStringRefNamespace(b, off, len)) {
+                pos += 3;
+                table.clear();
+                refs = table;
+            }
+            decodeRecord(fc, spare);
+            if (pos != end) {
+                throw error("trailing bytes after record");
+            }
+            ok = true;
+        } finally {
+            buf = null;
+            if (!ok) {
+                // Later references could resolve against a partial table
+                refs = null;
+                table.clear();
+            }
+        }
+    }
+
+    private void decodeRecord(FeatureCollection fc, Map<String, Feature> spare)
+        throws IOException {
+        fc.setReadOnly(false);
+        Map<String, Feature> features = fc.rawFeatures();
+        features.clear();
+        long n = container(Cbor.MAJOR_ARRAY, "expected an array");
+        if (n != 2 && n != -1) {
+            throw error("expected a two-element array");
+        }
+        boolean ro = decodeMetadata();
+        long count = container(Cbor.MAJOR_MAP, "missing content");
+        for (long i = 0; more(count, i); i++) {
+            String name = text();
+            Feature old = (spare == null) ? null : spare.remove(name);
+            if (old != null) {
+                old.setReadOnly(false);
+            }
+            features.put(name, decodeFeature(name, old));
+        }
+        if (n == -1 && !atBreak()) {
+            throw error("unexpected item after content");
+        }
+        fc.setReadOnly(ro);
+    }
+
+    private boolean decodeMetadata() throws IOException {
+        long count = container(Cbor.MAJOR_MAP, "missing metadata");
+        String version = null;
+        boolean ro = false;
+        for (long i = 0; more(count, i); i++) {
+            String key = text();
+            if (key.equals("v")) {
+                version = text();
+            } else if (key.equals("ro") &&
+                       (peek() >> 5) == Cbor.MAJOR_UNSIGNED &&
+                       integer() == 1) {
+                ro = true;
+            } else {
+                throw error("invalid metadata " + key);
+            }
+        }
+        if (version == null) {
+            throw error("missing metadata");
+        }
+        if (!version.equals(FeatureCollection.Metadata.FC01_VERSION)) {
+            throw error("invalid FC version " + version);
+        }
+        return ro;
+    }
+
+    /* Features */
+
+    private Feature decodeFeature(String name, Feature old)
+        throws IOException {
+        int initial = peek();
+        int major = initial >> 5;
+        if (major == Cbor.MAJOR_TEXT || initial == NULL ||
+            isRef(initial)) {
+            StringFeature sf = (old instanceof StringFeature)
+                ? (StringFeature)old : new StringFeature();
+            if (initial == NULL) {
+                pos++;
+                sf.setValue(null);
+            } else {
+                sf.setValue(text());
+            }
+            return sf;
+        }
+        if (major == Cbor.MAJOR_MAP) {
+            return offHeap.contains(name)
+                ? decodeOffHeap(old) : decodeCounter(old);
+        }
+        if (major != Cbor.MAJOR_TAG) {
+            throw error("unexpected CBOR major type " + major);
+        }
+        pos++;
+        long tag = argument(initial & 0x1f);
+        if (tag == FeatureCollection.CBOR_STRING_COUNTER) {
+            return offHeap.contains(name)
+                ? decodeOffHeap(old) : decodeCounter(old);
+        }
+        if (tag == FeatureCollection.CBOR_SPARSE_VECTOR) {
+            return decodeVector();
+        }
+        if (tag == FeatureCollection.CBOR_FEATURE_TOKENS) {
+            return decodeTokens();
+        }
+        if (tag == FeatureCollection.CBOR_GEO_COORDS) {
+            return decodeCoords();
+        }
+        throw error("unexpected CBOR tag " + tag);
+    }
+
+    private StringCounter decodeCounter(Feature old) throws IOException {
+        StringCounter sc = (old instanceof StringCounter)
+            ? (StringCounter)old : new StringCounter();
+        Map<String, Integer> strings = sc.rawStrings();
+        strings.clear();
+        long count = container(Cbor.MAJOR_MAP,
+                               "expected a map for a string counter");
+        for (long i = 0; more(count, i); i++) {
+            String key = text();
+            long v = integer();
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+                throw error("count out of range");
+            }
+            strings.put(key, Integer.valueOf((int)v));
+        }
+        return sc;
+    }
+
+    private OffHeapStringCounter decodeOffHeap(Feature old)
+        throws IOException {
+        boolean fresh = !(old instanceof OffHeapStringCounter);
+        OffHeapStringCounter oh = fresh
+            ? new OffHeapStringCounter() : (OffHeapStringCounter)old;
+        try {
+            if (refs == null) {
+                // Without references the keys can be copied straight
+                // from the record, never becoming strings
+                ByteBuffer bb = ByteBuffer.wrap(buf, pos, end - pos);
+                oh.readCborInto(bb);
+                pos = bb.position();
+                return oh;
+            }
+            oh.clear();
+            long count = container(Cbor.MAJOR_MAP,
+                                   "expected a map for a string counter");
+            for (long i = 0; more(count, i); i++) {
+                String key = text();
+                long v = integer();
+                if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+                    throw error("count out of range");
+                }
+                oh.add(key, (int)v);
+            }
+            return oh;
+        } catch (IOException e) {
+            if (fresh) {
+                oh.close();
+            }
+            throw e;
+        }
+    }
+
+    private SparseVector decodeVector() throws IOException {
+        long count = container(Cbor.MAJOR_ARRAY, "expected an array");
+        int[] indices = new int[8];
+        double[] values = new double[8];
+        int n = 0;
+        boolean sorted = true;
+        for (long i = 0; more(count, i); i += 2) {
+            long index = integer();
+            if (index < 0 || index > Integer.MAX_VALUE ||
+                (count >= 0 && i + 1 >= count)) {
+                throw error("invalid sparse vector");
+            }
+            if (n == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * n);
+                values = Arrays.copyOf(values, 2 * n);
+            }
+            indices[n] = (int)index;
+            values[n] = real();
+            if (n > 0 && indices[n] <= indices[n - 1]) {
+                sorted = false;
+            }
+            n++;
+        }
+        indices = Arrays.copyOf(indices, n);
+        values = Arrays.copyOf(values, n);
+        if (!sorted) {
+            SparseVector v = sort(indices, values);
+            if (v == null) {
+                throw error("duplicate index in sparse vector");
+            }
+            return v;
+        }
+        return SparseVector.wrap(indices, values);
+    }
+
+    private static SparseVector sort(int[] indices, double[] values) {
+        long[] packed = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            packed[i] = ((long)indices[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        int[] si = new int[indices.length];
+        double[] sv = new double[indices.length];
+        for (int i = 0; i < packed.length; i++) {
+            si[i] = (int)(packed[i] >>> 32);
+            sv[i] = values[(int)packed[i]];
+            if (i > 0 && si[i] == si[i - 1]) {
+                return null;
+            }
+        }
+        return SparseVector.wrap(si, sv);
+    }
+
+    private FeatureTokens decodeTokens() throws IOException {
+        FeatureTokens ft = new FeatureTokens();
+        Map<String, FeatureTokens.TokenSequences> tokens = ft.getTokens();
+        long count = container(Cbor.MAJOR_MAP, "expected a map of tokens");
+        for (long i = 0; more(count, i); i++) {
+            String key = text();
+            FeatureTokens.TokenSequences seqs =
+                new FeatureTokens.TokenSequences();
+            long nseq = container(Cbor.MAJOR_ARRAY, "expected an array");
+            for (long s = 0; more(nseq, s); s++) {
+                long ntok = container(Cbor.MAJOR_ARRAY, "expected an array");
+                for (long t = 0; more(ntok, t); t++) {
+                    long three = container(Cbor.MAJOR_ARRAY,
+                                           "expected a token triple");
+                    String tagger = text();
+                    long sentence = integer();
+                    long token = integer();
+                    if (three == -1 ? !atBreak() : three != 3) {
+                        throw error("expected a token triple");
+                    }
+                    seqs.append(tagger, (int)sentence, (int)token);
+                }
+                seqs.endSequence();
+            }
+            seqs.trim();
+            tokens.put(key, seqs);
+        }
+        return ft;
+    }
+
+    private GeoCoords decodeCoords() throws IOException {
+        GeoCoords geo = new GeoCoords();
+        Map<String, GeoCoords.Coordinates> coords = geo.getCoords();
+        long count = container(Cbor.MAJOR_MAP, "expected a map of coordinates");
+        for (long i = 0; more(count, i); i++) {
+            String key = text();
+            GeoCoords.Coordinates c = new GeoCoords.Coordinates();
+            long n = container(Cbor.MAJOR_ARRAY, "expected an array");
+            for (long j = 0; more(n, j); j++) {
+                long four = container(Cbor.MAJOR_ARRAY,
+                                      "expected a coordinate");
+                double lon = component();
+                double lat = component();
+                double alt = component();
+                double time = component();
+                if (four == -1 ? !atBreak() : four != 4) {
+                    throw error("expected a four-element coordinate");
+                }
+                c.append(lon, lat, alt, time);
+            }
+            c.trim();
+            coords.put(key, c);
+        }
+        return geo;
+    }
+
+    private double component() throws IOException {
+        if (peek() == NULL) {
+            pos++;
+            return Double.NaN;
+        }
+        return real();
+    }
+
+    /* Items */
+
+    private int peek() throws IOException {
+        if (pos >= end) {
+            throw error("record ends inside an item");
+        }
+        return buf[pos] & 0xff;
+    }
+
+    private boolean isRef(int initial) {
+        // 0xd8 0x19 is tag 25 with a one-byte argument, its only
+        // shortest encoding
+        return refs != null && initial == 0xd8 && pos + 1 < end &&
+            buf[pos + 1] == Cbor.TAG_STRINGREF;
+    }
+
+    /** Read an argument of the item whose initial byte was consumed */
+    private long argument(int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        int bytes;
+        switch (info) {
+        case 24: bytes = 1; break;
+        case 25: bytes = 2; break;
+        case 26: bytes = 4; break;
+        case 27: bytes = 8; break;
+        default:
+            throw error("invalid CBOR additional information " + info);
+        }
+        if (pos + bytes > end) {
+            throw error("record ends inside an item");
+        }
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | (buf[pos++] & 0xff);
+        }
+        if (v < 0) {
+            throw error("CBOR argument out of range");
+        }
+        return v;
+    }
+
+    /**
+     * Start an array or map.
+     *
+     * @return  Number of elements or pairs, or -1 if indefinite
+     */
+    private long container(int major, String message) throws IOException {
+        int initial = peek();
+        if ((initial >> 5) != major) {
+            throw error(message);
+        }
+        pos++;
+        if ((initial & 0x1f) == 31) {
+            return -1;
+        }
+        return argument(initial & 0x1f);
+    }
+
+    /** Whether element i of a container of count elements exists */
+    private boolean more(long count, long i) throws IOException {
+        if (count >= 0) {
+            return i < count;
+        }
+        return !atBreak();
+    }
+
+    /** Consume a break code if one is next */
+    private boolean atBreak() throws IOException {
+        if (peek() == BREAK) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private long integer() throws IOException {
+        int initial = peek();
+        int major = initial >> 5;
+        if (major != Cbor.MAJOR_UNSIGNED && major != Cbor.MAJOR_NEGATIVE) {
+            throw error("expected an integer");
+        }
+        pos++;
+        long v = argument(initial & 0x1f);
+        return (major == Cbor.MAJOR_UNSIGNED) ? v : -1 - v;
+    }
+
+    private double real() throws IOException {
+        int initial = peek();
+        if ((initial >> 5) != Cbor.MAJOR_SIMPLE) {
+            return integer();
+        }
+        pos++;
+        switch (initial & 0x1f) {
+        case 25:
+            return halfToDouble((int)argument(25));
+        case 26:
+            return Float.intBitsToFloat((int)argument(26));
+        case 27:
+            return Double.longBitsToDouble(raw8());
+        default:
+            throw error("expected a number");
+        }
+    }
+
+    private long raw8() throws IOException {
+        if (pos + 8 > end) {
+            throw error("record ends inside an item");
+        }
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[pos++] & 0xff);
+        }
+        return v;
+    }
+
+    private static double halfToDouble(int h) {
+        int exp = (h >> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        double v;
+        if (exp == 0) {
+            v = Math.scalb((double)mant, -24);
+        } else if (exp != 31) {
+            v = Math.scalb((double)(mant + 1024), exp - 25);
+        } else {
+            v = (mant == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return ((h & 0x8000) != 0) ? -v : v;
+    }
+
+    /** Read a text string or, in a namespace, a reference to one */
+    private String text() throws IOException {
+        int initial = peek();
+        if (isRef(initial)) {
+            pos += 2;
+            long index = integer();
+            if (index < 0 || index >= refs.size()) {
+                throw error("string reference " + index + " out of range");
+            }
+            return refs.get((int)index);
+        }
+        if ((initial >> 5) != Cbor.MAJOR_TEXT) {
+            throw error("expected a text string");
+        }
+        pos++;
+        if ((initial & 0x1f) == 31) {
+            // Indefinite-length strings are never numbered
+            StringBuilder sb = new StringBuilder();
+            while (!atBreak()) {
+                int chunk = peek();
+                if ((chunk >> 5) != Cbor.MAJOR_TEXT || (chunk & 0x1f) == 31) {
+                    throw error("invalid chunk in text string");
+                }
+                pos++;
+                sb.append(utf8(argument(chunk & 0x1f)));
+            }
+            return sb.toString();
+        }
+        long n = argument(initial & 0x1f);
+        String s = utf8(n);
+        if (refs != null && n >= Cbor.stringRefMinLength(refs.size())) {
+            refs.add(s);
+        }
+        return s;
+    }
+
+    private String utf8(long n) throws IOException {
+        if (n > end - pos) {
+            throw error("record ends inside a text string");
+        }
+        String s = new String(buf, pos, (int)n, StandardCharsets.UTF_8);
+        pos += (int)n;
+        return s;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + pos);
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splitter of a stream of concatenated CBOR items.
+ *
+ * This walks just enough of the CBOR structure to find where each
+ * top-level item ends, and returns the raw bytes of each one, so
+ * that the much more expensive decoding can happen elsewhere, for
+ * instance in parallel.  Both definite and indefinite lengths are
+ * understood.  Instances are not thread-safe.
+ */
+class CborFramer implements Closeable {
+    /** Deepest nesting accepted, to bound recursion on corrupt input */
+    private static final int MAX_DEPTH = 256;
+    private static final int BREAK = -2;
+
+    private final InputStream in;
+    private byte[] buf = new byte[4096];
+    private int len;
+
+    CborFramer(InputStream in) {
+        this.in = new BufferedInputStream(in, 65536);
+    }
+
+    /**
+     * Get the bytes of the next top-level item.
+     *
+     * @return  Encoded item, or <tt>null</tt> at the end of the stream
+     * @throws IOException  if the stream ends inside an item, is not
+     *                      well-formed CBOR, or cannot be read
+     */
+    byte[] next() throws IOException {
+        len = 0;
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        if (item(b, 0) == BREAK) {
+            throw new IOException("unexpected CBOR break");
+        }
+        return Arrays.copyOf(buf, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Copy one item whose initial byte has already been read.
+     *
+     * @return  {@link #BREAK} if the byte was a break code
+     */
+    private int item(int initial, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("CBOR nested too deeply");
+        }
+        append(initial);
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        if (info == 31) {
+            switch (major) {
+            case Cbor.MAJOR_BYTES:
+            case Cbor.MAJOR_TEXT:
+            case Cbor.MAJOR_ARRAY:
+                while (item(readByte(), depth + 1) != BREAK) {
+                }
+                return 0;
+            case Cbor.MAJOR_MAP:
+                while (item(readByte(), depth + 1) != BREAK) {
+                    if (item(readByte(), depth + 1) == BREAK) {
+                        throw new IOException("odd-length CBOR map");
+                    }
+                }
+                return 0;
+            case Cbor.MAJOR_SIMPLE:
+                return BREAK;
+            default:
+                throw new IOException("invalid indefinite CBOR item");
+            }
+        }
+        long value = argument(info);
+        switch (major) {
+        case Cbor.MAJOR_BYTES:
+        case Cbor.MAJOR_TEXT:
+            copy(value);
+            break;
+        case Cbor.MAJOR_ARRAY:
+            for (long i = 0; i < value; i++) {
+                definite(depth);
+            }
+            break;
+        case Cbor.MAJOR_MAP:
+            for (long i = 0; i < value; i++) {
+                definite(depth);
+                definite(depth);
+            }
+            break;
+        case Cbor.MAJOR_TAG:
+            definite(depth);
+            break;
+        default:
+            // integers, simple values, and floats are just the header
+            break;
+        }
+        return 0;
+    }
+
+    private void definite(int depth) throws IOException {
+        if (item(readByte(), depth + 1) == BREAK) {
+            throw new IOException("unexpected CBOR break");
+        }
+    }
+
+    /** Read and copy the argument bytes that follow an initial byte */
+    private long argument(int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        int n;
+        switch (info) {
+        case 24: n = 1; break;
+        case 25: n = 2; break;
+        case 26: n = 4; break;
+        case 27: n = 8; break;
+        default:
+            throw new IOException("reserved CBOR additional info " + info);
+        }
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            int b = readByte();
+            append(b);
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("truncated CBOR item");
+        }
+        return b;
+    }
+
+    private void append(int b) {
+        if (len == buf.length) {
+            buf = Arrays.copyOf(buf, 2 * len);
+        }
+        buf[len++] = (byte)b;
+    }
+
+    private void copy(long n) throws IOException {
+        if (n < 0 || n > Integer.MAX_VALUE - 8 - len) {
+            throw new IOException("CBOR string too long");
+        }
+        int end = len + (int)n;
+        if (end > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(end, 2 * buf.length));
+        }
+        while (len < end) {
+            int r = in.read(buf, len, end - len);
+            if (r < 0) {
+                throw new EOFException("truncated CBOR string");
+            }
+            len += r;
+        }
+    }
+}
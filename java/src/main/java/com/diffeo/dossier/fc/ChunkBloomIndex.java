@@ -0,0 +1,516 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-block Bloom filters of the terms in a chunk file.
+ *
+ * The records of a chunk file are grouped into blocks of a fixed
+ * number of consecutive records, and each block gets a Bloom filter
+ * of the (feature name, term) pairs that occur in it.  A term of a
+ * counter feature ({@link StringCounter}, {@link PrefixCounter}, or
+ * {@link OffHeapStringCounter}) is any key of the counter, and the
+ * term of a {@link StringFeature} is its value; other features are
+ * not indexed.  A scan for collections containing a term only has
+ * to decode the blocks whose filters might contain it; see
+ * {@link ChunkScanner}.
+ *
+ * Indexes are built by a {@link ChunkWriter} as it writes, with
+ * {@link ChunkWriter#setBloomIndex}, and stored in a separate
+ * "sidecar" file next to the chunk, conventionally named by
+ * {@link #sidecarFor}.  Each filter is sized for the number of
+ * distinct pairs in its block and the requested false-positive
+ * rate, so a block of rare terms takes little space.
+ *
+ * The sidecar file is little-endian:
+ *
+ * <pre>
+ * offset 0   "FCBF" magic
+ *        4   int32 version (2)
+ *        8   int32 records per block
+ *        12  int32 number of blocks B
+ *        16  float64 target false-positive rate
+ *        24  int64 length of the chunk file when it was indexed
+ *        32  B blocks, each
+ *              int64 byte offset of the block's first record
+ *              int64 byte length of the block
+ *              int32 number of records
+ *              int16 number of hash functions k
+ *              int16 reserved (0)
+ *              int32 number of 64-bit filter words W
+ *              int32 reserved (0)
+ *              int64[W] filter bits
+ * </pre>
+ *
+ * Offsets are positions in the chunk file, even if the writer did not
+ * start at the beginning of it.  The recorded chunk length lets a
+ * {@link ChunkScanner} refuse an index left over from an earlier
+ * file with the same name.  Pairs are
+ * hashed with a 64-bit FNV-1a hash of the UTF-16 code units of the
+ * feature name, a U+FFFF separator, and the term, followed by the
+ * MurmurHash3 finalizer; the <i>i</i>-th bit probed is
+ * <tt>(h1 + i * h2) mod (64 W)</tt>, where <tt>h1</tt> and
+ * <tt>h2</tt> are the low and high 32 bits of the hash, as signed
+ * integers, with a negative sum complemented.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class ChunkBloomIndex {
+    static final int MAGIC = 0x46424346;  // "FCBF" little-endian
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    static final int BLOCK_HEADER_BYTES = 32;
+
+    /** Suffix that {@link #sidecarFor} appends to a chunk file name */
+    public static final String SIDECAR_SUFFIX = ".bloom";
+
+    private final int blockRecords;
+    private final double falsePositiveRate;
+    private final long chunkLength;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final int[] records;
+    private final int[] hashCounts;
+    private final long[][] filters;
+
+    private ChunkBloomIndex(int blockRecords, double falsePositiveRate,
+                            long chunkLength, List<Block> blocks) {
+        this.blockRecords = blockRecords;
+        this.falsePositiveRate = falsePositiveRate;
+        this.chunkLength = chunkLength;
+        int n = blocks.size();
+        offsets = new long[n];
+        lengths = new long[n];
+        records = new int[n];
+        hashCounts = new int[n];
+        filters = new long[n][];
+        for (int b = 0; b < n; b++) {
+            Block block = blocks.get(b);
+            offsets[b] = block.offset;
+            lengths[b] = block.length;
+            records[b] = block.records;
+            hashCounts[b] = block.k;
+            filters[b] = block.bits;
+        }
+    }
+
+    /**
+     * Get the conventional sidecar path for a chunk file.
+     *
+     * @param chunk  Chunk file
+     * @return       Path with {@link #SIDECAR_SUFFIX} appended
+     */
+    public static Path sidecarFor(Path chunk) {
+        return chunk.resolveSibling(chunk.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Get the number of records per block.
+     *
+     * The last block may have fewer.
+     *
+     * @return  Block size in records
+     */
+    public int getBlockRecords() {
+        return blockRecords;
+    }
+
+    /**
+     * Get the false-positive rate the filters were sized for.
+     *
+     * @return  Target rate between 0 and 1
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Get the length of the chunk file the index was built for.
+     *
+     * @return  Chunk file size in bytes when the writer closed
+     */
+    public long getChunkLength() {
+        return chunkLength;
+    }
+
+    public int getNumBlocks() {
+        return offsets.length;
+    }
+
+    /**
+     * Get the byte offset of a block in the chunk file.
+     *
+     * @param block  Block number
+     * @return       Offset of the block's first record
+     */
+    public long getBlockOffset(int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Get the byte length of a block in the chunk file.
+     *
+     * @param block  Block number
+     * @return       Total length of the block's records
+     */
+    public long getBlockLength(int block) {
+        return lengths[block];
+    }
+
+    /**
+     * Get the number of records in a block.
+     *
+     * @param block  Block number
+     * @return       Number of records
+     */
+    public int getBlockRecordCount(int block) {
+        return records[block];
+    }
+
+    /**
+     * Check whether a block might contain a term.
+     *
+     * @param block    Block number
+     * @param feature  Feature name
+     * @param term     Term, or string feature value
+     * @return         <tt>false</tt> if no record in the block has the
+     *                 term in the feature; <tt>true</tt> if some record
+     *                 probably does
+     */
+    public boolean mightContain(int block, String feature, String term) {
+        return mightContain(block, hash(feature, term));
+    }
+
+    boolean mightContain(int block, long hash) {
+        long[] bits = filters[block];
+        long m = 64L * bits.length;
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (int i = 0; i < hashCounts[block]; i++) {
+            int combined = h1 + i * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            long bit = combined % m;
+            if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the total size of the filters.
+     *
+     * @return  Bytes of filter bits across all blocks
+     */
+    public long getFilterBytes() {
+        long n = 0;
+        for (long[] bits : filters) {
+            n += 8L * bits.length;
+        }
+        return n;
+    }
+
+    /* Hashing */
+
+    /**
+     * Hash a (feature, term) pair.
+     *
+     * @param feature  Feature name
+     * @param term     Term
+     * @return         64-bit hash
+     */
+    static long hash(String feature, String term) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < feature.length(); i++) {
+            h = (h ^ feature.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < term.length(); i++) {
+            h = (h ^ term.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hash every indexed pair of a collection.
+     *
+     * @param fc  Collection
+     * @return    Hashes, possibly with repeats
+     */
+    static long[] hashes(FeatureCollection fc) {
+        long[] out = new long[16];
+        int n = 0;
+        for (Map.Entry<String, Feature> e : fc.rawFeatures().entrySet()) {
+            Feature f = e.getValue();
+            if (f instanceof StringFeature) {
+                String v = ((StringFeature)f).getValue();
+                if (v != null) {
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, 2 * n);
+                    }
+                    out[n++] = hash(e.getKey(), v);
+                }
+                continue;
+            }
+            Map<String, Integer> strings = FeatureCollectionSum.counts(f);
+            if (strings == null) {
+                continue;
+            }
+            if (n + strings.size() > out.length) {
+                out = Arrays.copyOf(out, Math.max(2 * out.length,
+                                                  n + strings.size()));
+            }
+            for (String term : strings.keySet()) {
+                out[n++] = hash(e.getKey(), term);
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /* Building */
+
+    private static class Block {
+        long offset;
+        long length;
+        int records;
+        int k;
+        long[] bits;
+    }
+
+    /**
+     * Accumulates blocks as records are written.
+     *
+     * This is not thread-safe; a {@link ChunkWriter} uses it only from
+     * its I/O thread.
+     */
+    static class Builder {
+        private final int blockRecords;
+        private final double falsePositiveRate;
+        private final List<Block> blocks = new ArrayList<Block>();
+        private Block current;
+        private long[] pending = new long[1024];
+        private int npending;
+
+        Builder(int blockRecords, double falsePositiveRate) {
+            if (blockRecords < 1) {
+                throw new IllegalArgumentException("blockRecords < 1");
+            }
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException
+                    ("false-positive rate must be between 0 and 1");
+            }
+            this.blockRecords = blockRecords;
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        /**
+         * Get the number of records per block.
+         *
+         * @return  Records per block
+         */
+        int getBlockRecords() {
+            return blockRecords;
+        }
+
+        /**
+         * Add a record.
+         *
+         * @param hashes  Hashes of the record's pairs
+         * @param offset  Byte offset of the record
+         * @param length  Byte length of the record
+         */
+        void add(long[] hashes, long offset, int length) {
+            if (current == null) {
+                current = new Block();
+                current.offset = offset;
+            }
+            current.length = offset + length - current.offset;
+            current.records++;
+            if (npending + hashes.length > pending.length) {
+                pending = Arrays.copyOf
+                    (pending, Math.max(2 * pending.length,
+                                       npending + hashes.length));
+            }
+            System.arraycopy(hashes, 0, pending, npending, hashes.length);
+            npending += hashes.length;
+            if (current.records == blockRecords) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() {
+            // Size the filter for the distinct pairs in the block
+            Arrays.sort(pending, 0, npending);
+            int distinct = 0;
+            for (int i = 0; i < npending; i++) {
+                if (distinct == 0 || pending[i] != pending[distinct - 1]) {
+                    pending[distinct++] = pending[i];
+                }
+            }
+            double ln2 = Math.log(2);
+            long m = (long)Math.ceil
+                (-distinct * Math.log(falsePositiveRate) / (ln2 * ln2));
+            int words = (int)Math.min(Math.max(1, (m + 63) / 64),
+                                      Integer.MAX_VALUE / 64);
+            int k = (distinct == 0) ? 1 : (int)Math.round
+                (64.0 * words / distinct * ln2);
+            current.k = Math.max(1, Math.min(k, 30));
+            current.bits = new long[words];
+            long bitCount = 64L * words;
+            for (int i = 0; i < distinct; i++) {
+                int h1 = (int)pending[i];
+                int h2 = (int)(pending[i] >>> 32);
+                for (int j = 0; j < current.k; j++) {
+                    int combined = h1 + j * h2;
+                    if (combined < 0) {
+                        combined = ~combined;
+                    }
+                    long bit = combined % bitCount;
+                    current.bits[(int)(bit >>> 6)] |= 1L << bit;
+                }
+            }
+            blocks.add(current);
+            current = null;
+            npending = 0;
+        }
+
+        /**
+         * Close the last block and produce the index.
+         *
+         * @param chunkLength  Size of the chunk file once written
+         * @return             Finished index
+         */
+        ChunkBloomIndex finish(long chunkLength) {
+            if (current != null) {
+                endBlock();
+            }
+            return new ChunkBloomIndex(blockRecords, falsePositiveRate,
+                                       chunkLength, blocks);
+        }
+    }
+
+    /* Files */
+
+    /**
+     * Write the index to a sidecar file.
+     *
+     * The file is written under a temporary name and then renamed,
+     * so readers never see a partial index.
+     *
+     * @param path  File to write
+     * @throws IOException  if writing fails
+     */
+    public void write(Path path) throws IOException {
+        long size = HEADER_BYTES + getFilterBytes() +
+            (long)BLOCK_HEADER_BYTES * offsets.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Bloom index too large");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int)size)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(blockRecords);
+        buf.putInt(offsets.length);
+        buf.putDouble(falsePositiveRate);
+        buf.putLong(chunkLength);
+        for (int b = 0; b < offsets.length; b++) {
+            buf.putLong(offsets[b]);
+            buf.putLong(lengths[b]);
+            buf.putInt(records[b]);
+            buf.putShort((short)hashCounts[b]);
+            buf.putShort((short)0);
+            buf.putInt(filters[b].length);
+            buf.putInt(0);
+            for (long w : filters[b]) {
+                buf.putLong(w);
+            }
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        OutputStream out = Files.newOutputStream(tmp);
+        try {
+            out.write(buf.array());
+        } finally {
+            out.close();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read an index from a sidecar file.
+     *
+     * @param path  File written by {@link #write}
+     * @return      Index
+     * @throws IOException  if the file cannot be read or is invalid
+     */
+    public static ChunkBloomIndex read(Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) {
+                throw new IOException("not a Bloom index file");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported Bloom index version " +
+                                      version);
+            }
+            int blockRecords = buf.getInt();
+            int n = buf.getInt();
+            double rate = buf.getDouble();
+            long chunkLength = buf.getLong();
+            if (blockRecords < 1 || n < 0 || chunkLength < 0) {
+                throw new IOException("corrupt Bloom index header");
+            }
+            List<Block> blocks = new ArrayList<Block>();
+            for (int b = 0; b < n; b++) {
+                Block block = new Block();
+                block.offset = buf.getLong();
+                block.length = buf.getLong();
+                block.records = buf.getInt();
+                block.k = buf.getShort();
+                buf.getShort();
+                int words = buf.getInt();
+                buf.getInt();
+                if (block.k < 1 || words < 1 ||
+                    words > buf.remaining() / 8) {
+                    throw new IOException("corrupt Bloom index block " + b);
+                }
+                block.bits = new long[words];
+                buf.asLongBuffer().get(block.bits);
+                buf.position(buf.position() + 8 * words);
+                blocks.add(block);
+            }
+            return new ChunkBloomIndex(blockRecords, rate, chunkLength,
+                                       blocks);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("truncated Bloom index file");
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reactive source of the collections in a chunk file.
+ *
+ * Every subscriber gets its own pass over the file, from the
+ * beginning.  Nothing is read until the subscriber requests records,
+ * and then records are decoded on the publisher's {@link Executor},
+ * never on the subscriber's thread, and delivered in file order.  No
+ * thread is dedicated to a file: a subscription occupies an executor
+ * thread only while it has both demand and data to deliver.
+ *
+ * <pre>
+ * ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+ * ChunkPublisher pub = new ChunkPublisher(mapper, Paths.get("input.fc"));
+ * pub.subscribe(subscriber);
+ * </pre>
+ *
+ * With a read-ahead window of zero (the default), a record is
+ * decoded only when there is outstanding demand for it.  With a
+ * positive window, the file is split into raw records sequentially,
+ * and up to that many records beyond those already delivered are
+ * decoded in parallel on the executor while the subscriber catches
+ * up.  This uses more memory, but keeps a slow decoder from being
+ * the bottleneck of a fast consumer.  In a chunk written with
+ * {@link ChunkWriter#setStringReferences}, a record can only be
+ * decoded after the earlier records of its block, so each block is
+ * decoded as one task, and the window is stretched to the end of
+ * the block being read.
+ *
+ * Every collection delivered is freshly allocated and owned by the
+ * subscriber.  The file is closed when the subscription completes,
+ * fails, or is cancelled.  I/O and format errors are delivered
+ * through {@link Flow.Subscriber#onError}.
+ */
+public class ChunkPublisher implements Flow.Publisher<FeatureCollection> {
+    private final ObjectMapper mapper;
+    private final Path path;
+    private final Executor executor;
+    private final int readAhead;
+
+    /**
+     * Create a publisher that decodes on demand in the common pool.
+     *
+     * @param mapper  CBOR object mapper
+     * @param path    Chunk file to read
+     */
+    public ChunkPublisher(ObjectMapper mapper, Path path) {
+        this(mapper, path, ForkJoinPool.commonPool(), 0);
+    }
+
+    /**
+     * Create a publisher.
+     *
+     * @param mapper     CBOR object mapper
+     * @param path       Chunk file to read
+     * @param executor   Executor to read and decode on
+     * @param readAhead  Maximum number of records to decode in
+     *                   parallel ahead of delivery, or 0 to decode
+     *                   one record at a time on demand
+     */
+    public ChunkPublisher(ObjectMapper mapper, Path path, Executor executor,
+                          int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("readAhead < 0");
+        }
+        this.mapper = mapper;
+        this.path = path;
+        this.executor = executor;
+        this.readAhead = readAhead;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super FeatureCollection> s) {
+        if (s == null) {
+            throw new NullPointerException("subscriber");
+        }
+        ChunkSubscription sub = new ChunkSubscription(s);
+        s.onSubscribe(sub);
+    }
+
+    /**
+     * One subscriber's pass over the file.
+     *
+     * All reading, decoding bookkeeping, and signalling happens in
+     * {@link #run}, which the work-in-progress counter guarantees
+     * is executing on at most one thread at a time.
+     */
+    private class ChunkSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super FeatureCollection> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;
+
+        /* Only touched inside run() */
+        private ChunkReader reader;
+        private CborFramer framer;
+        private boolean eof;
+        /** Framing failure, reported once earlier records are delivered */
+        private IOException framingError;
+        /** Framed record that starts the next task */
+        private byte[] held;
+        /** Task still collecting the records of a namespace */
+        private DecodeTask open;
+        private boolean done;
+        private final ArrayDeque<CompletableFuture<FeatureCollection>>
+            decoding = new ArrayDeque<CompletableFuture<FeatureCollection>>();
+
+        ChunkSubscription(Flow.Subscriber<? super FeatureCollection> s) {
+            this.subscriber = s;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException
+                    ("non-positive request " + n);
+            } else {
+                long r, u;
+                do {
+                    r = requested.get();
+                    u = r + n;
+                    if (u < 0) {
+                        u = Long.MAX_VALUE;
+                    }
+                } while (!requested.compareAndSet(r, u));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Nothing else is running, so signalling here is safe
+                    if (!done) {
+                        done = true;
+                        closeQuietly();
+                        subscriber.onError(e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (!done) {
+                    try {
+                        drain();
+                    } catch (IOException | RuntimeException e) {
+                        fail(e);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            if (cancelled) {
+                done = true;
+                closeQuietly();
+                return;
+            }
+            if (badRequest != null) {
+                fail(badRequest);
+                return;
+            }
+            if (readAhead > 0) {
+                fill();
+            }
+            long emitted = 0;
+            long r = requested.get();
+            while (emitted != r && !cancelled) {
+                FeatureCollection fc = nextReady();
+                if (fc == null) {
+                    break;
+                }
+                subscriber.onNext(fc);
+                emitted++;
+                if (readAhead > 0) {
+                    fill();
+                }
+            }
+            if (cancelled) {
+                done = true;
+                closeQuietly();
+                return;
+            }
+            if (emitted != 0 && r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            if (eof && decoding.isEmpty()) {
+                if (framingError != null) {
+                    fail(framingError);
+                    return;
+                }
+                done = true;
+                closeQuietly();
+                subscriber.onComplete();
+            }
+        }
+
+        /**
+         * Get the next record if it is available now.
+         *
+         * @return  Next record, or <tt>null</tt> at the end of the
+         *          file or if the next record is still being decoded
+         */
+        private FeatureCollection nextReady() throws IOException {
+            if (readAhead == 0) {
+                if (reader == null) {
+                    reader = new ChunkReader
+                        (mapper, Files.newInputStream(path));
+                }
+                FeatureCollection fc = reader.read();
+                if (fc == null) {
+                    eof = true;
+                }
+                return fc;
+            }
+            CompletableFuture<FeatureCollection> head = decoding.peek();
+            if (head == null || !head.isDone()) {
+                return null;
+            }
+            decoding.poll();
+            try {
+                return head.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                throw new IOException("decoding failed", cause);
+            }
+        }
+
+        /** Start decoding records until the window is full */
+        private void fill() throws IOException {
+            if (framer == null && !eof) {
+                framer = new CborFramer(Files.newInputStream(path));
+            }
+            // A namespace is decoded as a whole, so keep reading past
+            // the window until the next one starts
+            while (!eof && (decoding.size() < readAhead || open != null)) {
+                byte[] record = held;
+                held = null;
+                if (record == null) {
+                    try {
+                        record = framer.next();
+                    } catch (IOException e) {
+                        framingError = e;
+                    }
+                }
+                if (record == null) {
+                    eof = true;
+                    break;
+                }
+                boolean starts =
+                    CborDecoder.isStringRefNamespace(record, 0, record.length);
+                if (open != null) {
+                    if (!starts) {
+                        open.add(record, newResult());
+                        continue;
+                    }
+                    executor.execute(open);
+                    open = null;
+                    if (decoding.size() >= readAhead) {
+                        held = record;
+                        break;
+                    }
+                }
+                DecodeTask task = new DecodeTask();
+                task.add(record, newResult());
+                if (starts) {
+                    open = task;
+                } else {
+                    executor.execute(task);
+                }
+            }
+            if (eof && open != null) {
+                executor.execute(open);
+                open = null;
+            }
+        }
+
+        private CompletableFuture<FeatureCollection> newResult() {
+            CompletableFuture<FeatureCollection> f =
+                new CompletableFuture<FeatureCollection>();
+            decoding.add(f);
+            return f;
+        }
+
+        private void fail(Throwable t) {
+            done = true;
+            cancelled = true;
+            closeQuietly();
+            subscriber.onError(t);
+        }
+
+        private void closeQuietly() {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+                if (framer != null) {
+                    framer.close();
+                }
+            } catch (IOException e) {
+                // nothing more can be reported
+            }
+            reader = null;
+            framer = null;
+            held = null;
+            open = null;
+            decoding.clear();
+        }
+
+        /**
+         * Decode a run of raw records in order, then wake up the
+         * subscription
+         */
+        private class DecodeTask implements Runnable {
+            private final ByteArrayOutputStream records =
+                new ByteArrayOutputStream();
+            private final List<CompletableFuture<FeatureCollection>> results =
+                new ArrayList<CompletableFuture<FeatureCollection>>();
+
+            void add(byte[] record, CompletableFuture<FeatureCollection> f) {
+                records.write(record, 0, record.length);
+                results.add(f);
+            }
+
+            @Override
+            public void run() {
+                int i = 0;
+                try {
+                    ChunkReader r = new ChunkReader
+                        (mapper, new ByteArrayInputStream
+                         (records.toByteArray()));
+                    for (; i < results.size(); i++) {
+                        results.get(i).complete(r.read());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Later records cannot be decoded without this one
+                    for (; i < results.size(); i++) {
+                        results.get(i).completeExceptionally(e);
+                    }
+                }
+                schedule();
+            }
+        }
+    }
+}
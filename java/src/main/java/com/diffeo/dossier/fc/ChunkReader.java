@@ -0,0 +1,469 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.dataformat.cbor.CBORParser;
+
+/**
+ * Streaming reader for chunk files.
+ *
+ * A chunk file, as written by the Python
+ * <tt>FeatureCollectionChunk</tt> class, is simply a sequence of
+ * concatenated serialized {@link FeatureCollection} objects.  This
+ * reader decodes them one at a time directly from the parser token
+ * stream.
+ *
+ * {@link #read} returns a freshly allocated collection for every
+ * record.  Scan jobs that look at one collection at a time can
+ * instead call {@link #readInto}, which clears and refills a
+ * caller-owned collection in place, recycling its {@link StringCounter}
+ * and {@link StringFeature} objects (and their hash tables) across
+ * records.  A recycled counter is updated in place: when its keys
+ * repeat from the previous record, which the parser canonicalizes to
+ * the same {@link String} objects, it keeps its entries, and a count
+ * that did not change keeps its box.  Allocation per record then
+ * depends on the number of features rather than the size of the
+ * counters; new keys still need new entries, changed counts above
+ * 127 need new boxes, and string feature values are new strings.
+ * This holds for plain chunks; the decoder for string-referenced
+ * chunks creates a key string afresh unless it is a reference to
+ * one decoded earlier in the same block.
+ *
+ * <pre>
+ * ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+ * ChunkReader reader = new ChunkReader(mapper, new FileInputStream(f));
+ * FeatureCollection fc = new FeatureCollection();
+ * while (reader.readInto(fc)) {
+ *     // use fc, but do not keep references to it or its features
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * The contract for {@link #readInto} is that the collection passed
+ * in, every {@link Feature} it contains, and every map returned from
+ * them, are only valid until the next call to {@link #readInto} on
+ * the same reader.  Callers that need to keep a record must copy it
+ * (for instance, by re-reading it with {@link #read}).  Features that
+ * are not {@link StringCounter} or {@link StringFeature} are decoded
+ * fresh every time.  A reader is not safe for use from multiple
+ * threads.
+ *
+ * Chunks written with string references (see
+ * {@link ChunkWriter#setStringReferences}) are recognized by the
+ * first record's namespace tag, and are then split into records and
+ * decoded by a small built-in decoder rather than Jackson, since
+ * Jackson cannot read references where it expects text.  Every
+ * reference to a string within a block of records resolves to one
+ * shared {@link String}.  A chunk that starts with plain records
+ * cannot also contain string-referenced ones.
+ *
+ * Counters too large to keep on the heap can be decoded into
+ * {@link OffHeapStringCounter} objects instead, by naming their
+ * features with {@link #setOffHeapFeatures}.  A CBOR chunk is then
+ * read by the built-in decoder whether or not it uses string
+ * references, so the counters' keys are copied from the record bytes
+ * without becoming {@link String} objects.  Off-heap counters
+ * returned by {@link #read} belong to the caller, who must close
+ * them.  Those filled by {@link #readInto} belong to the reader: they
+ * are recycled like on-heap counters, and freed when a record no
+ * longer has them or when the reader is closed.
+ */
+public class ChunkReader implements Closeable {
+    /** Stream of records not yet handed to a parser or framer */
+    private final InputStream in;
+    /** Jackson parser, for plain chunks */
+    private JsonParser jp;
+    /**
+     * Record splitter and decoder, for string-referenced chunks and
+     * for plain CBOR chunks with off-heap features
+     */
+    private CborFramer framer;
+    private CborDecoder decoder;
+    /** Features of the previous record available for reuse, by name */
+    private final Map<String, Feature> spare;
+    /** Names of counter features to decode off the heap */
+    private Set<String> offHeap;
+    /** Off-heap counters handed out by {@link #readInto} */
+    private final Set<OffHeapStringCounter> owned;
+    /** Entries of the counter being decoded */
+    private String[] keys = new String[64];
+    private int[] counts = new int[64];
+
+    /**
+     * Create a reader over a stream of serialized collections.
+     *
+     * The mapper determines the encoding, and is normally constructed
+     * with a {@link com.fasterxml.jackson.dataformat.cbor.CBORFactory};
+     * it is also used to decode any feature types this reader does
+     * not handle directly.
+     *
+     * This reads the first few bytes of the stream to detect string
+     * references.
+     *
+     * @param mapper  Object mapper to create the parser from
+     * @param in      Stream to read from
+     * @throws IOException  if the parser cannot be created
+     */
+    public ChunkReader(ObjectMapper mapper, InputStream in)
+        throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 3);
+        byte[] head = new byte[3];
+        int n = 0;
+        while (n < head.length) {
+            int r = pin.read(head, n, head.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        pin.unread(head, 0, n);
+        this.in = pin;
+        if (CborDecoder.isStringRefNamespace(head, 0, n)) {
+            this.jp = null;
+            this.framer = new CborFramer(pin);
+            this.decoder = new CborDecoder();
+        } else {
+            this.jp = mapper.getFactory().createParser(pin);
+            this.framer = null;
+            this.decoder = null;
+        }
+        this.spare = new HashMap<String, Feature>();
+        this.offHeap = Collections.emptySet();
+        this.owned = Collections.newSetFromMap
+            (new IdentityHashMap<OffHeapStringCounter, Boolean>());
+    }
+
+    /**
+     * Decode some counter features into off-heap memory.
+     *
+     * A string counter under one of these names is read as an
+     * {@link OffHeapStringCounter} rather than a {@link StringCounter};
+     * other features are unaffected.  This may be called between
+     * records.  For a CBOR chunk, the rest of the stream is read by
+     * the built-in decoder, which fills off-heap counters straight
+     * from the UTF-8 bytes of their keys.  With any other encoding,
+     * such as JSON, each key still passes through a {@link String}.
+     *
+     * @param names  Feature names, or <tt>null</tt> for none
+     * @throws IOException  if the reader cannot switch decoders
+     */
+    public void setOffHeapFeatures(Set<String> names) throws IOException {
+        offHeap = (names == null || names.isEmpty())
+            ? Collections.<String>emptySet() : new HashSet<String>(names);
+        if (decoder == null && !offHeap.isEmpty() &&
+            jp instanceof CBORParser) {
+            // Hand whatever Jackson has buffered, then the rest of the
+            // stream, to a framer; the parser is at a record boundary
+            ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+            if (jp.releaseBuffered(buffered) >= 0) {
+                jp.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+                jp.close();
+                jp = null;
+                framer = new CborFramer(new SequenceInputStream
+                                        (new ByteArrayInputStream
+                                         (buffered.toByteArray()), in));
+                decoder = new CborDecoder();
+            }
+        }
+        if (decoder != null) {
+            decoder.setOffHeapFeatures(offHeap);
+        }
+    }
+
+    /**
+     * Read the next collection into a newly allocated object.
+     *
+     * @return  Next feature collection, or <tt>null</tt> at the
+     *          end of the stream
+     * @throws IOException  if the stream is malformed or cannot be read
+     */
+    public FeatureCollection read() throws IOException {
+        FeatureCollection fc = new FeatureCollection();
+        try {
+            if (!decode(fc, false)) {
+                return null;
+            }
+        } catch (IOException e) {
+            for (Feature f : fc.rawFeatures().values()) {
+                if (f instanceof OffHeapStringCounter) {
+                    ((OffHeapStringCounter)f).close();
+                }
+            }
+            throw e;
+        }
+        return fc;
+    }
+
+    /**
+     * Read the next collection, reusing an existing object.
+     *
+     * The collection is emptied, and then refilled from the next
+     * record in the stream; the previous contents and any features
+     * obtained from it become invalid.  Features are recycled by
+     * name from the previous record where their types match.
+     *
+     * @param fc  Collection to refill
+     * @return    <tt>true</tt> if a record was read, <tt>false</tt>
+     *            at the end of the stream
+     * @throws IOException  if the stream is malformed or cannot be read
+     */
+    public boolean readInto(FeatureCollection fc) throws IOException {
+        fc.setReadOnly(false);
+        Map<String, Feature> features = fc.rawFeatures();
+        spare.putAll(features);
+        features.clear();
+        try {
+            return decode(fc, true);
+        } finally {
+            for (Feature f : features.values()) {
+                if (f instanceof OffHeapStringCounter) {
+                    owned.add((OffHeapStringCounter)f);
+                }
+            }
+            // Off-heap counters are not kept around in case a later
+            // record wants them again
+            Iterator<Feature> it = spare.values().iterator();
+            while (it.hasNext()) {
+                Feature f = it.next();
+                if (f instanceof OffHeapStringCounter) {
+                    it.remove();
+                    if (owned.remove(f)) {
+                        ((OffHeapStringCounter)f).close();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (jp != null) {
+            jp.close();
+        } else {
+            framer.close();
+        }
+        spare.clear();
+        for (OffHeapStringCounter oh : owned) {
+            oh.close();
+        }
+        owned.clear();
+    }
+
+    /* Decoding */
+
+    private boolean decode(FeatureCollection fc, boolean recycle)
+        throws IOException {
+        if (decoder != null) {
+            byte[] record = framer.next();
+            if (record == null) {
+                return false;
+            }
+            decoder.decode(record, 0, record.length, fc,
+                           recycle ? spare : null);
+            return true;
+        }
+        JsonToken token = jp.nextToken();
+        if (token == null) {
+            return false;
+        }
+        expect(token == JsonToken.START_ARRAY, "expected an array");
+        expect(!(jp instanceof CBORParser) ||
+               ((CBORParser)jp).getCurrentTag() !=
+               Cbor.TAG_STRINGREF_NAMESPACE,
+               "string references in a chunk of plain records");
+        expect(jp.nextToken() == JsonToken.START_OBJECT, "missing metadata");
+        boolean ro = decodeMetadata();
+        expect(jp.nextToken() == JsonToken.START_OBJECT, "missing content");
+        Map<String, Feature> features = fc.rawFeatures();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String name = jp.getCurrentName();
+            jp.nextToken();
+            Feature old = recycle ? spare.remove(name) : null;
+            if (old != null) {
+                old.setReadOnly(false);
+            }
+            features.put(name, decodeFeature(name, old));
+        }
+        expect(jp.getCurrentToken() == JsonToken.END_OBJECT,
+               "unexpected " + jp.getCurrentToken() + " in content");
+        expect(jp.nextToken() == JsonToken.END_ARRAY,
+               "unexpected " + jp.getCurrentToken() + " after content");
+        fc.setReadOnly(ro);
+        return true;
+    }
+
+    private boolean decodeMetadata() throws IOException {
+        String version = null;
+        boolean ro = false;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken value = jp.nextToken();
+            if (key.equals("v") && value == JsonToken.VALUE_STRING) {
+                version = jp.getText();
+            } else if (key.equals("ro") &&
+                       value == JsonToken.VALUE_NUMBER_INT &&
+                       jp.getIntValue() == 1) {
+                ro = true;
+            } else {
+                throw new InvalidFormatException
+                    ("invalid metadata " + key, jp, FeatureCollection.class);
+            }
+        }
+        if (version == null) {
+            throw new InvalidFormatException
+                ("missing metadata", jp, FeatureCollection.class);
+        }
+        if (!version.equals(FeatureCollection.Metadata.FC01_VERSION)) {
+            throw new InvalidFormatException
+                ("invalid FC version " + version, jp, FeatureCollection.class);
+        }
+        return ro;
+    }
+
+    private Feature decodeFeature(String name, Feature old)
+        throws IOException {
+        JsonToken token = jp.getCurrentToken();
+        int tag = -1;
+        if (jp instanceof CBORParser) {
+            tag = ((CBORParser)jp).getCurrentTag();
+        }
+        if (tag == FeatureCollection.CBOR_STRING_COUNTER ||
+            (tag == -1 && token == JsonToken.START_OBJECT)) {
+            if (offHeap.contains(name)) {
+                return decodeOffHeap(old);
+            }
+            StringCounter sc;
+            if (old instanceof StringCounter) {
+                sc = (StringCounter)old;
+            } else {
+                sc = new StringCounter();
+            }
+            decodeCounter(sc.rawStrings());
+            return sc;
+        }
+        if (tag == -1 && token == JsonToken.VALUE_STRING) {
+            StringFeature sf;
+            if (old instanceof StringFeature) {
+                sf = (StringFeature)old;
+            } else {
+                sf = new StringFeature();
+            }
+            sf.setValue(jp.getText());
+            return sf;
+        }
+        if (tag == FeatureCollection.CBOR_SPARSE_VECTOR) {
+            return jp.readValueAs(SparseVector.class);
+        }
+        if (tag == FeatureCollection.CBOR_FEATURE_TOKENS) {
+            return jp.readValueAs(FeatureTokens.class);
+        }
+        if (tag == FeatureCollection.CBOR_GEO_COORDS) {
+            return jp.readValueAs(GeoCoords.class);
+        }
+        if (tag != -1) {
+            throw new InvalidFormatException
+                ("unexpected CBOR tag " + tag, jp, Feature.class);
+        }
+        throw new InvalidFormatException
+            ("unexpected object " + token, jp, Feature.class);
+    }
+
+    private void decodeCounter(Map<String, Integer> strings)
+        throws IOException {
+        expect(jp.getCurrentToken() == JsonToken.START_OBJECT,
+               "expected a map for a string counter");
+        int n = 0;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * n);
+                counts = Arrays.copyOf(counts, 2 * n);
+            }
+            keys[n] = jp.getCurrentName();
+            expect(jp.nextToken() == JsonToken.VALUE_NUMBER_INT,
+                   "expected an integer count");
+            counts[n] = jp.getIntValue();
+            n++;
+        }
+        expect(jp.getCurrentToken() == JsonToken.END_OBJECT,
+               "unexpected " + jp.getCurrentToken() + " in string counter");
+        // Update a recycled counter in place, so that when its keys
+        // repeat from the last record it keeps its entries, and an
+        // unchanged count keeps its box
+        for (int i = 0; i < n; i++) {
+            Integer old = strings.get(keys[i]);
+            if (old == null || old.intValue() != counts[i]) {
+                strings.put(keys[i], Integer.valueOf(counts[i]));
+            }
+        }
+        if (strings.size() != n) {
+            // Some keys are gone, or one repeated; start over.
+            // HashMap.clear() keeps the existing table, so the
+            // counter does not rehash as it refills.
+            strings.clear();
+            for (int i = 0; i < n; i++) {
+                strings.put(keys[i], Integer.valueOf(counts[i]));
+            }
+        }
+        Arrays.fill(keys, 0, n, null);
+    }
+
+    private OffHeapStringCounter decodeOffHeap(Feature old)
+        throws IOException {
+        boolean fresh = !(old instanceof OffHeapStringCounter);
+        OffHeapStringCounter oh = fresh
+            ? new OffHeapStringCounter() : (OffHeapStringCounter)old;
+        try {
+            expect(jp.getCurrentToken() == JsonToken.START_OBJECT,
+                   "expected a map for a string counter");
+            oh.clear();
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                expect(jp.nextToken() == JsonToken.VALUE_NUMBER_INT,
+                       "expected an integer count");
+                oh.add(key, jp.getIntValue());
+            }
+            expect(jp.getCurrentToken() == JsonToken.END_OBJECT,
+                   "unexpected " + jp.getCurrentToken() +
+                   " in string counter");
+            return oh;
+        } catch (IOException e) {
+            if (fresh) {
+                oh.close();
+            }
+            throw e;
+        }
+    }
+
+    private void expect(boolean ok, String message) throws IOException {
+        if (!ok) {
+            throw new InvalidFormatException
+                (message, jp, FeatureCollection.class);
+        }
+    }
+}
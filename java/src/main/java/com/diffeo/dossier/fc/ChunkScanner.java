@@ -0,0 +1,198 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Finds the collections in a chunk file that contain a term.
+ *
+ * The scanner consults a {@link ChunkBloomIndex} of the chunk and
+ * reads and decodes only the blocks whose filters might contain the
+ * (feature, term) pair; every other block is skipped without being
+ * read.  Records in the blocks that are read are checked exactly, so
+ * false positives of the filters cost time but never produce a
+ * wrong match.  A collection matches if its feature is a counter
+ * with the term as a key, or a {@link StringFeature} with the term
+ * as its value, which is what the index records.
+ *
+ * <pre>
+ * Path chunk = Paths.get("corpus.fc");
+ * ChunkScanner scanner = new ChunkScanner
+ *     (mapper, chunk, ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(chunk)));
+ * scanner.scan("NAME", "john smith", new ChunkScanner.Visitor() {
+ *         public void visit(FeatureCollection fc) {
+ *             ...
+ *         }
+ *     });
+ * scanner.close();
+ * </pre>
+ *
+ * Matching collections are decoded with {@link ChunkReader#readInto}
+ * into a recycled object, so a visitor must copy anything it wants
+ * to keep.  The scanner counts the blocks it reads and skips, across
+ * all scans.  Instances are not thread-safe.
+ */
+public class ChunkScanner implements Closeable {
+    /**
+     * Receives matching collections.
+     */
+    public interface Visitor {
+        /**
+         * Handle one matching collection.
+         *
+         * @param fc  Collection, valid only until this returns
+         * @throws IOException  to stop the scan
+         */
+        void visit(FeatureCollection fc) throws IOException;
+    }
+
+    private final ObjectMapper mapper;
+    private final FileChannel channel;
+    private final ChunkBloomIndex index;
+    private byte[] buf = new byte[0];
+    private long blocksRead;
+    private long blocksSkipped;
+
+    /**
+     * Open a chunk file for scanning.
+     *
+     * The index must have been built for the file as it is now: an
+     * index whose recorded chunk length differs from the file's size,
+     * such as one left over from an earlier file of the same name, is
+     * rejected rather than trusted to skip blocks.
+     *
+     * @param mapper  Object mapper for reading the chunk
+     * @param chunk   Chunk file
+     * @param index   Index of the chunk file
+     * @throws IOException  if the file cannot be opened or the index
+     *                      does not match it
+     */
+    public ChunkScanner(ObjectMapper mapper, Path chunk,
+                        ChunkBloomIndex index)
+        throws IOException {
+        this.mapper = mapper;
+        this.channel = FileChannel.open(chunk, StandardOpenOption.READ);
+        this.index = index;
+        long size = channel.size();
+        if (index.getChunkLength() != size) {
+            channel.close();
+            throw new IOException("Bloom index is for a " +
+                                  index.getChunkLength() +
+                                  "-byte chunk, but " + chunk + " has " +
+                                  size + " bytes");
+        }
+    }
+
+    /**
+     * Visit every collection with a term in a feature.
+     *
+     * @param feature  Feature name
+     * @param term     Counter term or string feature value
+     * @param visitor  Visitor to call for each match, in file order
+     * @return         Number of matching collections
+     * @throws IOException  if reading fails or the visitor throws
+     */
+    public long scan(String feature, String term, Visitor visitor)
+        throws IOException {
+        long hash = ChunkBloomIndex.hash(feature, term);
+        long matches = 0;
+        FeatureCollection fc = new FeatureCollection();
+        for (int b = 0; b < index.getNumBlocks(); b++) {
+            if (!index.mightContain(b, hash)) {
+                blocksSkipped++;
+                continue;
+            }
+            blocksRead++;
+            int length = readBlock(b);
+            ChunkReader reader = new ChunkReader
+                (mapper, new ByteArrayInputStream(buf, 0, length));
+            try {
+                while (reader.readInto(fc)) {
+                    if (contains(fc, feature, term)) {
+                        matches++;
+                        visitor.visit(fc);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return matches;
+    }
+
+    private int readBlock(int b) throws IOException {
+        long length = index.getBlockLength(b);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("block " + b + " too large");
+        }
+        if (buf.length < length) {
+            buf = new byte[(int)Math.max(length, 2L * buf.length)];
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int)length);
+        long position = index.getBlockOffset(b);
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, position);
+            if (n < 0) {
+                throw new EOFException("chunk file ends inside block " + b);
+            }
+            position += n;
+        }
+        return (int)length;
+    }
+
+    private static boolean contains(FeatureCollection fc, String feature,
+                                    String term) {
+        Feature f = fc.rawFeatures().get(feature);
+        if (f instanceof StringFeature) {
+            return term.equals(((StringFeature)f).getValue());
+        }
+        if (f instanceof StringCounter) {
+            return ((StringCounter)f).rawStrings().containsKey(term);
+        }
+        if (f instanceof PrefixCounter) {
+            return ((PrefixCounter)f).contains(term);
+        }
+        Map<String, Integer> strings = FeatureCollectionSum.counts(f);
+        return strings != null && strings.containsKey(term);
+    }
+
+    /**
+     * Get the number of blocks decoded.
+     *
+     * @return  Blocks whose filters matched, across all scans
+     */
+    public long getBlocksRead() {
+        return blocksRead;
+    }
+
+    /**
+     * Get the number of blocks skipped.
+     *
+     * @return  Blocks ruled out by their filters, across all scans
+     */
+    public long getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reactive sink that writes collections to a {@link ChunkWriter}.
+ *
+ * The subscriber keeps a bounded number of records requested from
+ * its publisher.  {@link #onNext} only queues a record, so the
+ * publisher's threads never wait on the disk; the subscriber's own
+ * writer thread hands queued records to the writer, and asks for one
+ * more each time the writer has accepted one.  Since
+ * {@link ChunkWriter#write} blocks when the writer's queue is full, a
+ * slow disk pushes back on the publisher by withholding demand, and
+ * at most the window of records is ever queued here.
+ *
+ * <pre>
+ * ChunkWriter writer = new ChunkWriter(mapper, Paths.get("output.fc"));
+ * ChunkSubscriber sink = new ChunkSubscriber(writer);
+ * publisher.subscribe(sink);
+ * long records = sink.getCompletion().get();
+ * </pre>
+ *
+ * The writer is closed when the publisher completes or fails, or
+ * when writing or requesting more fails, whether with an
+ * {@link IOException} or an unchecked exception; the subscriber then
+ * completes
+ * {@link #getCompletion} with the number of records written, or with
+ * the failure.  A collection passed to {@link #onNext} is owned by
+ * the writer from then on, so publishers must not recycle it.  A
+ * subscriber can only be subscribed once.
+ */
+public class ChunkSubscriber implements Flow.Subscriber<FeatureCollection> {
+    public static final int DEFAULT_WINDOW = 256;
+
+    /** Queue marker for the end of the stream */
+    private static final FeatureCollection END = new FeatureCollection();
+
+    private final ChunkWriter writer;
+    private final int window;
+    private final CompletableFuture<Long> completion;
+    private final BlockingQueue<FeatureCollection> pending;
+    private Flow.Subscription subscription;
+    private volatile Throwable upstreamError;
+    private volatile boolean done;
+
+    /* Owned by the writer thread */
+    private long count;
+
+    /**
+     * Create a subscriber with {@link #DEFAULT_WINDOW} records of
+     * outstanding demand.
+     *
+     * @param writer  Writer to write to, closed when the stream ends
+     */
+    public ChunkSubscriber(ChunkWriter writer) {
+        this(writer, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Create a subscriber.
+     *
+     * @param writer  Writer to write to, closed when the stream ends
+     * @param window  Number of records to keep requested
+     */
+    public ChunkSubscriber(ChunkWriter writer, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window < 1");
+        }
+        this.writer = writer;
+        this.window = window;
+        this.completion = new CompletableFuture<Long>();
+        // Demand bounds the queue, so it needs no capacity of its own
+        this.pending = new LinkedBlockingQueue<FeatureCollection>();
+    }
+
+    /**
+     * Get the result of the stream.
+     *
+     * @return  Future of the number of records written
+     */
+    public CompletableFuture<Long> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        ChunkWriter.daemonThreads("chunk-subscriber")
+            .newThread(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                })
+            .start();
+        s.request(window);
+    }
+
+    @Override
+    public void onNext(FeatureCollection fc) {
+        if (!done) {
+            pending.add(fc);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        upstreamError = t;
+        pending.add(END);
+    }
+
+    @Override
+    public void onComplete() {
+        pending.add(END);
+    }
+
+    /* Writer thread */
+
+    private void drain() {
+        Throwable t;
+        try {
+            while (true) {
+                FeatureCollection fc = pending.take();
+                if (fc == END) {
+                    t = upstreamError;
+                    break;
+                }
+                writer.write(fc);
+                count++;
+                subscription.request(1);
+            }
+        } catch (IOException e) {
+            t = cancel(e);
+        } catch (InterruptedException e) {
+            t = cancel(e);
+        } catch (RuntimeException e) {
+            // Such as a rejected encoder task, or a subscription that
+            // throws; the future must still complete
+            t = cancel(e);
+        }
+        finish(t);
+    }
+
+    private Throwable cancel(Throwable t) {
+        try {
+            subscription.cancel();
+        } catch (RuntimeException e) {
+            t.addSuppressed(e);
+        }
+        return t;
+    }
+
+    private void finish(Throwable t) {
+        done = true;
+        pending.clear();
+        try {
+            writer.close();
+        } catch (IOException | RuntimeException e) {
+            if (t == null) {
+                t = e;
+            } else {
+                t.addSuppressed(e);
+            }
+        }
+        if (t == null) {
+            completion.complete(count);
+        } else {
+            completion.completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,762 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Asynchronous, batching writer for chunk files.
+ *
+ * A chunk file is a sequence of concatenated serialized
+ * {@link FeatureCollection} objects.  Rather than encoding and
+ * writing each collection on the calling thread, this writer places
+ * collections on a bounded queue and returns immediately.  Encoding
+ * happens on a pool of background threads, and a single I/O thread
+ * copies encoded records, in the order they were submitted, into a
+ * large direct buffer that is written to a {@link FileChannel} in
+ * one call whenever it fills or the queue goes idle.
+ *
+ * <pre>
+ * ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+ * ChunkWriter writer = new ChunkWriter(mapper, Paths.get("output.fc"));
+ * writer.write(fc1);
+ * writer.write(fc2);
+ * writer.close();
+ * </pre>
+ *
+ * When the queue is full, {@link #write} blocks until there is
+ * room, so a slow disk pushes back on producers rather than growing
+ * the heap without bound.  A collection passed to {@link #write} must
+ * not be modified until it has been encoded; the simplest way to
+ * guarantee this is to not touch it again, or to wait for
+ * {@link #flush}.  With zero encoder threads, collections are encoded
+ * on the calling thread before {@link #write} returns, and only the
+ * I/O is asynchronous.
+ *
+ * If encoding or writing fails, the writer stops writing and the
+ * failure is rethrown as an {@link IOException} from the next call
+ * to {@link #write}, {@link #flush}, or {@link #close}.  Records
+ * submitted after a failure are discarded.
+ *
+ * A single writer may be shared by multiple producer threads; records
+ * are written in the order their {@link #write} calls complete.
+ *
+ * Before the first record is written, the writer can be configured
+ * to use {@link CanonicalCbor} encoding, so that equal collections
+ * always produce identical bytes, and to compute a content digest of
+ * each record.  With {@link #setSkipDuplicates}, a record whose
+ * digest matches an earlier record is not written again; a
+ * {@link RecordListener} is told the offset of the earlier copy, so
+ * callers can store a reference to it instead.  Duplicate detection
+ * keeps every distinct digest in memory for the life of the writer.
+ * The writer can also build a {@link ChunkBloomIndex} sidecar, which
+ * lets a {@link ChunkScanner} skip blocks of records that cannot
+ * contain a term.
+ */
+public class ChunkWriter implements Closeable, Flushable {
+    /**
+     * When to force written data to the storage device.
+     */
+    public enum SyncPolicy {
+        /** Never force; leave it to the operating system */
+        NONE,
+        /** Force once, when the writer is closed */
+        ON_CLOSE,
+        /** Force after every explicit {@link ChunkWriter#flush} and on close */
+        ON_FLUSH,
+        /** Force after every batch written to the channel */
+        ON_BATCH,
+    }
+
+    /**
+     * Receives the outcome of every record.
+     *
+     * This is called on the writer's I/O thread, in record order, as
+     * each record is copied to the write buffer; the bytes are not
+     * necessarily on disk yet.  Any exception thrown from here,
+     * checked or not, fails the writer.
+     */
+    public interface RecordListener {
+        /**
+         * Report one record.
+         *
+         * @param seq        Zero-based record number, in submission order
+         * @param offset     Offset of the record's bytes relative to
+         *                   where the writer started; for a skipped
+         *                   duplicate, the offset of the earlier copy
+         * @param length     Encoded length in bytes; for a skipped
+         *                   duplicate, the length of the earlier copy
+         * @param digest     Content digest, or <tt>null</tt> if digests
+         *                   are not being computed
+         * @param duplicate  <tt>true</tt> if the record was skipped as
+         *                   a duplicate of an earlier one
+         * @throws IOException  to fail the writer
+         */
+        void recordWritten(long seq, long offset, int length, byte[] digest,
+                           boolean duplicate)
+            throws IOException;
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+    public static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+    /**
+     * Records per string reference namespace, when there is no
+     * {@link ChunkBloomIndex} block size to follow
+     */
+    public static final int NAMESPACE_RECORDS = 256;
+
+    /** How often blocked callers check that the I/O thread is alive */
+    private static final long IO_POLL_MILLIS = 100;
+
+    /** An encoded record, its digest, and its Bloom index hashes */
+    private static class Encoded {
+        final byte[] bytes;
+        final byte[] digest;
+        final long[] pairs;
+
+        Encoded(byte[] bytes, byte[] digest, long[] pairs) {
+            this.bytes = bytes;
+            this.digest = digest;
+            this.pairs = pairs;
+        }
+    }
+
+    /** Queue entry: an encoded record, a flush marker, or end of stream */
+    private static class Pending {
+        final Future<Encoded> encoded;
+        final CountDownLatch flushed;
+
+        Pending(Future<Encoded> encoded, CountDownLatch flushed) {
+            this.encoded = encoded;
+            this.flushed = flushed;
+        }
+    }
+
+    private static final Pending CLOSE = new Pending(null, null);
+
+    /** Where a distinct record was written */
+    private static class Written {
+        final long offset;
+        final int length;
+
+        Written(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final FileChannel channel;
+    private final SyncPolicy sync;
+    private final BlockingQueue<Pending> queue;
+    private final ExecutorService encoders;
+    private final ByteBuffer buffer;
+    private final Thread ioThread;
+    private volatile Throwable failure;
+    /**
+     * Held shared while queueing a record or flush marker, and
+     * exclusively while closing, so nothing is queued behind
+     * {@link #CLOSE}
+     */
+    private final ReadWriteLock gate;
+    private boolean closed;
+    private boolean started;
+
+    private volatile CanonicalCbor canonical;
+    private volatile CanonicalCbor.Namespace namespace;
+    private volatile String digestAlgorithm;
+    private volatile boolean skipDuplicates;
+    private volatile RecordListener listener;
+    private volatile ChunkBloomIndex.Builder bloom;
+    private Path bloomPath;
+
+    /* Owned by the I/O thread */
+    private long base;
+    private long position;
+    private long seq;
+    /** Records written, not counting skipped duplicates */
+    private long written;
+    private final Map<ByteBuffer, Written> seen;
+
+    /**
+     * Create a writer on a new file with default settings.
+     *
+     * The file is created, or truncated if it already exists, and any
+     * Bloom index sidecar of the old file at {@link
+     * ChunkBloomIndex#sidecarFor} is deleted.  This uses one encoder thread per available processor, a queue of
+     * {@link #DEFAULT_QUEUE_CAPACITY} records, batches of
+     * {@link #DEFAULT_BATCH_BYTES} bytes, and syncs on close.
+     *
+     * @param mapper  Object mapper to encode with
+     * @param path    File to write
+     * @throws IOException  if the file cannot be opened
+     */
+    public ChunkWriter(ObjectMapper mapper, Path path) throws IOException {
+        this(mapper, truncate(path), DEFAULT_QUEUE_CAPACITY,
+             Runtime.getRuntime().availableProcessors(),
+             DEFAULT_BATCH_BYTES, SyncPolicy.ON_CLOSE);
+    }
+
+    private static FileChannel truncate(Path path) throws IOException {
+        Files.deleteIfExists(ChunkBloomIndex.sidecarFor(path));
+        return FileChannel.open(path, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Create a writer on an open channel.
+     *
+     * Records are written at the channel's current position, which
+     * may be past the start of the file, or the end of the file for a
+     * channel in append mode.  The writer takes ownership of the channel and closes it in
+     * {@link #close}.
+     *
+     * @param mapper          Object mapper to encode with
+     * @param channel         Channel to write to
+     * @param queueCapacity   Maximum number of records waiting to be
+     *                        written before {@link #write} blocks
+     * @param encoderThreads  Number of background encoder threads,
+     *                        or 0 to encode on the calling thread
+     * @param batchBytes      Size of the direct write buffer
+     * @param sync            When to force data to the device
+     */
+    public ChunkWriter(ObjectMapper mapper, FileChannel channel,
+                       int queueCapacity, int encoderThreads,
+                       int batchBytes, SyncPolicy sync) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity < 1");
+        }
+        if (encoderThreads < 0) {
+            throw new IllegalArgumentException("encoderThreads < 0");
+        }
+        if (batchBytes < 1) {
+            throw new IllegalArgumentException("batchBytes < 1");
+        }
+        this.mapper = mapper;
+        this.channel = channel;
+        this.sync = sync;
+        this.queue = new ArrayBlockingQueue<Pending>(queueCapacity);
+        this.buffer = ByteBuffer.allocateDirect(batchBytes);
+        if (encoderThreads > 0) {
+            this.encoders = Executors.newFixedThreadPool
+                (encoderThreads, daemonThreads("chunk-writer-encoder"));
+        } else {
+            this.encoders = null;
+        }
+        this.ioThread = daemonThreads("chunk-writer-io")
+            .newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            drainQueue();
+                        } catch (Throwable t) {
+                            // Nothing left to drain the queue; enqueue()
+                            // and flush() notice the thread is gone
+                            fail(t);
+                        }
+                    }
+                });
+        this.gate = new ReentrantReadWriteLock();
+        this.closed = false;
+        this.started = false;
+        this.position = 0;
+        this.seq = 0;
+        this.written = 0;
+        this.seen = new HashMap<ByteBuffer, Written>();
+        ioThread.start();
+    }
+
+    /**
+     * Use canonical CBOR encoding.
+     *
+     * This must be called before the first record is written.
+     *
+     * @param c  <tt>true</tt> to encode with {@link CanonicalCbor}
+     */
+    public synchronized void setCanonical(boolean c) {
+        checkNotStarted();
+        canonical = c ? new CanonicalCbor(mapper) : null;
+        namespace = null;
+    }
+
+    /**
+     * Write repeated strings as CBOR string references.
+     *
+     * This implies canonical encoding.  Records are grouped into
+     * blocks, each a stringref namespace in which a text string that
+     * already appeared in the block, such as a feature name, a
+     * frequent term, or a tagger ID, is written as a small integer
+     * reference (tag 25).  The first record of a block is tagged 256
+     * and the rest continue its namespace, so a block can only be
+     * decoded from its start; see {@link CanonicalCbor.Namespace}.
+     * Blocks are the {@link ChunkBloomIndex} blocks when there is an
+     * index, which keeps every block a {@link ChunkScanner} reads
+     * decodable on its own, and otherwise {@value #NAMESPACE_RECORDS}
+     * records.  Records are encoded on the encoder threads as plain
+     * canonical CBOR, which is what digests are computed over, and
+     * the I/O thread rewrites them with references.  The result is
+     * not plain fc01: it can be read by {@link ChunkReader} and
+     * {@link ChunkPublisher}, but not by Jackson's data binding or by
+     * generic stringref decoders, and a record at an offset passed
+     * to a {@link RecordListener} can only be decoded by reading its
+     * block from the start.  Every feature must be of a type {@link CanonicalCbor} knows
+     * about.  This must be called before the first record is
+     * written.
+     *
+     * @param refs  <tt>true</tt> to write string references, or
+     *              <tt>false</tt> for plain, non-canonical encoding
+     */
+    public synchronized void setStringReferences(boolean refs) {
+        checkNotStarted();
+        canonical = refs ? CanonicalCbor.forNamespace(mapper) : null;
+        namespace = refs ? new CanonicalCbor.Namespace() : null;
+    }
+
+    /**
+     * Compute a content digest of every record.
+     *
+     * Digests are computed on the encoding threads and passed to the
+     * {@link RecordListener}.  This must be called before the first
+     * record is written.
+     *
+     * @param algorithm  {@link MessageDigest} algorithm name, or
+     *                   <tt>null</tt> to not compute digests
+     * @throws IllegalArgumentException  if the algorithm is unknown
+     */
+    public synchronized void setDigestAlgorithm(String algorithm) {
+        checkNotStarted();
+        if (algorithm != null) {
+            newDigest(algorithm);
+        } else if (skipDuplicates) {
+            throw new IllegalStateException
+                ("duplicate skipping requires a digest");
+        }
+        digestAlgorithm = algorithm;
+    }
+
+    /**
+     * Skip records whose content digest was already written.
+     *
+     * If no digest algorithm is set, this selects
+     * {@link #DEFAULT_DIGEST_ALGORITHM}.  Since the digest is of the
+     * encoded bytes, this is only reliable together with
+     * {@link #setCanonical}.  This must be called before the first
+     * record is written.
+     *
+     * @param skip  <tt>true</tt> to skip duplicates
+     */
+    public synchronized void setSkipDuplicates(boolean skip) {
+        checkNotStarted();
+        if (skip && digestAlgorithm == null) {
+            digestAlgorithm = DEFAULT_DIGEST_ALGORITHM;
+        }
+        skipDuplicates = skip;
+    }
+
+    /**
+     * Set a listener to be told about every record.
+     *
+     * This must be called before the first record is written.
+     *
+     * @param l  Listener, or <tt>null</tt> for none
+     */
+    public synchronized void setRecordListener(RecordListener l) {
+        checkNotStarted();
+        listener = l;
+    }
+
+    /**
+     * Build a {@link ChunkBloomIndex} of the records written.
+     *
+     * The (feature, term) pairs of each record are hashed on the
+     * encoding threads, and the I/O thread adds them to the current
+     * block's filter, so the cost to the writer is about one hash per
+     * term.  Any existing file at the sidecar path is deleted when
+     * writing starts; the new index is written there when the writer
+     * is closed, and only if every record was written.  Its offsets
+     * are positions in the file, wherever the writer started.
+     * Skipped duplicates are not part of any block.  This must be
+     * called before the first record is written.
+     *
+     * @param path               Sidecar file to write, or
+     *                           <tt>null</tt> to not build an index
+     * @param blockRecords       Number of records per block
+     * @param falsePositiveRate  Target false-positive rate of each
+     *                           block's filter, between 0 and 1
+     * @throws IllegalArgumentException  if a parameter is out of range
+     */
+    public synchronized void setBloomIndex(Path path, int blockRecords,
+                                           double falsePositiveRate) {
+        checkNotStarted();
+        if (path == null) {
+            bloom = null;
+        } else {
+            bloom = new ChunkBloomIndex.Builder(blockRecords,
+                                                falsePositiveRate);
+        }
+        bloomPath = path;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException
+                ("chunk writer options must be set before writing");
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Queue a collection to be written.
+     *
+     * This blocks if the queue is full.  A write that races
+     * {@link #close} is either written before the writer closes or
+     * fails; it is never silently dropped.
+     *
+     * @param fc  Collection to write
+     * @throws IOException  if the writer is closed, an earlier record
+     *                      failed, or if interrupted while waiting
+     *                      for space
+     */
+    public void write(final FeatureCollection fc) throws IOException {
+        gate.readLock().lock();
+        try {
+            checkOpen();
+            submit(fc);
+        } finally {
+            gate.readLock().unlock();
+        }
+        checkFailure();
+    }
+
+    private void submit(final FeatureCollection fc) throws IOException {
+        final CanonicalCbor c = canonical;
+        final String algorithm = digestAlgorithm;
+        final boolean index = (bloom != null);
+        Callable<Encoded> encode = new Callable<Encoded>() {
+            public Encoded call() throws IOException {
+                byte[] bytes = (c != null)
+                    ? c.encode(fc) : mapper.writeValueAsBytes(fc);
+                byte[] digest = null;
+                if (algorithm != null) {
+                    digest = newDigest(algorithm).digest(bytes);
+                }
+                long[] pairs = null;
+                if (index) {
+                    pairs = ChunkBloomIndex.hashes(fc);
+                }
+                return new Encoded(bytes, digest, pairs);
+            }
+        };
+        Future<Encoded> encoded;
+        if (encoders != null) {
+            encoded = encoders.submit(encode);
+        } else {
+            FutureTask<Encoded> task = new FutureTask<Encoded>(encode);
+            task.run();
+            encoded = task;
+        }
+        enqueue(new Pending(encoded, null));
+    }
+
+    /**
+     * Wait until every collection queued so far has been written.
+     *
+     * With {@link SyncPolicy#ON_FLUSH} or {@link SyncPolicy#ON_BATCH},
+     * the data is also forced to the storage device.
+     *
+     * @throws IOException  if any record failed to be written
+     */
+    public void flush() throws IOException {
+        CountDownLatch latch = new CountDownLatch(1);
+        gate.readLock().lock();
+        try {
+            checkOpen();
+            enqueue(new Pending(null, latch));
+        } finally {
+            gate.readLock().unlock();
+        }
+        try {
+            while (!latch.await(IO_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!ioThread.isAlive()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted in flush");
+        }
+        checkFailure();
+        if (latch.getCount() > 0) {
+            throw new IOException("chunk writer I/O thread died");
+        }
+    }
+
+    /**
+     * Write all queued collections and close the writer.
+     *
+     * This stops the background threads and closes the underlying
+     * channel.  Calling this more than once has no further effect.
+     *
+     * @throws IOException  if any record failed to be written
+     */
+    public void close() throws IOException {
+        // Wait for writes that are already queueing; any later ones
+        // see the writer closed
+        gate.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                enqueue(CLOSE);
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted in close");
+            } finally {
+                if (encoders != null) {
+                    encoders.shutdown();
+                }
+                channel.close();
+            }
+            checkFailure();
+            if (bloom != null) {
+                bloom.finish(base + position).write(bloomPath);
+            }
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    private synchronized void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("chunk writer is closed");
+        }
+        if (!started && bloomPath != null) {
+            // An index of whatever was written here before would make
+            // scanners skip blocks of this file
+            Files.deleteIfExists(bloomPath);
+        }
+        started = true;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t != null) {
+            if (t instanceof IOException) {
+                throw new IOException("chunk write failed", t);
+            }
+            throw new IOException("chunk writer failed", t);
+        }
+    }
+
+    private void enqueue(Pending p) throws IOException {
+        try {
+            while (!queue.offer(p, IO_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!ioThread.isAlive()) {
+                    checkFailure();
+                    throw new IOException("chunk writer I/O thread died");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted in write");
+        }
+    }
+
+    /* I/O thread */
+
+    private void drainQueue() {
+        try {
+            base = channel.position();
+        } catch (IOException e) {
+            fail(e);
+        }
+        while (true) {
+            Pending p = queue.poll();
+            if (p == null) {
+                // Idle: write out whatever we have rather than letting
+                // it sit in the buffer
+                writeBuffer(false);
+                try {
+                    p = queue.take();
+                } catch (InterruptedException e) {
+                    fail(e);
+                    continue;
+                }
+            }
+            if (p == CLOSE) {
+                writeBuffer(sync != SyncPolicy.NONE);
+                return;
+            }
+            if (p.flushed != null) {
+                writeBuffer(sync == SyncPolicy.ON_FLUSH ||
+                            sync == SyncPolicy.ON_BATCH);
+                p.flushed.countDown();
+                continue;
+            }
+            if (failure != null) {
+                // Discard, but keep draining so producers never block
+                p.encoded.cancel(false);
+                continue;
+            }
+            try {
+                append(p.encoded.get());
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (InterruptedException e) {
+                fail(e);
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                // A throwing listener, or a channel that cannot be
+                // written, must fail the writer rather than the thread
+                fail(e);
+            }
+        }
+    }
+
+    private void append(Encoded e) throws IOException {
+        long s = seq++;
+        ByteBuffer key = null;
+        if (skipDuplicates) {
+            key = ByteBuffer.wrap(e.digest);
+            Written earlier = seen.get(key);
+            if (earlier != null) {
+                notifyListener(s, earlier.offset, earlier.length, e, true);
+                return;
+            }
+        }
+        byte[] record = e.bytes;
+        if (namespace != null) {
+            ChunkBloomIndex.Builder b = bloom;
+            int block = (b != null) ? b.getBlockRecords() : NAMESPACE_RECORDS;
+            record = namespace.rewrite(record, written % block == 0);
+        }
+        written++;
+        long offset = position;
+        if (key != null) {
+            seen.put(key, new Written(offset, record.length));
+        }
+        position += record.length;
+        if (record.length > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (record.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(record));
+            if (sync == SyncPolicy.ON_BATCH) {
+                channel.force(false);
+            }
+        } else {
+            buffer.put(record);
+        }
+        if (e.pairs != null) {
+            bloom.add(e.pairs, base + offset, record.length);
+        }
+        notifyListener(s, offset, record.length, e, false);
+    }
+
+    private void notifyListener(long s, long offset, int length, Encoded e,
+                                boolean duplicate)
+        throws IOException {
+        RecordListener l = listener;
+        if (l != null) {
+            l.recordWritten(s, offset, length, e.digest, duplicate);
+        }
+    }
+
+    private void writeBuffer(boolean force) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+        if (sync == SyncPolicy.ON_BATCH) {
+            channel.force(false);
+        }
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" +
+                                      count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
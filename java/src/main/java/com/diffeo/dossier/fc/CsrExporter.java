@@ -0,0 +1,419 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Converts chunk files to columnar {@link CsrMatrix} files.
+ *
+ * Each requested {@link StringCounter} feature becomes one matrix
+ * file, with one row per collection across all of the input chunks
+ * (in input order) and one column per distinct term.  A collection
+ * that lacks the feature, or where it is not a string counter, gets
+ * an empty row, so row <i>i</i> refers to the same collection in
+ * every exported feature.
+ *
+ * Conversion streams: input chunks are decoded in parallel, each on
+ * its own thread using {@link ChunkReader#readInto}, writing rows as
+ * (term ID, count) pairs to temporary files and sharing one concurrent
+ * term dictionary per feature.  Then each feature's matrix file is
+ * assembled in parallel from the temporary files, renumbering columns
+ * into sorted term order.  Only the term dictionaries are held in
+ * memory.
+ *
+ * <pre>
+ * CsrExporter exporter = new CsrExporter(mapper, 8, tmpDir);
+ * Map&lt;String, File&gt; outputs = new HashMap&lt;String, File&gt;();
+ * outputs.put("NAME", new File("NAME.csr"));
+ * exporter.export(chunkFiles, outputs);
+ * </pre>
+ */
+public class CsrExporter {
+    private final ObjectMapper mapper;
+    private final int threads;
+    private final File tmpDir;
+
+    /**
+     * Create an exporter.
+     *
+     * @param mapper   Object mapper for reading the chunks
+     * @param threads  Number of worker threads
+     * @param tmpDir   Directory for temporary files, or <tt>null</tt>
+     *                 for the system default
+     */
+    public CsrExporter(ObjectMapper mapper, int threads, File tmpDir) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        this.mapper = mapper;
+        this.threads = threads;
+        this.tmpDir = tmpDir;
+    }
+
+    /** Concurrent term-to-ID assignment for one feature */
+    private static class Dictionary {
+        final ConcurrentHashMap<String, Integer> ids =
+            new ConcurrentHashMap<String, Integer>();
+        final AtomicInteger next = new AtomicInteger();
+
+        int id(String term) {
+            Integer id = ids.get(term);
+            if (id == null) {
+                Integer fresh = next.getAndIncrement();
+                id = ids.putIfAbsent(term, fresh);
+                if (id == null) {
+                    id = fresh;
+                }
+                // A lost race leaves a gap in the IDs, which the
+                // final renumbering removes
+            }
+            return id.intValue();
+        }
+    }
+
+    /** Result of decoding one input chunk */
+    private static class Part {
+        int rows;
+        long[] nnz;
+        File[] rowFiles;
+    }
+
+    /**
+     * Export features from a list of chunk files.
+     *
+     * @param chunks   Input chunk files, in row order
+     * @param outputs  Map from feature name to the matrix file to write
+     * @return         Number of rows (collections) exported
+     * @throws IOException  if reading or writing fails
+     */
+    public int export(List<File> chunks, Map<String, File> outputs)
+        throws IOException {
+        final String[] names =
+            outputs.keySet().toArray(new String[outputs.size()]);
+        final Dictionary[] dicts = new Dictionary[names.length];
+        for (int f = 0; f < names.length; f++) {
+            dicts[f] = new Dictionary();
+        }
+        final File work = (tmpDir == null)
+            ? Files.createTempDirectory("fc-csr").toFile()
+            : Files.createTempDirectory(tmpDir.toPath(), "fc-csr").toFile();
+        ExecutorService pool = Executors.newFixedThreadPool
+            (threads, ChunkWriter.daemonThreads("csr-exporter"));
+        List<Part> parts = new ArrayList<Part>();
+        try {
+            List<Future<Part>> decoded = new ArrayList<Future<Part>>();
+            for (int i = 0; i < chunks.size(); i++) {
+                final File input = chunks.get(i);
+                final int index = i;
+                decoded.add(pool.submit(new Callable<Part>() {
+                        public Part call() throws IOException {
+                            return decode(input, index, names, dicts, work);
+                        }
+                    }));
+            }
+            long rows = 0;
+            for (Future<Part> f : decoded) {
+                Part p = await(f);
+                parts.add(p);
+                rows += p.rows;
+            }
+            if (rows > Integer.MAX_VALUE) {
+                throw new IOException("too many rows for a CSR matrix");
+            }
+
+            final List<Part> allParts = parts;
+            final int numRows = (int)rows;
+            List<Future<Void>> assembled = new ArrayList<Future<Void>>();
+            for (int f = 0; f < names.length; f++) {
+                final int feature = f;
+                final File out = outputs.get(names[f]);
+                assembled.add(pool.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            assemble(allParts, feature, numRows,
+                                     dicts[feature], out);
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Void> f : assembled) {
+                await(f);
+            }
+            return numRows;
+        } finally {
+            pool.shutdownNow();
+            for (Part p : parts) {
+                for (File rf : p.rowFiles) {
+                    rf.delete();
+                }
+            }
+            File[] leftovers = work.listFiles();
+            if (leftovers != null) {
+                for (File rf : leftovers) {
+                    rf.delete();
+                }
+            }
+            work.delete();
+        }
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("CSR export failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("CSR export interrupted");
+        }
+    }
+
+    /* Phase 1: decode one chunk into per-feature row files */
+
+    private Part decode(File input, int index, String[] names,
+                        Dictionary[] dicts, File work)
+        throws IOException {
+        Part part = new Part();
+        part.nnz = new long[names.length];
+        part.rowFiles = new File[names.length];
+        DataOutputStream[] outs = new DataOutputStream[names.length];
+        ChunkReader reader = new ChunkReader(mapper, new FileInputStream(input));
+        try {
+            for (int f = 0; f < names.length; f++) {
+                part.rowFiles[f] = new File(work, index + "-" + f);
+                outs[f] = new DataOutputStream(new BufferedOutputStream
+                    (new FileOutputStream(part.rowFiles[f]), 1 << 16));
+            }
+            FeatureCollection fc = new FeatureCollection();
+            while (reader.readInto(fc)) {
+                for (int f = 0; f < names.length; f++) {
+                    Feature feat = fc.getFeatures().get(names[f]);
+                    if (!(feat instanceof StringCounter)) {
+                        outs[f].writeInt(0);
+                        continue;
+                    }
+                    Map<String, Integer> strings =
+                        ((StringCounter)feat).getStrings();
+                    outs[f].writeInt(strings.size());
+                    for (Map.Entry<String, Integer> e : strings.entrySet()) {
+                        outs[f].writeInt(dicts[f].id(e.getKey()));
+                        outs[f].writeInt(e.getValue().intValue());
+                    }
+                    part.nnz[f] += strings.size();
+                }
+                part.rows++;
+            }
+        } finally {
+            reader.close();
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        return part;
+    }
+
+    /* Phase 2: assemble one feature's matrix file */
+
+    private static void assemble(List<Part> parts, int feature, int numRows,
+                                 Dictionary dict, File output)
+        throws IOException {
+        // Renumber columns in UTF-8 byte order
+        int maxId = dict.next.get();
+        final byte[][] utf8 = new byte[maxId][];
+        for (Map.Entry<String, Integer> e : dict.ids.entrySet()) {
+            utf8[e.getValue()] = e.getKey().getBytes(StandardCharsets.UTF_8);
+        }
+        Integer[] order = new Integer[dict.ids.size()];
+        int n = 0;
+        for (int id = 0; id < maxId; id++) {
+            if (utf8[id] != null) {
+                order[n++] = id;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return compareUtf8(utf8[a], utf8[b]);
+                }
+            });
+        int[] remap = new int[maxId];
+        long dictBytes = 0;
+        for (int col = 0; col < order.length; col++) {
+            remap[order[col]] = col;
+            dictBytes += utf8[order[col]].length;
+        }
+        long nnz = 0;
+        for (Part p : parts) {
+            nnz += p.nnz[feature];
+        }
+
+        long rowPtrOffset = CsrMatrix.HEADER_BYTES;
+        long colOffset = rowPtrOffset + 8L * (numRows + 1);
+        long valOffset = colOffset + CsrMatrix.align8(4 * nnz);
+        long termPtrOffset = valOffset + CsrMatrix.align8(4 * nnz);
+        long termBytesOffset = termPtrOffset + 8L * (order.length + 1);
+
+        FileChannel ch = FileChannel.open
+            (output.toPath(), StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            SectionWriter header = new SectionWriter(ch, 0);
+            header.putInt(CsrMatrix.MAGIC);
+            header.putInt(CsrMatrix.VERSION);
+            header.putInt(numRows);
+            header.putInt(order.length);
+            header.putLong(nnz);
+            header.putLong(dictBytes);
+            header.flush();
+
+            SectionWriter rowPtrs = new SectionWriter(ch, rowPtrOffset);
+            SectionWriter cols = new SectionWriter(ch, colOffset);
+            SectionWriter vals = new SectionWriter(ch, valOffset);
+            long[] row = new long[16];
+            long k = 0;
+            rowPtrs.putLong(0);
+            for (Part p : parts) {
+                DataInputStream in = new DataInputStream
+                    (new BufferedInputStream
+                     (new FileInputStream(p.rowFiles[feature]), 1 << 16));
+                try {
+                    for (int r = 0; r < p.rows; r++) {
+                        int len = in.readInt();
+                        if (len > row.length) {
+                            row = new long[Math.max(len, 2 * row.length)];
+                        }
+                        for (int i = 0; i < len; i++) {
+                            int col = remap[in.readInt()];
+                            int val = in.readInt();
+                            row[i] = ((long)col << 32) | (val & 0xffffffffL);
+                        }
+                        Arrays.sort(row, 0, len);
+                        for (int i = 0; i < len; i++) {
+                            cols.putInt((int)(row[i] >>> 32));
+                            vals.putInt((int)row[i]);
+                        }
+                        k += len;
+                        rowPtrs.putLong(k);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            rowPtrs.flush();
+            cols.flush();
+            vals.flush();
+
+            SectionWriter termPtrs = new SectionWriter(ch, termPtrOffset);
+            SectionWriter terms = new SectionWriter(ch, termBytesOffset);
+            long pos = 0;
+            termPtrs.putLong(0);
+            for (int col = 0; col < order.length; col++) {
+                byte[] b = utf8[order[col]];
+                terms.put(b);
+                pos += b.length;
+                termPtrs.putLong(pos);
+            }
+            termPtrs.flush();
+            terms.flush();
+        } finally {
+            ch.close();
+        }
+    }
+
+    static int compareUtf8(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /** Buffered little-endian writer at a fixed file position */
+    private static class SectionWriter {
+        private final FileChannel ch;
+        private long pos;
+        private final ByteBuffer buf;
+
+        SectionWriter(FileChannel ch, long pos) {
+            this.ch = ch;
+            this.pos = pos;
+            this.buf = ByteBuffer.allocate(1 << 16)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void putInt(int v) throws IOException {
+            if (buf.remaining() < 4) {
+                flush();
+            }
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            if (buf.remaining() < 8) {
+                flush();
+            }
+            buf.putLong(v);
+        }
+
+        void put(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                if (!buf.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(buf.remaining(), b.length - off);
+                buf.put(b, off, n);
+                off += n;
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                pos += ch.write(buf, pos);
+            }
+            buf.clear();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped sparse matrix of one feature across many collections.
+ *
+ * Files in this format are produced by {@link CsrExporter}.  Row
+ * <i>i</i> is the <i>i</i>-th collection of the exported chunks, and
+ * each column is a term of the feature, so a row holds the
+ * {@link StringCounter} of one collection in compressed sparse row
+ * (CSR) form.  Within a row, entries are sorted by column, and
+ * columns are numbered in the order of the terms' UTF-8 bytes.
+ *
+ * The accessors read straight from the mapped file and allocate
+ * nothing, except for {@link #term} and {@link #indexOf}, which
+ * convert between columns and strings:
+ *
+ * <pre>
+ * CsrMatrix m = CsrMatrix.open(new File("NAME.csr"));
+ * for (int row = 0; row &lt; m.getNumRows(); row++) {
+ *     for (long k = m.rowStart(row); k &lt; m.rowEnd(row); k++) {
+ *         int col = m.column(k);
+ *         int count = m.value(k);
+ *     }
+ * }
+ * m.close();
+ * </pre>
+ *
+ * The file is little-endian, with every section aligned to 8 bytes,
+ * so it can also be mapped directly by non-Java tools:
+ *
+ * <pre>
+ * offset 0   "FCSR" magic
+ *        4   int32 version (1)
+ *        8   int32 number of rows R
+ *        12  int32 number of terms T
+ *        16  int64 number of entries N
+ *        24  int64 total dictionary bytes D
+ *        32  int64[R+1] row pointers
+ *            int32[N]   column indexes, padded to 8 bytes
+ *            int32[N]   values, padded to 8 bytes
+ *            int64[T+1] term offsets into the dictionary bytes
+ *            byte[D]    UTF-8 term bytes
+ * </pre>
+ *
+ * Reading is thread-safe; closing while other threads read is not.
+ */
+public class CsrMatrix implements Closeable {
+    static final int MAGIC = 0x52534346;  // "FCSR" little-endian
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    /** Mapping granularity; a multiple of 8 so aligned reads never split */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+
+    private MappedByteBuffer[] segments;
+    private final int numRows;
+    private final int numTerms;
+    private final long nnz;
+    private final long rowPtrOffset;
+    private final long colOffset;
+    private final long valOffset;
+    private final long termPtrOffset;
+    private final long termBytesOffset;
+
+    private CsrMatrix(MappedByteBuffer[] segments) throws IOException {
+        this.segments = segments;
+        if (segments.length == 0 || segments[0].capacity() < HEADER_BYTES ||
+            getInt(0) != MAGIC) {
+            throw new IOException("not a CSR matrix file");
+        }
+        if (getInt(4) != VERSION) {
+            throw new IOException("unsupported CSR version " + getInt(4));
+        }
+        numRows = getInt(8);
+        numTerms = getInt(12);
+        nnz = getLong(16);
+        rowPtrOffset = HEADER_BYTES;
+        colOffset = rowPtrOffset + 8L * (numRows + 1);
+        valOffset = colOffset + align8(4 * nnz);
+        termPtrOffset = valOffset + align8(4 * nnz);
+        termBytesOffset = termPtrOffset + 8L * (numTerms + 1);
+    }
+
+    /**
+     * Map a matrix file.
+     *
+     * @param f  File written by {@link CsrExporter}
+     * @return   Open matrix
+     * @throws IOException  if the file cannot be mapped or is invalid
+     */
+    public static CsrMatrix open(File f) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            int n = (int)((size + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT);
+            MappedByteBuffer[] segments = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = (long)i << SEGMENT_SHIFT;
+                segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+                                     Math.min(SEGMENT_BYTES, size - start));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new CsrMatrix(segments);
+        } finally {
+            // Mappings stay valid after the channel is closed
+            ch.close();
+        }
+    }
+
+    static long align8(long n) {
+        return (n + 7) & ~7L;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    /**
+     * Get the total number of stored entries.
+     *
+     * @return  Number of nonzero entries in all rows
+     */
+    public long getNnz() {
+        return nnz;
+    }
+
+    /**
+     * Get the position of a row's first entry.
+     *
+     * @param row  Zero-based row index
+     * @return     Index of the row's first entry
+     */
+    public long rowStart(int row) {
+        checkRow(row);
+        return getLong(rowPtrOffset + 8L * row);
+    }
+
+    /**
+     * Get the position just past a row's last entry.
+     *
+     * @param row  Zero-based row index
+     * @return     Index one past the row's last entry
+     */
+    public long rowEnd(int row) {
+        checkRow(row);
+        return getLong(rowPtrOffset + 8L * (row + 1));
+    }
+
+    /**
+     * Get the column of an entry.
+     *
+     * @param k  Entry index, from {@link #rowStart} and {@link #rowEnd}
+     * @return   Column (term index)
+     */
+    public int column(long k) {
+        checkEntry(k);
+        return getInt(colOffset + 4 * k);
+    }
+
+    /**
+     * Get the value of an entry.
+     *
+     * @param k  Entry index, from {@link #rowStart} and {@link #rowEnd}
+     * @return   Count of the term in the row's collection
+     */
+    public int value(long k) {
+        checkEntry(k);
+        return getInt(valOffset + 4 * k);
+    }
+
+    /**
+     * Get the term for a column.
+     *
+     * @param col  Column index
+     * @return     The term string
+     */
+    public String term(int col) {
+        if (col < 0 || col >= numTerms) {
+            throw new IndexOutOfBoundsException("column " + col);
+        }
+        long start = getLong(termPtrOffset + 8L * col);
+        long end = getLong(termPtrOffset + 8L * (col + 1));
+        byte[] utf8 = new byte[(int)(end - start)];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = getByte(termBytesOffset + start + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the column for a term.
+     *
+     * @param term  Term to look up
+     * @return      Its column, or -1 if the term never occurs
+     */
+    public int indexOf(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = numTerms - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareTerm(mid, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unmap the file.
+     *
+     * The matrix must not be used afterwards.
+     */
+    public void close() {
+        if (segments == null) {
+            return;
+        }
+        for (MappedByteBuffer b : segments) {
+            DirectBuffers.free(b);
+        }
+        segments = null;
+    }
+
+    private int compareTerm(int col, byte[] key) {
+        long start = getLong(termPtrOffset + 8L * col);
+        long end = getLong(termPtrOffset + 8L * (col + 1));
+        long len = end - start;
+        for (int i = 0; i < len && i < key.length; i++) {
+            int a = getByte(termBytesOffset + start + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return Long.signum(len - key.length);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= numRows) {
+            throw new IndexOutOfBoundsException("row " + row);
+        }
+    }
+
+    private void checkEntry(long k) {
+        if (k < 0 || k >= nnz) {
+            throw new IndexOutOfBoundsException("entry " + k);
+        }
+    }
+
+    private int getInt(long pos) {
+        return segments[(int)(pos >>> SEGMENT_SHIFT)]
+            .getInt((int)(pos & (SEGMENT_BYTES - 1)));
+    }
+
+    private long getLong(long pos) {
+        return segments[(int)(pos >>> SEGMENT_SHIFT)]
+            .getLong((int)(pos & (SEGMENT_BYTES - 1)));
+    }
+
+    private byte getByte(long pos) {
+        return segments[(int)(pos >>> SEGMENT_SHIFT)]
+            .get((int)(pos & (SEGMENT_BYTES - 1)));
+    }
+}
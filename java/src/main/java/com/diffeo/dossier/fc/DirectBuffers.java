@@ -0,0 +1,68 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Explicit release of direct buffer memory.
+ *
+ * Direct buffers are normally only freed when the garbage collector
+ * notices the buffer object is unreachable, which can be long after
+ * a large off-heap structure is done with.  Where the JVM provides
+ * <tt>sun.misc.Unsafe.invokeCleaner</tt> (Java 9 and later), this
+ * frees the memory immediately; elsewhere it does nothing, and the
+ * memory is reclaimed by the collector as usual.
+ */
+final class DirectBuffers {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * Free a direct buffer's memory.
+     *
+     * The buffer, and every view of it, must never be used again.
+     * Heap buffers, slices, and duplicates are ignored.
+     *
+     * @param b  Buffer to free, or <tt>null</tt>
+     */
+    static void free(ByteBuffer b) {
+        if (b == null || !b.isDirect() || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, b);
+        } catch (Exception e) {
+            // Slices and duplicates have no cleaner of their own;
+            // leave them to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Per-feature document frequencies over a corpus.
+ *
+ * The document frequency of a term in a feature is the number of
+ * collections whose counter for that feature contains the term,
+ * regardless of its count there.  A table also records the number of
+ * collections it has seen, so it has everything needed to compute
+ * inverse document frequencies; see {@link TfIdfVectorizer}.
+ *
+ * Tables are mergeable: a table built from one part of a corpus can
+ * be {@link #merge merged} with a table from another part, and the
+ * result is the same as a table built from both.  {@link #compute}
+ * uses this to build the table for a list of chunk files in
+ * parallel.
+ *
+ * <pre>
+ * DocumentFrequencies df = DocumentFrequencies.compute(mapper, chunks, 8);
+ * int n = df.getDocumentFrequency("NAME", "john smith");
+ * </pre>
+ *
+ * {@link StringCounter}, {@link PrefixCounter}, and
+ * {@link OffHeapStringCounter} features are counted; other features
+ * are ignored.  Instances are not thread-safe.
+ */
+public class DocumentFrequencies {
+    private final Map<String, Map<String, Integer>> tables;
+    private long documents;
+
+    /**
+     * Create an empty table.
+     */
+    public DocumentFrequencies() {
+        tables = new HashMap<String, Map<String, Integer>>();
+        documents = 0;
+    }
+
+    /**
+     * Count the terms of one collection.
+     *
+     * @param fc  Collection to add
+     */
+    public void add(FeatureCollection fc) {
+        documents++;
+        for (Map.Entry<String, Feature> e : fc.rawFeatures().entrySet()) {
+            Map<String, Integer> strings =
+                FeatureCollectionSum.counts(e.getValue());
+            if (strings == null) {
+                continue;
+            }
+            Map<String, Integer> table = table(e.getKey());
+            for (String term : strings.keySet()) {
+                Integer old = table.get(term);
+                table.put(term, (old == null) ? 1 : old.intValue() + 1);
+            }
+        }
+    }
+
+    /**
+     * Add another table's counts to this one.
+     *
+     * The other table is not modified.
+     *
+     * @param other  Table to merge in
+     */
+    public void merge(DocumentFrequencies other) {
+        documents += other.documents;
+        for (Map.Entry<String, Map<String, Integer>> e :
+                 other.tables.entrySet()) {
+            Map<String, Integer> table = table(e.getKey());
+            for (Map.Entry<String, Integer> t : e.getValue().entrySet()) {
+                Integer old = table.get(t.getKey());
+                int n = t.getValue().intValue();
+                table.put(t.getKey(), (old == null) ? n : old.intValue() + n);
+            }
+        }
+    }
+
+    private Map<String, Integer> table(String feature) {
+        Map<String, Integer> table = tables.get(feature);
+        if (table == null) {
+            table = new HashMap<String, Integer>();
+            tables.put(feature, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the number of collections counted.
+     *
+     * @return  Number of documents
+     */
+    public long getDocumentCount() {
+        return documents;
+    }
+
+    /**
+     * Get the names of the features with any terms.
+     *
+     * @return  Unmodifiable set of feature names
+     */
+    public Set<String> getFeatureNames() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    /**
+     * Get the document frequencies of one feature.
+     *
+     * @param feature  Feature name
+     * @return         Unmodifiable map of terms to document
+     *                 frequencies, empty if the feature was never seen
+     */
+    public Map<String, Integer> getFrequencies(String feature) {
+        Map<String, Integer> table = tables.get(feature);
+        if (table == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * Get the document frequency of a term.
+     *
+     * @param feature  Feature name
+     * @param term     Term
+     * @return         Number of collections containing the term
+     */
+    public int getDocumentFrequency(String feature, String term) {
+        Map<String, Integer> table = tables.get(feature);
+        if (table == null) {
+            return 0;
+        }
+        Integer n = table.get(term);
+        return (n == null) ? 0 : n.intValue();
+    }
+
+    /**
+     * Compute the document frequencies of a list of chunk files.
+     *
+     * Each worker thread takes chunk files one at a time and counts
+     * them into its own table, decoding with
+     * {@link ChunkReader#readInto}; the per-thread tables are then
+     * merged pairwise, also in parallel.
+     *
+     * @param mapper   Object mapper for reading the chunks
+     * @param chunks   Input chunk files
+     * @param threads  Number of worker threads
+     * @return         Table for the whole corpus
+     * @throws IOException  if reading fails
+     */
+    public static DocumentFrequencies compute(final ObjectMapper mapper,
+                                              final List<File> chunks,
+                                              int threads)
+        throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        int workers = Math.max(1, Math.min(threads, chunks.size()));
+        ExecutorService pool = Executors.newFixedThreadPool
+            (workers, ChunkWriter.daemonThreads("document-frequencies"));
+        try {
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<DocumentFrequencies>> counted =
+                new ArrayList<Future<DocumentFrequencies>>();
+            for (int w = 0; w < workers; w++) {
+                counted.add(pool.submit(new Callable<DocumentFrequencies>() {
+                        public DocumentFrequencies call() throws IOException {
+                            DocumentFrequencies df = new DocumentFrequencies();
+                            int i = next.getAndIncrement();
+                            while (i < chunks.size()) {
+                                df.addChunk(mapper, chunks.get(i));
+                                i = next.getAndIncrement();
+                            }
+                            return df;
+                        }
+                    }));
+            }
+            List<DocumentFrequencies> partials =
+                new ArrayList<DocumentFrequencies>();
+            for (Future<DocumentFrequencies> f : counted) {
+                partials.add(await(f));
+            }
+            // Merge adjacent pairs until one table is left
+            while (partials.size() > 1) {
+                List<Future<DocumentFrequencies>> merged =
+                    new ArrayList<Future<DocumentFrequencies>>();
+                for (int i = 0; i + 1 < partials.size(); i += 2) {
+                    final DocumentFrequencies a = partials.get(i);
+                    final DocumentFrequencies b = partials.get(i + 1);
+                    merged.add(pool.submit(new Callable<DocumentFrequencies>() {
+                            public DocumentFrequencies call() {
+                                return mergeLarger(a, b);
+                            }
+                        }));
+                }
+                List<DocumentFrequencies> round =
+                    new ArrayList<DocumentFrequencies>();
+                for (Future<DocumentFrequencies> f : merged) {
+                    round.add(await(f));
+                }
+                if (partials.size() % 2 == 1) {
+                    round.add(partials.get(partials.size() - 1));
+                }
+                partials = round;
+            }
+            return partials.get(0);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void addChunk(ObjectMapper mapper, File chunk) throws IOException {
+        ChunkReader reader =
+            new ChunkReader(mapper, new FileInputStream(chunk));
+        try {
+            FeatureCollection fc = new FeatureCollection();
+            while (reader.readInto(fc)) {
+                add(fc);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Merge the table with fewer terms into the other one */
+    private static DocumentFrequencies mergeLarger(DocumentFrequencies a,
+                                                   DocumentFrequencies b) {
+        if (a.terms() < b.terms()) {
+            b.merge(a);
+            return b;
+        }
+        a.merge(b);
+        return a;
+    }
+
+    private long terms() {
+        long n = 0;
+        for (Map<String, Integer> table : tables.values()) {
+            n += table.size();
+        }
+        return n;
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("document frequency count failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException
+                ("document frequency count interrupted");
+        }
+    }
+}
@@ -99,6 +99,16 @@ public class FeatureCollection {
         readOnly = ro;
     }
 
+    /**
+     * Get the underlying dictionary of features, ignoring the
+     * read-only flag.
+     *
+     * This is used by readers that recycle collections in place.
+     */
+    Map<String, Feature> rawFeatures() {
+        return features;
+    }
+
     /* Object methods */
 
     @Override
@@ -139,6 +149,20 @@ public class FeatureCollection {
 
     public static final int CBOR_STRING_COUNTER = 55800;
     public static final int CBOR_SPARSE_VECTOR = 55801;
+    public static final int CBOR_FEATURE_TOKENS = 55804;
+    public static final int CBOR_GEO_COORDS = 55805;
+    /** Tag of a {@link FeatureCollectionDelta.CounterPatch} */
+    public static final int CBOR_COUNTER_PATCH = 55806;
+
+    /**
+     * Prefix on names of features that contain {@link FeatureTokens}.
+     */
+    public static final String TOKEN_PREFIX = "@";
+
+    /**
+     * Prefix on names of features that contain {@link GeoCoords}.
+     */
+    public static final String GEOCOORDS_PREFIX = "!";
 
     @JsonPropertyOrder({"v", "ro"})
     public static class Metadata {
@@ -170,6 +194,15 @@ public class FeatureCollection {
                 if (tag == CBOR_STRING_COUNTER) {
                     return dctx.readValue(jp, StringCounter.class);
                 }
+                if (tag == CBOR_SPARSE_VECTOR) {
+                    return dctx.readValue(jp, SparseVector.class);
+                }
+                if (tag == CBOR_FEATURE_TOKENS) {
+                    return dctx.readValue(jp, FeatureTokens.class);
+                }
+                if (tag == CBOR_GEO_COORDS) {
+                    return dctx.readValue(jp, GeoCoords.class);
+                }
                 if (tag != -1) {
                     throw new InvalidFormatException
                         ("unexpected CBOR tag " + tag, jp, Feature.class);
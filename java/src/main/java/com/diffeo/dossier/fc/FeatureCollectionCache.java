@@ -0,0 +1,305 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory-bounded cache of decoded feature collections.
+ *
+ * Collections are cached by record id and weighed with
+ * {@link MemoryEstimator}, and the cache evicts the least recently
+ * used collections whenever their total estimated size would exceed
+ * a byte budget.  Every collection in the cache is marked read-only
+ * when it is added, so that a cached collection can be handed to any
+ * number of threads at once.
+ *
+ * <pre>
+ * FeatureCollectionCache cache = new FeatureCollectionCache(512L &lt;&lt; 20);
+ * FeatureCollection fc = cache.get(id, new FeatureCollectionCache.Loader() {
+ *         public FeatureCollection load(String id) throws IOException {
+ *             return store.read(id);
+ *         }
+ *     });
+ * </pre>
+ *
+ * For concurrency, the cache is split into independently locked
+ * segments by the hash of the id, each with an equal share of the
+ * budget; the least recently used entry is evicted from within a
+ * segment.  A collection larger than a segment's share is returned
+ * but never cached.  Loads run outside any lock, so two threads that
+ * miss on the same id at once may both load it; the last one to
+ * finish is cached.
+ *
+ * The cache counts hits, misses, evictions, and rejections of
+ * oversized collections; these counters are cumulative and are not
+ * reset by {@link #invalidateAll}.
+ */
+public class FeatureCollectionCache {
+    /**
+     * Produces a collection on a cache miss.
+     */
+    public interface Loader {
+        /**
+         * Load a collection.
+         *
+         * @param id  Record id that was not in the cache
+         * @return    The collection, or <tt>null</tt> if there is none
+         * @throws IOException  if loading fails
+         */
+        FeatureCollection load(String id) throws IOException;
+    }
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Create a cache with {@link #DEFAULT_SEGMENTS} segments.
+     *
+     * @param maxBytes  Budget for the estimated size of all entries
+     */
+    public FeatureCollectionCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes  Budget for the estimated size of all entries
+     * @param segments  Number of independently locked segments
+     */
+    public FeatureCollectionCache(long maxBytes, int segments) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments < 1");
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(maxBytes / segments);
+        }
+    }
+
+    private Segment segment(String id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Get a cached collection.
+     *
+     * This counts as a hit or a miss.
+     *
+     * @param id  Record id
+     * @return    The read-only collection, or <tt>null</tt>
+     */
+    public FeatureCollection getIfPresent(String id) {
+        FeatureCollection fc = segment(id).get(id);
+        if (fc != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return fc;
+    }
+
+    /**
+     * Get a collection, loading and caching it on a miss.
+     *
+     * @param id      Record id
+     * @param loader  Loader to call on a miss
+     * @return        The read-only collection, or <tt>null</tt> if
+     *                the loader returned <tt>null</tt>
+     * @throws IOException  if the loader fails
+     */
+    public FeatureCollection get(String id, Loader loader)
+        throws IOException {
+        FeatureCollection fc = getIfPresent(id);
+        if (fc == null) {
+            fc = loader.load(id);
+            if (fc != null) {
+                put(id, fc);
+            }
+        }
+        return fc;
+    }
+
+    /**
+     * Add a collection to the cache.
+     *
+     * The collection is marked read-only, and replaces any collection
+     * already cached under the same id.  This may evict other
+     * collections.
+     *
+     * @param id  Record id
+     * @param fc  Collection to cache
+     */
+    public void put(String id, FeatureCollection fc) {
+        fc.setReadOnly(true);
+        long weight = MemoryEstimator.estimate(id) +
+            MemoryEstimator.estimate(fc);
+        segment(id).put(id, fc, weight);
+    }
+
+    /**
+     * Remove a collection from the cache.
+     *
+     * @param id  Record id
+     */
+    public void invalidate(String id) {
+        segment(id).remove(id);
+    }
+
+    /**
+     * Remove every collection from the cache.
+     */
+    public void invalidateAll() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached collections.
+     *
+     * @return  Number of entries
+     */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    /**
+     * Get the estimated size of all cached collections.
+     *
+     * @return  Sum of the entries' weights in bytes
+     */
+    public long getWeightedSize() {
+        long n = 0;
+        for (Segment s : segments) {
+            n += s.weight();
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of collections evicted to stay within budget.
+     *
+     * Explicit invalidations and replacements are not counted.
+     *
+     * @return  Number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of collections too large to cache.
+     *
+     * @return  Number of rejected {@link #put} calls
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Get the fraction of lookups that were hits.
+     *
+     * @return  Hit rate between 0 and 1, or 0 before any lookups
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : (double)h / total;
+    }
+
+    private static class Entry {
+        final FeatureCollection fc;
+        final long weight;
+
+        Entry(FeatureCollection fc, long weight) {
+            this.fc = fc;
+            this.weight = weight;
+        }
+    }
+
+    /** One lock's worth of the cache, in access order */
+    private class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<String, Entry> map =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private long weight = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized FeatureCollection get(String id) {
+            Entry e = map.get(id);
+            return (e == null) ? null : e.fc;
+        }
+
+        synchronized void put(String id, FeatureCollection fc, long w) {
+            remove(id);
+            if (w > maxBytes) {
+                rejections.incrementAndGet();
+                return;
+            }
+            Iterator<Entry> it = map.values().iterator();
+            while (weight + w > maxBytes && it.hasNext()) {
+                weight -= it.next().weight;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+            map.put(id, new Entry(fc, w));
+            weight += w;
+        }
+
+        synchronized void remove(String id) {
+            Entry e = map.remove(id);
+            if (e != null) {
+                weight -= e.weight;
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORParser;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * The difference between two feature collections.
+ *
+ * A delta records what must change to turn one collection into
+ * another: features that were removed, features that were added or
+ * replaced outright, and, for {@link StringCounter} features present
+ * on both sides, a {@link CounterPatch} listing only the terms whose
+ * counts changed or disappeared.  For large collections that change
+ * slowly, the delta is much smaller than the collection itself.
+ *
+ * <pre>
+ * FeatureCollectionDelta delta = FeatureCollectionDelta.diff(before, after);
+ * byte[] bytes = mapper.writeValueAsBytes(delta);
+ * // ...elsewhere...
+ * FeatureCollectionDelta delta =
+ *     mapper.readValue(bytes, FeatureCollectionDelta.class);
+ * delta.apply(copyOfBefore);
+ * assert copyOfBefore.equals(after);
+ * </pre>
+ *
+ * A delta holds references to the replacement features of the
+ * target collection rather than copies, but {@link #apply} places a
+ * copy of each in the patched collection, so one delta can be
+ * applied to any number of collections without them sharing mutable
+ * features with each other or with the target.
+ *
+ * The serialized form mirrors a feature collection:
+ *
+ * <pre>
+ * [{"v": "fcd1", "ro": 1},
+ *  {"removed": null,
+ *   "replaced": "any feature",
+ *   "patched": 55806({"changed term": 3, "removed term": null})}]
+ * </pre>
+ *
+ * The metadata's <tt>ro</tt> flag is the read-only flag of the
+ * target collection.  Each feature entry is <tt>null</tt> to remove
+ * the feature, a counter patch tagged
+ * {@link FeatureCollection#CBOR_COUNTER_PATCH}, or else an ordinary
+ * feature representation that replaces the feature.  Like the other
+ * feature tags, the patch tag is only meaningful in CBOR, so a delta
+ * with patches can only be serialized as CBOR.
+ */
+@JsonSerialize(using=FeatureCollectionDelta.Serializer.class)
+@JsonDeserialize(using=FeatureCollectionDelta.Deserializer.class)
+public class FeatureCollectionDelta {
+    public static final String DELTA_VERSION = "fcd1";
+
+    /** Encoding for copying features that have no cheaper copy */
+    private static final ObjectMapper CBOR =
+        new ObjectMapper(new CBORFactory());
+
+    private final Set<String> removed;
+    private final Map<String, Feature> replaced;
+    private final Map<String, CounterPatch> patches;
+    private boolean readOnly;
+
+    /**
+     * Create an empty delta.
+     *
+     * Applying it only clears the read-only flag.
+     */
+    public FeatureCollectionDelta() {
+        removed = new HashSet<String>();
+        replaced = new HashMap<String, Feature>();
+        patches = new HashMap<String, CounterPatch>();
+        readOnly = false;
+    }
+
+    /**
+     * Compute the delta between two collections.
+     *
+     * {@link StringCounter} features present in both collections
+     * are compared term by term; other features are compared with
+     * {@link Object#equals} and replaced whole if they differ.
+     *
+     * @param from  Original collection
+     * @param to    Changed collection
+     * @return      Delta that turns <tt>from</tt> into <tt>to</tt>
+     */
+    public static FeatureCollectionDelta diff(FeatureCollection from,
+                                              FeatureCollection to) {
+        FeatureCollectionDelta delta = new FeatureCollectionDelta();
+        Map<String, Feature> before = from.rawFeatures();
+        Map<String, Feature> after = to.rawFeatures();
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                delta.removed.add(name);
+            }
+        }
+        for (Map.Entry<String, Feature> e : after.entrySet()) {
+            Feature f = before.get(e.getKey());
+            Feature t = e.getValue();
+            if (f == null) {
+                delta.replaced.put(e.getKey(), t);
+            } else if (f instanceof StringCounter &&
+                       t instanceof StringCounter) {
+                CounterPatch patch = CounterPatch.diff
+                    (((StringCounter)f).rawStrings(),
+                     ((StringCounter)t).rawStrings());
+                if (!patch.isEmpty()) {
+                    delta.patches.put(e.getKey(), patch);
+                }
+            } else if (!f.equals(t)) {
+                delta.replaced.put(e.getKey(), t);
+            }
+        }
+        delta.readOnly = to.isReadOnly();
+        return delta;
+    }
+
+    /**
+     * Get the names of features to remove.
+     *
+     * @return  Modifiable set of feature names
+     */
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Get the features to add or replace.
+     *
+     * @return  Modifiable map from feature name to new feature
+     */
+    public Map<String, Feature> getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * Get the term-level changes to {@link StringCounter} features.
+     *
+     * @return  Modifiable map from feature name to patch
+     */
+    public Map<String, CounterPatch> getPatches() {
+        return patches;
+    }
+
+    /**
+     * Get the read-only flag that {@link #apply} sets.
+     *
+     * @return  Read-only flag of the target collection
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly(boolean ro) {
+        readOnly = ro;
+    }
+
+    /**
+     * Check whether this delta changes any feature.
+     *
+     * @return  <tt>true</tt> if there are no removals, replacements,
+     *          or patches
+     */
+    public boolean isEmpty() {
+        return removed.isEmpty() && replaced.isEmpty() && patches.isEmpty();
+    }
+
+    /**
+     * Patch a collection in place.
+     *
+     * The collection may be read-only; its read-only flag is set
+     * from the delta afterwards.  Added and replaced features are
+     * copied, and the delta is not modified.  Every patched feature
+     * must exist and be a {@link StringCounter}; this is checked
+     * before anything is changed, so a failed call leaves the
+     * collection untouched.
+     *
+     * @param fc  Collection to modify
+     * @throws IllegalArgumentException  if a patched feature is
+     *                                   missing or not a counter, or
+     *                                   a replacement cannot be copied
+     */
+    public void apply(FeatureCollection fc) {
+        Map<String, Feature> features = fc.rawFeatures();
+        for (String name : patches.keySet()) {
+            if (removed.contains(name) || replaced.containsKey(name) ||
+                !(features.get(name) instanceof StringCounter)) {
+                throw new IllegalArgumentException
+                    ("cannot patch feature " + name);
+            }
+        }
+
+        Map<String, Feature> copies = new HashMap<String, Feature>();
+        for (Map.Entry<String, Feature> e : replaced.entrySet()) {
+            copies.put(e.getKey(), copy(e.getKey(), e.getValue()));
+        }
+
+        fc.setReadOnly(false);
+        for (String name : removed) {
+            features.remove(name);
+        }
+        features.putAll(copies);
+        for (Map.Entry<String, CounterPatch> e : patches.entrySet()) {
+            StringCounter sc = (StringCounter)features.get(e.getKey());
+            e.getValue().apply(sc.rawStrings());
+        }
+        fc.setReadOnly(readOnly);
+    }
+
+    /** Deep-copy a replacement feature */
+    private static Feature copy(String name, Feature f) {
+        if (f instanceof StringFeature) {
+            return new StringFeature(((StringFeature)f).getValue());
+        }
+        if (f instanceof StringCounter) {
+            StringCounter sc = new StringCounter();
+            sc.rawStrings().putAll(((StringCounter)f).rawStrings());
+            return sc;
+        }
+        if (f instanceof PrefixCounter) {
+            return PrefixCounter.fromStringCounter
+                (((PrefixCounter)f).toStringCounter());
+        }
+        if (f instanceof OffHeapStringCounter) {
+            return OffHeapStringCounter.fromStringCounter
+                (((OffHeapStringCounter)f).toStringCounter());
+        }
+        try {
+            return CBOR.readValue(CBOR.writeValueAsBytes(f), f.getClass());
+        } catch (IOException e) {
+            throw new IllegalArgumentException
+                ("cannot copy feature " + name, e);
+        }
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        FeatureCollectionDelta rhs = (FeatureCollectionDelta)obj;
+        return new EqualsBuilder()
+            .append(readOnly, rhs.readOnly)
+            .append(removed, rhs.removed)
+            .append(replaced, rhs.replaced)
+            .append(patches, rhs.patches)
+            .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(61, 47)
+            .append(readOnly)
+            .append(removed)
+            .append(replaced)
+            .append(patches)
+            .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("readOnly", readOnly)
+            .append("removed", removed)
+            .append("replaced", replaced)
+            .append("patches", patches)
+            .toString();
+    }
+
+    /**
+     * Term-level changes to one {@link StringCounter}.
+     *
+     * A patch holds the new count of every term that was added or
+     * whose count changed, and the set of terms that were removed.
+     * Counts are absolute, so applying a patch twice has the same
+     * effect as applying it once.
+     */
+    public static class CounterPatch {
+        private final Map<String, Integer> changed;
+        private final Set<String> removed;
+
+        public CounterPatch() {
+            changed = new HashMap<String, Integer>();
+            removed = new HashSet<String>();
+        }
+
+        static CounterPatch diff(Map<String, Integer> from,
+                                 Map<String, Integer> to) {
+            CounterPatch patch = new CounterPatch();
+            for (String term : from.keySet()) {
+                if (!to.containsKey(term)) {
+                    patch.removed.add(term);
+                }
+            }
+            for (Map.Entry<String, Integer> e : to.entrySet()) {
+                if (!e.getValue().equals(from.get(e.getKey()))) {
+                    patch.changed.put(e.getKey(), e.getValue());
+                }
+            }
+            return patch;
+        }
+
+        /**
+         * Get the new counts of added and changed terms.
+         *
+         * @return  Modifiable map from term to new count
+         */
+        public Map<String, Integer> getChanged() {
+            return changed;
+        }
+
+        /**
+         * Get the terms to remove.
+         *
+         * @return  Modifiable set of terms
+         */
+        public Set<String> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+
+        void apply(Map<String, Integer> strings) {
+            for (String term : removed) {
+                strings.remove(term);
+            }
+            strings.putAll(changed);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            CounterPatch rhs = (CounterPatch)obj;
+            return new EqualsBuilder()
+                .append(changed, rhs.changed)
+                .append(removed, rhs.removed)
+                .isEquals();
+        }
+
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder(29, 67)
+                .append(changed)
+                .append(removed)
+                .toHashCode();
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                .append("changed", changed)
+                .append("removed", removed)
+                .toString();
+        }
+    }
+
+    /* JSON/CBOR serialization */
+
+    public static class Serializer
+        extends StdSerializer<FeatureCollectionDelta> {
+        public Serializer() {
+            super(FeatureCollectionDelta.class);
+        }
+
+        @Override
+        public void serialize(FeatureCollectionDelta value,
+                              JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (!value.patches.isEmpty() && !(jgen instanceof CBORGenerator)) {
+                // Without the tag a patch would read back as a
+                // replacement counter
+                throw new JsonGenerationException
+                    ("counter patches can only be written as CBOR");
+            }
+            jgen.writeStartArray();
+            jgen.writeStartObject();
+            jgen.writeStringField("v", DELTA_VERSION);
+            if (value.readOnly) {
+                jgen.writeNumberField("ro", 1);
+            }
+            jgen.writeEndObject();
+
+            jgen.writeStartObject();
+            for (String name : value.removed) {
+                jgen.writeNullField(name);
+            }
+            for (Map.Entry<String, Feature> e : value.replaced.entrySet()) {
+                jgen.writeFieldName(e.getKey());
+                provider.defaultSerializeValue(e.getValue(), jgen);
+            }
+            for (Map.Entry<String, CounterPatch> e :
+                     value.patches.entrySet()) {
+                jgen.writeFieldName(e.getKey());
+                CounterPatch patch = e.getValue();
+                ((CBORGenerator)jgen).writeTag
+                    (FeatureCollection.CBOR_COUNTER_PATCH);
+                jgen.writeStartObject();
+                for (String term : patch.removed) {
+                    jgen.writeNullField(term);
+                }
+                for (Map.Entry<String, Integer> c :
+                         patch.changed.entrySet()) {
+                    jgen.writeNumberField(c.getKey(), c.getValue().intValue());
+                }
+                jgen.writeEndObject();
+            }
+            jgen.writeEndObject();
+            jgen.writeEndArray();
+        }
+    }
+
+    public static class Deserializer
+        extends StdDeserializer<FeatureCollectionDelta> {
+        /**
+         * generated serial version ID
+         */
+        private static final long serialVersionUID = 1L;
+
+        private final FeatureCollection.FeatureDeserializer features =
+            new FeatureCollection.FeatureDeserializer();
+
+        public Deserializer() {
+            super(FeatureCollectionDelta.class);
+        }
+
+        @Override
+        public FeatureCollectionDelta deserialize(JsonParser jp,
+                                                  DeserializationContext dctx)
+            throws IOException {
+            FeatureCollectionDelta delta = new FeatureCollectionDelta();
+            expect(jp, jp.getCurrentToken() == JsonToken.START_ARRAY,
+                   "expected an array");
+            expect(jp, jp.nextToken() == JsonToken.START_OBJECT,
+                   "missing metadata");
+            String version = null;
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if (key.equals("v") && token == JsonToken.VALUE_STRING) {
+                    version = jp.getText();
+                } else if (key.equals("ro") &&
+                           token == JsonToken.VALUE_NUMBER_INT &&
+                           jp.getIntValue() == 1) {
+                    delta.readOnly = true;
+                } else {
+                    expect(jp, false, "invalid metadata " + key);
+                }
+            }
+            expect(jp, DELTA_VERSION.equals(version),
+                   "invalid delta version " + version);
+
+            expect(jp, jp.nextToken() == JsonToken.START_OBJECT,
+                   "missing content");
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String name = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    delta.removed.add(name);
+                } else if (jp instanceof CBORParser &&
+                           ((CBORParser)jp).getCurrentTag() ==
+                           FeatureCollection.CBOR_COUNTER_PATCH) {
+                    delta.patches.put(name, readPatch(jp));
+                } else {
+                    delta.replaced.put(name, features.deserialize(jp, dctx));
+                }
+            }
+            expect(jp, jp.nextToken() == JsonToken.END_ARRAY,
+                   "expected end of delta");
+            return delta;
+        }
+
+        private static CounterPatch readPatch(JsonParser jp)
+            throws IOException {
+            CounterPatch patch = new CounterPatch();
+            expect(jp, jp.getCurrentToken() == JsonToken.START_OBJECT,
+                   "expected a counter patch");
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String term = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    patch.removed.add(term);
+                } else {
+                    expect(jp, token == JsonToken.VALUE_NUMBER_INT,
+                           "invalid count for " + term);
+                    patch.changed.put(term, jp.getIntValue());
+                }
+            }
+            return patch;
+        }
+
+        private static void expect(JsonParser jp, boolean ok, String message)
+            throws IOException {
+            if (!ok) {
+                throw new InvalidFormatException
+                    (message, jp, FeatureCollectionDelta.class);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sums of many feature collections.
+ *
+ * The sum of a set of collections has, for every feature name that
+ * holds a counter in any of them, a {@link StringCounter} whose
+ * count for each term is the sum of that term's counts.  As with the
+ * Python <tt>FeatureCollection.__add__</tt>, features that are not
+ * counters are ignored.  {@link StringCounter}, {@link PrefixCounter},
+ * and {@link OffHeapStringCounter} features are all counters.  Unlike
+ * Python's <tt>Counter</tt> addition, terms whose sum is zero or
+ * negative are kept.
+ *
+ * {@link #sum} adds the inputs one at a time into a single
+ * accumulator.  {@link #parallelSum} gives an equal result using a
+ * fork-join tree reduction: each leaf task sums a contiguous slice of
+ * the inputs into its own accumulator, presized from the sizes of the
+ * counters in that slice so it never rehashes, and sibling results
+ * are merged pairwise, the smaller into the larger.  When the maps
+ * being merged are large, each feature is merged as a separate
+ * parallel task.
+ *
+ * <pre>
+ * FeatureCollection total = FeatureCollectionSum.parallelSum(mentions);
+ * </pre>
+ *
+ * The inputs are not modified, and must not be modified while a sum
+ * is running.  The result is a new, writable collection.
+ */
+public final class FeatureCollectionSum {
+    /** Merge features in parallel once the smaller side is this big */
+    private static final int PARALLEL_MERGE_ENTRIES = 8192;
+
+    private FeatureCollectionSum() {
+    }
+
+    /**
+     * Sum collections sequentially.
+     *
+     * @param fcs  Collections to add
+     * @return     New collection holding the sum
+     */
+    public static FeatureCollection sum(Collection<FeatureCollection> fcs) {
+        Map<String, Map<String, Integer>> acc =
+            new HashMap<String, Map<String, Integer>>();
+        for (FeatureCollection fc : fcs) {
+            for (Map.Entry<String, Feature> e : fc.rawFeatures().entrySet()) {
+                Map<String, Integer> strings = counts(e.getValue());
+                if (strings == null) {
+                    continue;
+                }
+                Map<String, Integer> a = acc.get(e.getKey());
+                if (a == null) {
+                    a = new HashMap<String, Integer>();
+                    acc.put(e.getKey(), a);
+                }
+                addAll(a, strings);
+            }
+        }
+        return toCollection(acc);
+    }
+
+    /**
+     * Sum collections in parallel in the common fork-join pool.
+     *
+     * @param fcs  Collections to add
+     * @return     New collection equal to {@link #sum}
+     */
+    public static FeatureCollection parallelSum
+        (Collection<FeatureCollection> fcs) {
+        return parallelSum(fcs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sum a stream of collections in parallel in the common pool.
+     *
+     * The stream is collected into a list first.
+     *
+     * @param fcs  Collections to add
+     * @return     New collection equal to {@link #sum} of the stream
+     */
+    public static FeatureCollection parallelSum(Stream<FeatureCollection> fcs) {
+        return parallelSum(fcs.collect(Collectors.toList()));
+    }
+
+    /**
+     * Sum collections in parallel.
+     *
+     * @param fcs   Collections to add
+     * @param pool  Pool to run the reduction in
+     * @return      New collection equal to {@link #sum}
+     */
+    public static FeatureCollection parallelSum
+        (Collection<FeatureCollection> fcs, ForkJoinPool pool) {
+        List<FeatureCollection> list = (fcs instanceof List)
+            ? (List<FeatureCollection>)fcs
+            : new ArrayList<FeatureCollection>(fcs);
+        if (list.isEmpty()) {
+            return new FeatureCollection();
+        }
+        int leaf = Math.max(1, list.size() / (4 * pool.getParallelism()));
+        return toCollection(pool.invoke
+                            (new SumTask(list, 0, list.size(), leaf)));
+    }
+
+    /* Accumulators */
+
+    /**
+     * Get the counts of a counter feature.
+     *
+     * @return  Map of terms to counts, or <tt>null</tt> if the
+     *          feature is not a counter
+     */
+    static Map<String, Integer> counts(Feature f) {
+        if (f instanceof StringCounter) {
+            return ((StringCounter)f).rawStrings();
+        }
+        if (f instanceof PrefixCounter) {
+            return ((PrefixCounter)f).toStringCounter().rawStrings();
+        }
+        if (f instanceof OffHeapStringCounter) {
+            return ((OffHeapStringCounter)f).toStringCounter().rawStrings();
+        }
+        return null;
+    }
+
+    /** Number of terms in a counter feature, or -1 */
+    private static int size(Feature f) {
+        if (f instanceof StringCounter) {
+            return ((StringCounter)f).rawStrings().size();
+        }
+        if (f instanceof PrefixCounter) {
+            return ((PrefixCounter)f).size();
+        }
+        if (f instanceof OffHeapStringCounter) {
+            return ((OffHeapStringCounter)f).size();
+        }
+        return -1;
+    }
+
+    private static void addAll(Map<String, Integer> dst,
+                               Map<String, Integer> src) {
+        for (Map.Entry<String, Integer> e : src.entrySet()) {
+            Integer old = dst.get(e.getKey());
+            int n = e.getValue().intValue();
+            dst.put(e.getKey(), (old == null) ? n : old.intValue() + n);
+        }
+    }
+
+    private static FeatureCollection toCollection
+        (Map<String, Map<String, Integer>> acc) {
+        FeatureCollection fc = new FeatureCollection();
+        for (Map.Entry<String, Map<String, Integer>> e : acc.entrySet()) {
+            StringCounter sc = new StringCounter();
+            sc.setStrings(e.getValue());
+            fc.rawFeatures().put(e.getKey(), sc);
+        }
+        return fc;
+    }
+
+    /* Fork-join tasks */
+
+    private static class SumTask
+        extends RecursiveTask<Map<String, Map<String, Integer>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FeatureCollection> fcs;
+        private final int lo;
+        private final int hi;
+        private final int leaf;
+
+        SumTask(List<FeatureCollection> fcs, int lo, int hi, int leaf) {
+            this.fcs = fcs;
+            this.lo = lo;
+            this.hi = hi;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected Map<String, Map<String, Integer>> compute() {
+            if (hi - lo <= leaf) {
+                return sumLeaf();
+            }
+            int mid = (lo + hi) >>> 1;
+            SumTask left = new SumTask(fcs, lo, mid, leaf);
+            SumTask right = new SumTask(fcs, mid, hi, leaf);
+            left.fork();
+            Map<String, Map<String, Integer>> r = right.compute();
+            Map<String, Map<String, Integer>> l = left.join();
+            return merge(l, r);
+        }
+
+        private Map<String, Map<String, Integer>> sumLeaf() {
+            // Presize each accumulator for the worst case, in which
+            // no term repeats, so that it never rehashes
+            Map<String, Integer> sizes = new HashMap<String, Integer>();
+            for (int i = lo; i < hi; i++) {
+                for (Map.Entry<String, Feature> e :
+                         fcs.get(i).rawFeatures().entrySet()) {
+                    int n = size(e.getValue());
+                    if (n >= 0) {
+                        Integer old = sizes.get(e.getKey());
+                        sizes.put(e.getKey(),
+                                  (old == null) ? n : old.intValue() + n);
+                    }
+                }
+            }
+            Map<String, Map<String, Integer>> acc =
+                new HashMap<String, Map<String, Integer>>(capacity(sizes.size()));
+            for (Map.Entry<String, Integer> e : sizes.entrySet()) {
+                acc.put(e.getKey(), new HashMap<String, Integer>
+                        (capacity(e.getValue().intValue())));
+            }
+            for (int i = lo; i < hi; i++) {
+                for (Map.Entry<String, Feature> e :
+                         fcs.get(i).rawFeatures().entrySet()) {
+                    Map<String, Integer> strings = counts(e.getValue());
+                    if (strings != null) {
+                        addAll(acc.get(e.getKey()), strings);
+                    }
+                }
+            }
+            return acc;
+        }
+    }
+
+    /** HashMap capacity that holds n entries without resizing */
+    private static int capacity(int n) {
+        return (int)Math.min((long)n * 4 / 3 + 1, 1 << 30);
+    }
+
+    /**
+     * Merge two accumulators.
+     *
+     * Each feature of the smaller side is merged into the larger
+     * side's map for that feature.  Both arguments are consumed.
+     */
+    private static Map<String, Map<String, Integer>> merge
+        (Map<String, Map<String, Integer>> a,
+         Map<String, Map<String, Integer>> b) {
+        if (a.size() < b.size()) {
+            Map<String, Map<String, Integer>> t = a;
+            a = b;
+            b = t;
+        }
+        List<MergeTask> big = new ArrayList<MergeTask>();
+        for (Map.Entry<String, Map<String, Integer>> e : b.entrySet()) {
+            Map<String, Integer> x = a.get(e.getKey());
+            Map<String, Integer> y = e.getValue();
+            if (x == null) {
+                a.put(e.getKey(), y);
+                continue;
+            }
+            // The result is whichever map is larger, known up front
+            MergeTask task = new MergeTask(x, y);
+            if (Math.min(x.size(), y.size()) >= PARALLEL_MERGE_ENTRIES) {
+                big.add(task);
+            } else {
+                task.compute();
+            }
+            a.put(e.getKey(), task.result);
+        }
+        if (big.size() == 1) {
+            big.get(0).compute();
+        } else if (!big.isEmpty()) {
+            RecursiveAction.invokeAll(big);
+        }
+        return a;
+    }
+
+    /** Merge of one feature's counts, the smaller map into the larger */
+    private static class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Integer> small;
+        Map<String, Integer> result;
+
+        MergeTask(Map<String, Integer> x, Map<String, Integer> y) {
+            if (x.size() >= y.size()) {
+                result = x;
+                small = y;
+            } else {
+                result = y;
+                small = x;
+            }
+        }
+
+        @Override
+        protected void compute() {
+            addAll(result, small);
+        }
+    }
+}
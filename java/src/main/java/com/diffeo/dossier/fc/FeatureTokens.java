@@ -0,0 +1,495 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Token pointers from feature values back into source material.
+ *
+ * This is the Java counterpart of the Python
+ * <tt>dossier.fc.FeatureTokens</tt> class, and by convention is
+ * stored under feature names beginning with
+ * {@link FeatureCollection#TOKEN_PREFIX}.  It maps a feature value
+ * to zero or more token sequences; each token sequence is a list of
+ * (tagger ID, sentence index, token index) triples identifying a
+ * possibly non-contiguous region of the source text.
+ *
+ * These features get very large on long documents, so rather than
+ * holding lists of tuples, each value's sequences are packed into a
+ * {@link TokenSequences} object backed by <tt>int</tt> arrays, with
+ * the (very few) distinct tagger IDs interned in a small table.
+ *
+ * <pre>
+ * FeatureTokens ft = new FeatureTokens();
+ * ft.add("tom brady",
+ *        new String[] { "nltk", "nltk" },
+ *        new int[] { 0, 0 },
+ *        new int[] { 0, 1 });
+ * fc.getFeatures().put("@NAME", ft);
+ * </pre>
+ */
+@JsonSerialize(using=FeatureTokens.Serializer.class)
+@JsonDeserialize(using=FeatureTokens.Deserializer.class)
+public class FeatureTokens implements Feature {
+    private Map<String, TokenSequences> tokens;
+    private boolean readOnly;
+
+    public FeatureTokens() {
+        tokens = new HashMap<String, TokenSequences>();
+        readOnly = false;
+    }
+
+    /**
+     * Get the dictionary of feature values to token sequences.
+     *
+     * If the feature is read-only, the returned map is unmodifiable.
+     * The {@link TokenSequences} values themselves can only be
+     * changed through {@link #add}.
+     *
+     * @return  Map from feature value to packed token sequences
+     */
+    public Map<String, TokenSequences> getTokens() {
+        if (readOnly) {
+            return Collections.unmodifiableMap(tokens);
+        } else {
+            return tokens;
+        }
+    }
+
+    /**
+     * Append a token sequence for some feature value.
+     *
+     * The three arrays are parallel, and the i-th token of the new
+     * sequence is (<tt>taggerIds[i]</tt>, <tt>sentenceIds[i]</tt>,
+     * <tt>tokenIds[i]</tt>).  This raises an exception if the feature
+     * is read-only.
+     *
+     * @param key          Feature value to update
+     * @param taggerIds    Tagger ID of each token
+     * @param sentenceIds  Sentence index of each token
+     * @param tokenIds     Token index of each token
+     */
+    public void add(String key, String[] taggerIds, int[] sentenceIds,
+                    int[] tokenIds) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("read-only tokens");
+        }
+        if (sentenceIds.length != taggerIds.length ||
+            tokenIds.length != taggerIds.length) {
+            throw new IllegalArgumentException("mismatched token arrays");
+        }
+        TokenSequences seqs = tokens.get(key);
+        if (seqs == null) {
+            seqs = new TokenSequences();
+            tokens.put(key, seqs);
+        }
+        for (int i = 0; i < taggerIds.length; i++) {
+            seqs.append(taggerIds[i], sentenceIds[i], tokenIds[i]);
+        }
+        seqs.endSequence();
+    }
+
+    /**
+     * Get the read-only flag.
+     *
+     * @return  Current value of read-only flag
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set the read-only flag.
+     *
+     * @param ro  New value of read-only flag
+     */
+    public void setReadOnly(boolean ro) {
+        readOnly = ro;
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        FeatureTokens rhs = (FeatureTokens)obj;
+        return new EqualsBuilder()
+            .append(tokens, rhs.tokens)
+            .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(57, 113)
+            .append(tokens)
+            .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("tokens", tokens)
+            .toString();
+    }
+
+    /**
+     * Packed list of token sequences for a single feature value.
+     *
+     * Tokens are stored as consecutive (tagger, sentence, token)
+     * triples in one <tt>int</tt> array, where the tagger is an index
+     * into a per-value table of distinct tagger IDs.  A second array
+     * records where each sequence ends.
+     */
+    public static class TokenSequences {
+        private static final int[] EMPTY = new int[0];
+
+        private String[] taggers;
+        private int numTaggers;
+        private int[] triples;
+        private int numTokens;
+        private int[] ends;
+        private int numSequences;
+
+        TokenSequences() {
+            taggers = new String[1];
+            numTaggers = 0;
+            triples = EMPTY;
+            numTokens = 0;
+            ends = EMPTY;
+            numSequences = 0;
+        }
+
+        /**
+         * Get the number of token sequences.
+         *
+         * @return  Number of sequences
+         */
+        public int size() {
+            return numSequences;
+        }
+
+        /**
+         * Get the number of tokens in one sequence.
+         *
+         * @param seq  Zero-based sequence index
+         * @return     Number of tokens in that sequence
+         */
+        public int length(int seq) {
+            return end(seq) - start(seq);
+        }
+
+        /**
+         * Get the tagger ID of a token.
+         *
+         * @param seq  Zero-based sequence index
+         * @param i    Zero-based token index within the sequence
+         * @return     Tagger ID
+         */
+        public String getTaggerId(int seq, int i) {
+            return taggers[triples[3 * position(seq, i)]];
+        }
+
+        /**
+         * Get the sentence index of a token.
+         *
+         * @param seq  Zero-based sequence index
+         * @param i    Zero-based token index within the sequence
+         * @return     Sentence index within the tagger's sentences
+         */
+        public int getSentenceId(int seq, int i) {
+            return triples[3 * position(seq, i) + 1];
+        }
+
+        /**
+         * Get the token index of a token.
+         *
+         * @param seq  Zero-based sequence index
+         * @param i    Zero-based token index within the sequence
+         * @return     Token index within the sentence
+         */
+        public int getTokenId(int seq, int i) {
+            return triples[3 * position(seq, i) + 2];
+        }
+
+        private int start(int seq) {
+            if (seq < 0 || seq >= numSequences) {
+                throw new IndexOutOfBoundsException("sequence " + seq);
+            }
+            return (seq == 0) ? 0 : ends[seq - 1];
+        }
+
+        private int end(int seq) {
+            if (seq < 0 || seq >= numSequences) {
+                throw new IndexOutOfBoundsException("sequence " + seq);
+            }
+            return ends[seq];
+        }
+
+        private int position(int seq, int i) {
+            int pos = start(seq) + i;
+            if (i < 0 || pos >= end(seq)) {
+                throw new IndexOutOfBoundsException("token " + i);
+            }
+            return pos;
+        }
+
+        private int taggerIndex(String tagger) {
+            for (int t = 0; t < numTaggers; t++) {
+                if (taggers[t].equals(tagger)) {
+                    return t;
+                }
+            }
+            if (numTaggers == taggers.length) {
+                String[] n = new String[2 * numTaggers];
+                System.arraycopy(taggers, 0, n, 0, numTaggers);
+                taggers = n;
+            }
+            taggers[numTaggers] = tagger;
+            return numTaggers++;
+        }
+
+        void append(String tagger, int sentence, int token) {
+            if (3 * numTokens + 3 > triples.length) {
+                int[] n = new int[Math.max(12, 2 * triples.length)];
+                System.arraycopy(triples, 0, n, 0, 3 * numTokens);
+                triples = n;
+            }
+            int p = 3 * numTokens;
+            triples[p] = taggerIndex(tagger);
+            triples[p + 1] = sentence;
+            triples[p + 2] = token;
+            numTokens++;
+        }
+
+        void endSequence() {
+            if (numSequences == ends.length) {
+                int[] n = new int[Math.max(4, 2 * ends.length)];
+                System.arraycopy(ends, 0, n, 0, numSequences);
+                ends = n;
+            }
+            ends[numSequences++] = numTokens;
+        }
+
+        /**
+         * Release any slack in the backing arrays.
+         */
+        void trim() {
+            if (triples.length != 3 * numTokens) {
+                int[] n = new int[3 * numTokens];
+                System.arraycopy(triples, 0, n, 0, n.length);
+                triples = n;
+            }
+            if (ends.length != numSequences) {
+                int[] n = new int[numSequences];
+                System.arraycopy(ends, 0, n, 0, n.length);
+                ends = n;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            TokenSequences rhs = (TokenSequences)obj;
+            if (numSequences != rhs.numSequences ||
+                numTokens != rhs.numTokens) {
+                return false;
+            }
+            for (int s = 0; s < numSequences; s++) {
+                if (ends[s] != rhs.ends[s]) {
+                    return false;
+                }
+            }
+            // Tagger indexes are assigned in order of first use, but
+            // compare the IDs themselves to be safe.
+            for (int p = 0; p < numTokens; p++) {
+                if (triples[3 * p + 1] != rhs.triples[3 * p + 1] ||
+                    triples[3 * p + 2] != rhs.triples[3 * p + 2] ||
+                    !taggers[triples[3 * p]].equals
+                    (rhs.taggers[rhs.triples[3 * p]])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 17;
+            for (int s = 0; s < numSequences; s++) {
+                h = 31 * h + ends[s];
+            }
+            for (int p = 0; p < numTokens; p++) {
+                h = 31 * h + taggers[triples[3 * p]].hashCode();
+                h = 31 * h + triples[3 * p + 1];
+                h = 31 * h + triples[3 * p + 2];
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int s = 0; s < numSequences; s++) {
+                if (s > 0) {
+                    sb.append(", ");
+                }
+                sb.append('[');
+                for (int i = 0; i < length(s); i++) {
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append('(').append(getTaggerId(s, i))
+                        .append(", ").append(getSentenceId(s, i))
+                        .append(", ").append(getTokenId(s, i))
+                        .append(')');
+                }
+                sb.append(']');
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    /* JSON/CBOR serialization */
+
+    /*
+     * The wire format, shared with Python, is
+     *
+     *   55804({"value": [[["tagger", sentence, token], ...], ...], ...})
+     *
+     * These are encoded and decoded directly against the packed
+     * arrays without any intermediate lists.
+     */
+
+    public static class Serializer extends StdSerializer<FeatureTokens> {
+        public Serializer() {
+            super(FeatureTokens.class);
+        }
+
+        @Override
+        public void serialize(FeatureTokens value, JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (jgen instanceof CBORGenerator) {
+                ((CBORGenerator)jgen).writeTag
+                    (FeatureCollection.CBOR_FEATURE_TOKENS);
+            }
+            jgen.writeStartObject();
+            for (Map.Entry<String, TokenSequences> e :
+                     value.tokens.entrySet()) {
+                jgen.writeFieldName(e.getKey());
+                TokenSequences seqs = e.getValue();
+                jgen.writeStartArray();
+                int p = 0;
+                for (int s = 0; s < seqs.numSequences; s++) {
+                    jgen.writeStartArray();
+                    for (; p < seqs.ends[s]; p++) {
+                        jgen.writeStartArray();
+                        jgen.writeString(seqs.taggers[seqs.triples[3 * p]]);
+                        jgen.writeNumber(seqs.triples[3 * p + 1]);
+                        jgen.writeNumber(seqs.triples[3 * p + 2]);
+                        jgen.writeEndArray();
+                    }
+                    jgen.writeEndArray();
+                }
+                jgen.writeEndArray();
+            }
+            jgen.writeEndObject();
+        }
+    }
+
+    public static class Deserializer extends StdDeserializer<FeatureTokens> {
+        /**
+         * generated serial version ID
+         */
+        private static final long serialVersionUID = 1L;
+
+        public Deserializer() {
+            super(FeatureTokens.class);
+        }
+
+        @Override
+        public FeatureTokens deserialize(JsonParser jp,
+                                         DeserializationContext dctx)
+            throws IOException {
+            FeatureTokens ft = new FeatureTokens();
+            expect(jp, jp.getCurrentToken(), JsonToken.START_OBJECT);
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                TokenSequences seqs = new TokenSequences();
+                expect(jp, jp.nextToken(), JsonToken.START_ARRAY);
+                while (jp.nextToken() == JsonToken.START_ARRAY) {
+                    while (jp.nextToken() == JsonToken.START_ARRAY) {
+                        expect(jp, jp.nextToken(), JsonToken.VALUE_STRING);
+                        String tagger = jp.getText();
+                        expect(jp, jp.nextToken(),
+                               JsonToken.VALUE_NUMBER_INT);
+                        int sentence = jp.getIntValue();
+                        expect(jp, jp.nextToken(),
+                               JsonToken.VALUE_NUMBER_INT);
+                        int token = jp.getIntValue();
+                        expect(jp, jp.nextToken(), JsonToken.END_ARRAY);
+                        seqs.append(tagger, sentence, token);
+                    }
+                    expect(jp, jp.getCurrentToken(), JsonToken.END_ARRAY);
+                    seqs.endSequence();
+                }
+                expect(jp, jp.getCurrentToken(), JsonToken.END_ARRAY);
+                seqs.trim();
+                ft.tokens.put(key, seqs);
+            }
+            expect(jp, jp.getCurrentToken(), JsonToken.END_OBJECT);
+            return ft;
+        }
+
+        private static void expect(JsonParser jp, JsonToken actual,
+                                   JsonToken expected)
+            throws IOException {
+            if (actual != expected) {
+                throw new InvalidFormatException
+                    ("expected " + expected + " in feature tokens, got " +
+                     actual, jp, FeatureTokens.class);
+            }
+        }
+    }
+}
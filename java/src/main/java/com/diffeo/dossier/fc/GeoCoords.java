@@ -0,0 +1,388 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Space-time coordinates associated with feature values.
+ *
+ * This is the Java counterpart of the Python
+ * <tt>dossier.fc.GeoCoords</tt> class, and by convention is stored
+ * under feature names beginning with
+ * {@link FeatureCollection#GEOCOORDS_PREFIX}.  It maps a feature
+ * value, such as a place name, to a list of (longitude, latitude,
+ * altitude, time) four-tuples.  The spatial coordinates are expected
+ * to be WGS84 Earth coordinates.
+ *
+ * Each value's coordinates are packed into a single
+ * <tt>double</tt> array in a {@link Coordinates} object.  Any
+ * component of a coordinate may be missing; this is represented as
+ * {@link Double#NaN} in Java and as <tt>null</tt> when serialized.
+ *
+ * <pre>
+ * GeoCoords geo = new GeoCoords();
+ * geo.add("Boston", -71.06, 42.36, Double.NaN, Double.NaN);
+ * fc.getFeatures().put("!co_LOC", geo);
+ * </pre>
+ */
+@JsonSerialize(using=GeoCoords.Serializer.class)
+@JsonDeserialize(using=GeoCoords.Deserializer.class)
+public class GeoCoords implements Feature {
+    private Map<String, Coordinates> coords;
+    private boolean readOnly;
+
+    public GeoCoords() {
+        coords = new HashMap<String, Coordinates>();
+        readOnly = false;
+    }
+
+    /**
+     * Get the dictionary of feature values to coordinates.
+     *
+     * If the feature is read-only, the returned map is unmodifiable.
+     * The {@link Coordinates} values themselves can only be changed
+     * through {@link #add}.
+     *
+     * @return  Map from feature value to packed coordinate list
+     */
+    public Map<String, Coordinates> getCoords() {
+        if (readOnly) {
+            return Collections.unmodifiableMap(coords);
+        } else {
+            return coords;
+        }
+    }
+
+    /**
+     * Append a coordinate for some feature value.
+     *
+     * Pass {@link Double#NaN} for any missing component.  This
+     * raises an exception if the feature is read-only.
+     *
+     * @param key        Feature value to update
+     * @param longitude  Longitude in degrees
+     * @param latitude   Latitude in degrees
+     * @param altitude   Altitude
+     * @param time       Time, typically in seconds since the epoch
+     */
+    public void add(String key, double longitude, double latitude,
+                    double altitude, double time) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("read-only coordinates");
+        }
+        Coordinates c = coords.get(key);
+        if (c == null) {
+            c = new Coordinates();
+            coords.put(key, c);
+        }
+        c.append(longitude, latitude, altitude, time);
+    }
+
+    /**
+     * Get the read-only flag.
+     *
+     * @return  Current value of read-only flag
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set the read-only flag.
+     *
+     * @param ro  New value of read-only flag
+     */
+    public void setReadOnly(boolean ro) {
+        readOnly = ro;
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        GeoCoords rhs = (GeoCoords)obj;
+        return new EqualsBuilder()
+            .append(coords, rhs.coords)
+            .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(83, 29)
+            .append(coords)
+            .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("coords", coords)
+            .toString();
+    }
+
+    /**
+     * Packed list of four-component coordinates.
+     *
+     * Coordinate i occupies positions 4i through 4i+3 of a single
+     * <tt>double</tt> array, in (longitude, latitude, altitude, time)
+     * order.
+     */
+    public static class Coordinates {
+        private static final double[] EMPTY = new double[0];
+
+        private double[] values;
+        private int size;
+
+        Coordinates() {
+            values = EMPTY;
+            size = 0;
+        }
+
+        /**
+         * Get the number of coordinates.
+         *
+         * @return  Number of four-tuples
+         */
+        public int size() {
+            return size;
+        }
+
+        public double getLongitude(int i) {
+            return get(i, 0);
+        }
+
+        public double getLatitude(int i) {
+            return get(i, 1);
+        }
+
+        public double getAltitude(int i) {
+            return get(i, 2);
+        }
+
+        public double getTime(int i) {
+            return get(i, 3);
+        }
+
+        private double get(int i, int component) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("coordinate " + i);
+            }
+            return values[4 * i + component];
+        }
+
+        void append(double lon, double lat, double alt, double time) {
+            if (4 * size + 4 > values.length) {
+                double[] n = new double[Math.max(8, 2 * values.length)];
+                System.arraycopy(values, 0, n, 0, 4 * size);
+                values = n;
+            }
+            int p = 4 * size;
+            values[p] = lon;
+            values[p + 1] = lat;
+            values[p + 2] = alt;
+            values[p + 3] = time;
+            size++;
+        }
+
+        /**
+         * Release any slack in the backing array.
+         */
+        void trim() {
+            if (values.length != 4 * size) {
+                double[] n = new double[4 * size];
+                System.arraycopy(values, 0, n, 0, n.length);
+                values = n;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            Coordinates rhs = (Coordinates)obj;
+            if (size != rhs.size) {
+                return false;
+            }
+            for (int p = 0; p < 4 * size; p++) {
+                // Double.compare() treats NaN (missing) as equal to itself
+                if (Double.compare(values[p], rhs.values[p]) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 17;
+            for (int p = 0; p < 4 * size; p++) {
+                long bits = Double.doubleToLongBits(values[p]);
+                h = 31 * h + (int)(bits ^ (bits >>> 32));
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append('(');
+                for (int c = 0; c < 4; c++) {
+                    if (c > 0) {
+                        sb.append(", ");
+                    }
+                    double v = values[4 * i + c];
+                    sb.append(Double.isNaN(v) ? "None" : Double.toString(v));
+                }
+                sb.append(')');
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    /* JSON/CBOR serialization */
+
+    /*
+     * The wire format, shared with Python, is
+     *
+     *   55805({"value": [[lon, lat, alt, time], ...], ...})
+     *
+     * where any component may be null, and Python may have written
+     * integers rather than floats.
+     */
+
+    public static class Serializer extends StdSerializer<GeoCoords> {
+        public Serializer() {
+            super(GeoCoords.class);
+        }
+
+        @Override
+        public void serialize(GeoCoords value, JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (jgen instanceof CBORGenerator) {
+                ((CBORGenerator)jgen).writeTag
+                    (FeatureCollection.CBOR_GEO_COORDS);
+            }
+            jgen.writeStartObject();
+            for (Map.Entry<String, Coordinates> e : value.coords.entrySet()) {
+                jgen.writeFieldName(e.getKey());
+                Coordinates c = e.getValue();
+                jgen.writeStartArray();
+                for (int p = 0; p < 4 * c.size; p += 4) {
+                    jgen.writeStartArray();
+                    for (int i = p; i < p + 4; i++) {
+                        if (Double.isNaN(c.values[i])) {
+                            jgen.writeNull();
+                        } else {
+                            jgen.writeNumber(c.values[i]);
+                        }
+                    }
+                    jgen.writeEndArray();
+                }
+                jgen.writeEndArray();
+            }
+            jgen.writeEndObject();
+        }
+    }
+
+    public static class Deserializer extends StdDeserializer<GeoCoords> {
+        /**
+         * generated serial version ID
+         */
+        private static final long serialVersionUID = 1L;
+
+        public Deserializer() {
+            super(GeoCoords.class);
+        }
+
+        @Override
+        public GeoCoords deserialize(JsonParser jp,
+                                     DeserializationContext dctx)
+            throws IOException {
+            GeoCoords geo = new GeoCoords();
+            expect(jp, jp.getCurrentToken() == JsonToken.START_OBJECT);
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                Coordinates c = new Coordinates();
+                expect(jp, jp.nextToken() == JsonToken.START_ARRAY);
+                while (jp.nextToken() == JsonToken.START_ARRAY) {
+                    double lon = component(jp);
+                    double lat = component(jp);
+                    double alt = component(jp);
+                    double time = component(jp);
+                    expect(jp, jp.nextToken() == JsonToken.END_ARRAY);
+                    c.append(lon, lat, alt, time);
+                }
+                expect(jp, jp.getCurrentToken() == JsonToken.END_ARRAY);
+                c.trim();
+                geo.coords.put(key, c);
+            }
+            expect(jp, jp.getCurrentToken() == JsonToken.END_OBJECT);
+            return geo;
+        }
+
+        private static double component(JsonParser jp) throws IOException {
+            JsonToken token = jp.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                return Double.NaN;
+            }
+            expect(jp, token == JsonToken.VALUE_NUMBER_INT ||
+                   token == JsonToken.VALUE_NUMBER_FLOAT);
+            return jp.getDoubleValue();
+        }
+
+        private static void expect(JsonParser jp, boolean ok)
+            throws IOException {
+            if (!ok) {
+                throw new InvalidFormatException
+                    ("unexpected " + jp.getCurrentToken() +
+                     " in geo coordinates", jp, GeoCoords.class);
+            }
+        }
+    }
+}
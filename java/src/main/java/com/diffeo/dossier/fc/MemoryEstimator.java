@@ -0,0 +1,193 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.util.Map;
+
+/**
+ * Estimates of the heap retained by feature collections.
+ *
+ * The estimates walk the object graph and add up object sizes
+ * assuming a 64-bit HotSpot JVM with compressed references (12-byte
+ * object headers, 16-byte array headers, 4-byte references, and
+ * 8-byte alignment) and compact strings, where a string of only
+ * Latin-1 characters takes one byte per character.  A
+ * {@link java.util.HashMap} is assumed to have the smallest table
+ * that holds its entries, and small {@link Integer} counts are
+ * assumed to come from the shared <tt>Integer</tt> cache.
+ *
+ * Every string is counted as though it belonged to the object being
+ * measured.  Decoders often share strings, such as map keys that the
+ * parser canonicalizes across records, so the estimate is an upper
+ * bound on what would be freed if the object were dropped.  Feature
+ * types this class does not know about count as a bare object.
+ */
+public final class MemoryEstimator {
+    static final int HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    /* Shallow sizes of the objects involved */
+    static final long HASH_MAP = align(HEADER + 4 * REFERENCE + 4 * 4);
+    static final long HASH_MAP_NODE = align(HEADER + 4 + 3 * REFERENCE);
+    static final long INTEGER = align(HEADER + 4);
+    static final long STRING = align(HEADER + REFERENCE + 4 + 1 + 1);
+    static final long FEATURE_COLLECTION = align(HEADER + REFERENCE + 1);
+    static final long STRING_COUNTER = align(HEADER + REFERENCE + 1);
+    static final long STRING_FEATURE = align(HEADER + REFERENCE + 1);
+
+    private MemoryEstimator() {
+    }
+
+    static long align(long n) {
+        return (n + 7) & ~7L;
+    }
+
+    /**
+     * Estimate the heap retained by a feature collection.
+     *
+     * @param fc  Collection to measure
+     * @return    Estimated bytes
+     */
+    public static long estimate(FeatureCollection fc) {
+        Map<String, Feature> features = fc.rawFeatures();
+        long n = FEATURE_COLLECTION + hashMap(features.size());
+        for (Map.Entry<String, Feature> e : features.entrySet()) {
+            n += estimate(e.getKey()) + estimate(e.getValue());
+        }
+        return n;
+    }
+
+    /**
+     * Estimate the heap retained by a feature.
+     *
+     * @param f  Feature to measure
+     * @return   Estimated bytes
+     */
+    public static long estimate(Feature f) {
+        if (f instanceof StringCounter) {
+            return estimate((StringCounter)f);
+        }
+        if (f instanceof StringFeature) {
+            return estimate((StringFeature)f);
+        }
+        if (f instanceof PrefixCounter) {
+            return align(HEADER + 7 * REFERENCE + 4) +
+                ((PrefixCounter)f).getRetainedBytes();
+        }
+        if (f instanceof SparseVector) {
+            int n = ((SparseVector)f).size();
+            return align(HEADER + 2 * REFERENCE) +
+                align(ARRAY_HEADER + 4L * n) + align(ARRAY_HEADER + 8L * n);
+        }
+        if (f instanceof GeoCoords) {
+            return estimate((GeoCoords)f);
+        }
+        if (f instanceof FeatureTokens) {
+            return estimate((FeatureTokens)f);
+        }
+        // Includes OffHeapStringCounter, whose bulk is off the heap
+        return align(HEADER + 4 * REFERENCE);
+    }
+
+    /**
+     * Estimate the heap retained by a string counter.
+     *
+     * @param sc  Counter to measure
+     * @return    Estimated bytes
+     */
+    public static long estimate(StringCounter sc) {
+        Map<String, Integer> strings = sc.rawStrings();
+        long n = STRING_COUNTER + hashMap(strings.size());
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            n += estimate(e.getKey()) + estimate(e.getValue());
+        }
+        return n;
+    }
+
+    /**
+     * Estimate the heap retained by a string feature.
+     *
+     * @param sf  Feature to measure
+     * @return    Estimated bytes
+     */
+    public static long estimate(StringFeature sf) {
+        return STRING_FEATURE + estimate(sf.getValue());
+    }
+
+    /**
+     * Estimate the heap retained by a string.
+     *
+     * @param s  String to measure, or <tt>null</tt>
+     * @return   Estimated bytes
+     */
+    public static long estimate(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int bytesPerChar = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xff) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return STRING + align(ARRAY_HEADER + (long)bytesPerChar * s.length());
+    }
+
+    private static long estimate(Integer i) {
+        int v = i.intValue();
+        return (v >= -128 && v <= 127) ? 0 : INTEGER;
+    }
+
+    private static long estimate(GeoCoords geo) {
+        Map<String, GeoCoords.Coordinates> coords = geo.getCoords();
+        long n = align(HEADER + REFERENCE + 1) + hashMap(coords.size());
+        for (Map.Entry<String, GeoCoords.Coordinates> e : coords.entrySet()) {
+            n += estimate(e.getKey()) + align(HEADER + REFERENCE + 4) +
+                align(ARRAY_HEADER + 32L * e.getValue().size());
+        }
+        return n;
+    }
+
+    private static long estimate(FeatureTokens ft) {
+        Map<String, FeatureTokens.TokenSequences> tokens = ft.getTokens();
+        long n = align(HEADER + REFERENCE + 1) + hashMap(tokens.size());
+        for (Map.Entry<String, FeatureTokens.TokenSequences> e :
+                 tokens.entrySet()) {
+            FeatureTokens.TokenSequences seqs = e.getValue();
+            long length = 0;
+            for (int s = 0; s < seqs.size(); s++) {
+                length += seqs.length(s);
+            }
+            // Tagger ids are usually few and shared, so only the
+            // packed (tagger, sentence, token) triples and sequence
+            // ends are counted
+            n += estimate(e.getKey()) +
+                align(HEADER + 3 * REFERENCE + 3 * 4) +
+                align(ARRAY_HEADER + 12 * length) +
+                align(ARRAY_HEADER + 4L * seqs.size());
+        }
+        return n;
+    }
+
+    /** Size of a HashMap and its table, but not its nodes' contents */
+    static long hashMap(int size) {
+        if (size == 0) {
+            // The table is allocated lazily
+            return HASH_MAP;
+        }
+        long capacity = 16;
+        while (capacity * 3 / 4 < size) {
+            capacity <<= 1;
+        }
+        return HASH_MAP + align(ARRAY_HEADER + REFERENCE * capacity) +
+            HASH_MAP_NODE * size;
+    }
+}
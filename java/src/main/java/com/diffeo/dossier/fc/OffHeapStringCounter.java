@@ -0,0 +1,844 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * String multi-set feature stored outside the Java heap.
+ *
+ * This holds the same data as a {@link StringCounter}, a map from
+ * strings to integer counts, and serializes to the same CBOR form
+ * (tag 55800), but it is meant for the rare feature with tens of
+ * millions of terms.  Keys are kept as UTF-8 bytes in a direct
+ * buffer arena, and an open-addressing hash table of (hash, key
+ * offset, key length, count) slots lives in a second direct buffer,
+ * so the garbage collector sees only a handful of objects no matter
+ * how large the counter grows.
+ *
+ * The off-heap memory belongs to this object and is released by
+ * {@link #close}; after that, any use of the counter throws
+ * {@link IllegalStateException}.  A {@link FeatureCollection} does
+ * not close its features, so callers that put one of these into a
+ * collection must close it themselves.
+ *
+ * {@link #writeCbor} and {@link #readCbor} convert directly between
+ * CBOR bytes and off-heap memory without ever creating a
+ * {@link String}.  The Jackson serializer is similarly string-free;
+ * the Jackson deserializer necessarily sees each key as a (transient)
+ * string from the parser.  {@link ChunkReader#setOffHeapFeatures}
+ * reads chosen counters from a chunk file straight into this form.
+ * The {@link #forEach} method visits keys as UTF-8 byte ranges.
+ *
+ * Counts can be changed with {@link #add}, including to zero, but
+ * keys cannot be removed.  This class is not thread-safe.
+ */
+@JsonSerialize(using=OffHeapStringCounter.Serializer.class)
+@JsonDeserialize(using=OffHeapStringCounter.Deserializer.class)
+public class OffHeapStringCounter implements Feature, Closeable {
+    /**
+     * Receives each entry of the counter.
+     *
+     * The key is passed as the bytes between the buffer's position
+     * and limit.  The buffer is reused between calls and is only
+     * valid for the duration of the call.
+     */
+    public interface Visitor {
+        void visit(ByteBuffer utf8, int count) throws IOException;
+    }
+
+    private static final int SLOT_BYTES = 16;
+    private static final int HASH = 0;
+    private static final int OFFSET = 4;  // key offset + 1; 0 if empty
+    private static final int LENGTH = 8;
+    private static final int COUNT = 12;
+    /** Largest table whose size in bytes fits in an int */
+    private static final int MAX_CAPACITY = Integer.highestOneBit
+        (Integer.MAX_VALUE / SLOT_BYTES);
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private ByteBuffer keys;
+    private int keysUsed;
+    private byte[] scratch;
+    private boolean readOnly;
+
+    /**
+     * Create an empty counter with a small initial table.
+     */
+    public OffHeapStringCounter() {
+        this(1024, 65536);
+    }
+
+    /**
+     * Create an empty counter sized for some number of terms.
+     *
+     * Both the table and the key arena grow as needed; sizing them
+     * up front avoids repeated rehashing and copying.  The table is
+     * never made larger than the most it can grow to, so an
+     * excessive expected size is not an error here.
+     *
+     * @param expectedSize      Expected number of distinct terms
+     * @param expectedKeyBytes  Expected total UTF-8 length of all terms
+     */
+    public OffHeapStringCounter(int expectedSize, int expectedKeyBytes) {
+        capacity = tableCapacity(expectedSize);
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        keys = ByteBuffer.allocateDirect(Math.max(expectedKeyBytes, 64));
+        size = 0;
+        keysUsed = 0;
+        scratch = new byte[256];
+        readOnly = false;
+    }
+
+    /**
+     * Copy an on-heap counter.
+     *
+     * @param sc  Counter to copy
+     * @return    New off-heap counter with the same contents
+     */
+    public static OffHeapStringCounter fromStringCounter(StringCounter sc) {
+        Map<String, Integer> strings = sc.getStrings();
+        OffHeapStringCounter oh =
+            new OffHeapStringCounter(strings.size(), 16 * strings.size());
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            oh.add(e.getKey(), e.getValue().intValue());
+        }
+        return oh;
+    }
+
+    /**
+     * Copy this counter to the heap.
+     *
+     * @return  New {@link StringCounter} with the same contents
+     */
+    public StringCounter toStringCounter() {
+        ensureOpen();
+        final StringCounter sc = new StringCounter();
+        for (int slot = 0; slot < capacity; slot++) {
+            int p = slot * SLOT_BYTES;
+            if (slots.getInt(p + OFFSET) != 0) {
+                sc.getStrings().put(keyString(p),
+                                    slots.getInt(p + COUNT));
+            }
+        }
+        return sc;
+    }
+
+    /**
+     * Get the number of distinct terms.
+     *
+     * @return  Number of terms
+     */
+    public int size() {
+        ensureOpen();
+        return size;
+    }
+
+    /**
+     * Get the number of off-heap bytes allocated.
+     *
+     * @return  Total capacity of the table and key arena
+     */
+    public long getOffHeapBytes() {
+        ensureOpen();
+        return (long)slots.capacity() + keys.capacity();
+    }
+
+    /**
+     * Get the count for a term.
+     *
+     * @param key  Term to look up
+     * @return     Its count, or 0 if it is not present
+     */
+    public int get(String key) {
+        ensureOpen();
+        int len = encode(key);
+        ByteBuffer src = ByteBuffer.wrap(scratch);
+        int slot = find(src, 0, len, hash(src, 0, len));
+        if (slot < 0) {
+            return 0;
+        }
+        return slots.getInt(slot * SLOT_BYTES + COUNT);
+    }
+
+    /**
+     * Add some value to the count for a term.
+     *
+     * If the term is not already present, add it as though its
+     * count was previously 0.  This raises an exception if the
+     * counter is read-only.
+     *
+     * @param key  Term to update
+     * @param n    Amount to add to the count
+     */
+    public void add(String key, int n) {
+        checkWritable();
+        int len = encode(key);
+        add(ByteBuffer.wrap(scratch), 0, len, n);
+    }
+
+    /**
+     * Add some value to the count for a UTF-8 encoded term.
+     *
+     * The buffer's position and limit are not used or changed.
+     *
+     * @param utf8    Buffer containing the term
+     * @param offset  Absolute offset of the term in the buffer
+     * @param length  Length of the term in bytes
+     * @param n       Amount to add to the count
+     */
+    public void add(ByteBuffer utf8, int offset, int length, int n) {
+        checkWritable();
+        int h = hash(utf8, offset, length);
+        int slot = find(utf8, offset, length, h);
+        if (slot >= 0) {
+            int p = slot * SLOT_BYTES + COUNT;
+            slots.putInt(p, slots.getInt(p) + n);
+            return;
+        }
+        if ((size + 1) * 4L > capacity * 3L) {
+            rehash(capacity * 2);
+            slot = find(utf8, offset, length, h);
+        }
+        int koff = appendKey(utf8, offset, length);
+        int p = (-1 - slot) * SLOT_BYTES;
+        slots.putInt(p + HASH, h);
+        slots.putInt(p + OFFSET, koff + 1);
+        slots.putInt(p + LENGTH, length);
+        slots.putInt(p + COUNT, n);
+        size++;
+    }
+
+    /**
+     * Visit every entry, in no particular order.
+     *
+     * @param visitor  Receives each key and count
+     * @throws IOException  if the visitor does
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        ensureOpen();
+        ByteBuffer view = keys.asReadOnlyBuffer();
+        for (int slot = 0; slot < capacity; slot++) {
+            int p = slot * SLOT_BYTES;
+            int koff = slots.getInt(p + OFFSET) - 1;
+            if (koff >= 0) {
+                view.limit(koff + slots.getInt(p + LENGTH));
+                view.position(koff);
+                visitor.visit(view, slots.getInt(p + COUNT));
+                view.clear();
+            }
+        }
+    }
+
+    /**
+     * Release the off-heap memory.
+     *
+     * Calling this more than once has no further effect.
+     */
+    public void close() {
+        if (slots == null) {
+            return;
+        }
+        DirectBuffers.free(slots);
+        DirectBuffers.free(keys);
+        slots = null;
+        keys = null;
+        scratch = null;
+        capacity = 0;
+        size = 0;
+    }
+
+    /**
+     * Get the read-only flag.
+     *
+     * @return  Current value of read-only flag
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set the read-only flag.
+     *
+     * @param ro  New value of read-only flag
+     */
+    public void setReadOnly(boolean ro) {
+        readOnly = ro;
+    }
+
+    /* Hash table internals */
+
+    private void ensureOpen() {
+        if (slots == null) {
+            throw new IllegalStateException("off-heap counter is closed");
+        }
+    }
+
+    private void checkWritable() {
+        ensureOpen();
+        if (readOnly) {
+            throw new UnsupportedOperationException("read-only counter");
+        }
+    }
+
+    private static int hash(ByteBuffer b, int off, int len) {
+        // FNV-1a, then the murmur3 finalizer to spread low bits
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h ^= b.get(i) & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Find the slot for a key.
+     *
+     * @return  The slot index if found, or -1 minus the index of the
+     *          empty slot where it would go
+     */
+    private int find(ByteBuffer src, int off, int len, int h) {
+        int mask = capacity - 1;
+        int slot = h & mask;
+        while (true) {
+            int p = slot * SLOT_BYTES;
+            int koff = slots.getInt(p + OFFSET) - 1;
+            if (koff < 0) {
+                return -1 - slot;
+            }
+            if (slots.getInt(p + HASH) == h &&
+                slots.getInt(p + LENGTH) == len &&
+                keyEquals(src, off, koff, len)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(ByteBuffer src, int off, int koff, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            if (src.getLong(off + i) != keys.getLong(koff + i)) {
+                return false;
+            }
+        }
+        for (; i < len; i++) {
+            if (src.get(off + i) != keys.get(koff + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Smallest table that holds some number of terms, up to the limit */
+    private static int tableCapacity(long terms) {
+        int c = 16;
+        while (c < MAX_CAPACITY && c * 3L < terms * 4L) {
+            c <<= 1;
+        }
+        return c;
+    }
+
+    /**
+     * Grow the table and key arena ahead of a known number of terms.
+     *
+     * Both are only hints, clamped to what the counter can hold;
+     * adding terms past them still grows the counter as usual.
+     *
+     * @param terms     Expected number of distinct terms
+     * @param keyBytes  Expected total UTF-8 length of all terms
+     */
+    void reserve(long terms, long keyBytes) {
+        int c = tableCapacity(terms);
+        if (c > capacity) {
+            rehash(c);
+        }
+        long want = Math.min(keyBytes, Integer.MAX_VALUE);
+        if (want > keys.capacity()) {
+            growKeys(want);
+        }
+    }
+
+    /**
+     * Remove every term, keeping the allocated memory.
+     */
+    void clear() {
+        checkWritable();
+        for (int p = 0; p < capacity * SLOT_BYTES; p += 8) {
+            slots.putLong(p, 0L);
+        }
+        size = 0;
+        keysUsed = 0;
+    }
+
+    private void growKeys(long want) {
+        ByteBuffer n = ByteBuffer.allocateDirect((int)want);
+        ByteBuffer old = keys.duplicate();
+        old.position(0).limit(keysUsed);
+        n.put(old);
+        DirectBuffers.free(keys);
+        keys = n;
+    }
+
+    private int appendKey(ByteBuffer src, int off, int len) {
+        if (keys.capacity() - keysUsed < len) {
+            long want = Math.max(2L * keys.capacity(), (long)keysUsed + len);
+            if ((long)keysUsed + len > Integer.MAX_VALUE) {
+                throw new IllegalStateException("off-heap key arena full");
+            }
+            growKeys(Math.min(want, Integer.MAX_VALUE));
+        }
+        int koff = keysUsed;
+        if (src.hasArray()) {
+            keys.position(koff);
+            keys.put(src.array(), src.arrayOffset() + off, len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                keys.put(koff + i, src.get(off + i));
+            }
+        }
+        keysUsed += len;
+        return koff;
+    }
+
+    private void rehash(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("off-heap counter table full");
+        }
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+        capacity = newCapacity;
+        int mask = newCapacity - 1;
+        for (int s = 0; s < oldCapacity; s++) {
+            int p = s * SLOT_BYTES;
+            if (old.getInt(p + OFFSET) == 0) {
+                continue;
+            }
+            int h = old.getInt(p + HASH);
+            int slot = h & mask;
+            while (slots.getInt(slot * SLOT_BYTES + OFFSET) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int q = slot * SLOT_BYTES;
+            slots.putInt(q + HASH, h);
+            slots.putInt(q + OFFSET, old.getInt(p + OFFSET));
+            slots.putInt(q + LENGTH, old.getInt(p + LENGTH));
+            slots.putInt(q + COUNT, old.getInt(p + COUNT));
+        }
+        DirectBuffers.free(old);
+    }
+
+    private String keyString(int p) {
+        int koff = slots.getInt(p + OFFSET) - 1;
+        int len = slots.getInt(p + LENGTH);
+        byte[] utf8 = new byte[len];
+        ByteBuffer view = keys.duplicate();
+        view.position(koff);
+        view.get(utf8);
+        return new String(utf8, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    /**
+     * UTF-8 encode a string into the scratch buffer.
+     *
+     * Unpaired surrogates become '?', as with {@link String#getBytes}.
+     *
+     * @return  Encoded length
+     */
+    private int encode(String s) {
+        int n = s.length();
+        if (scratch.length < 3 * n) {
+            scratch = new byte[Math.max(3 * n, 2 * scratch.length)];
+        }
+        byte[] b = scratch;
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte)c;
+            } else if (c < 0x800) {
+                b[p++] = (byte)(0xc0 | (c >> 6));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte)(0xf0 | (cp >> 18));
+                b[p++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = (byte)'?';
+            } else {
+                b[p++] = (byte)(0xe0 | (c >> 12));
+                b[p++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        return p;
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        OffHeapStringCounter rhs = (OffHeapStringCounter)obj;
+        ensureOpen();
+        rhs.ensureOpen();
+        if (size != rhs.size) {
+            return false;
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            int p = slot * SLOT_BYTES;
+            int koff = slots.getInt(p + OFFSET) - 1;
+            if (koff < 0) {
+                continue;
+            }
+            int other = rhs.find(keys, koff, slots.getInt(p + LENGTH),
+                                 slots.getInt(p + HASH));
+            if (other < 0 ||
+                rhs.slots.getInt(other * SLOT_BYTES + COUNT) !=
+                slots.getInt(p + COUNT)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        ensureOpen();
+        // Order-independent, since slot order depends on history
+        int h = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int p = slot * SLOT_BYTES;
+            if (slots.getInt(p + OFFSET) != 0) {
+                h += slots.getInt(p + HASH) * 31 + slots.getInt(p + COUNT);
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("size", size)
+            .append("offHeapBytes", slots == null ? 0 : getOffHeapBytes())
+            .toString();
+    }
+
+    /* Direct CBOR encoding */
+
+    /**
+     * Write this counter as a CBOR item.
+     *
+     * The output is a definite-length map, tagged 55800, in the same
+     * form as a serialized {@link StringCounter}.  Keys are copied
+     * straight from off-heap memory.
+     *
+     * @param out  Stream to write to; it is not closed or flushed
+     * @throws IOException  if writing fails
+     */
+    public void writeCbor(OutputStream out) throws IOException {
+        ensureOpen();
+        byte[] buf = new byte[8192];
+        int p = Cbor.header(buf, 0, Cbor.MAJOR_TAG,
+                            FeatureCollection.CBOR_STRING_COUNTER);
+        p = Cbor.header(buf, p, Cbor.MAJOR_MAP, size);
+        for (int slot = 0; slot < capacity; slot++) {
+            int s = slot * SLOT_BYTES;
+            int koff = slots.getInt(s + OFFSET) - 1;
+            if (koff < 0) {
+                continue;
+            }
+            int len = slots.getInt(s + LENGTH);
+            if (p + 2 * Cbor.MAX_HEADER + len > buf.length) {
+                out.write(buf, 0, p);
+                p = 0;
+                if (2 * Cbor.MAX_HEADER + len > buf.length) {
+                    buf = new byte[2 * Cbor.MAX_HEADER + len];
+                }
+            }
+            p = Cbor.header(buf, p, Cbor.MAJOR_TEXT, len);
+            ByteBuffer view = keys.duplicate();
+            view.position(koff);
+            view.get(buf, p, len);
+            p += len;
+            p = Cbor.integer(buf, p, slots.getInt(s + COUNT));
+        }
+        out.write(buf, 0, p);
+    }
+
+    /**
+     * Read a CBOR-encoded string counter directly into off-heap memory.
+     *
+     * The item is read from the buffer's current position, which is
+     * advanced past it.  It may be a tagged or untagged map, of
+     * definite or indefinite length, from text-string keys to
+     * integer counts.
+     *
+     * @param src  Buffer holding the encoded counter
+     * @return     New off-heap counter
+     * @throws IOException  if the data is not a valid string counter
+     */
+    public static OffHeapStringCounter readCbor(ByteBuffer src)
+        throws IOException {
+        OffHeapStringCounter oh = new OffHeapStringCounter();
+        try {
+            oh.readCborInto(src);
+        } catch (IOException e) {
+            oh.close();
+            throw e;
+        }
+        return oh;
+    }
+
+    /**
+     * Replace this counter's contents with a CBOR-encoded counter.
+     *
+     * This reads the same forms as {@link #readCbor}, reusing this
+     * counter's off-heap memory.
+     *
+     * @param src  Buffer holding the encoded counter
+     * @throws IOException  if the data is not a valid string counter
+     */
+    void readCborInto(ByteBuffer src) throws IOException {
+        clear();
+        try {
+            int ib = src.get() & 0xff;
+            if ((ib >> 5) == Cbor.MAJOR_TAG) {
+                long tag = argument(src, ib);
+                if (tag != FeatureCollection.CBOR_STRING_COUNTER) {
+                    throw new IOException("unexpected CBOR tag " + tag);
+                }
+                ib = src.get() & 0xff;
+            }
+            if ((ib >> 5) != Cbor.MAJOR_MAP) {
+                throw new IOException("expected a CBOR map");
+            }
+            long n = argument(src, ib);
+            if (n >= 0) {
+                // Every entry takes at least two bytes, so a larger
+                // count cannot be genuine; otherwise it is only a
+                // sizing hint
+                if (n > src.remaining() / 2) {
+                    throw new IOException("string counter of " + n +
+                                          " entries in " + src.remaining() +
+                                          " bytes");
+                }
+                reserve(n, Math.min(16 * n, src.remaining()));
+            }
+            for (long i = 0; n < 0 || i < n; i++) {
+                ib = src.get() & 0xff;
+                if (n < 0 && ib == 0xff) {
+                    break;
+                }
+                readEntry(src, ib);
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("truncated CBOR string counter");
+        }
+    }
+
+    private void readEntry(ByteBuffer src, int ib) throws IOException {
+        if ((ib >> 5) != Cbor.MAJOR_TEXT) {
+            throw new IOException("expected a text string key");
+        }
+        long len = argument(src, ib);
+        ByteBuffer key;
+        int off;
+        if (len > src.remaining()) {
+            throw new IOException("truncated CBOR string counter");
+        }
+        if (len >= 0) {
+            key = src;
+            off = src.position();
+            src.position(off + (int)len);
+        } else {
+            // Indefinite-length string: concatenate chunks in scratch
+            int p = 0;
+            while ((ib = src.get() & 0xff) != 0xff) {
+                long clen = argument(src, ib);
+                if ((ib >> 5) != Cbor.MAJOR_TEXT || clen < 0) {
+                    throw new IOException("bad text string chunk");
+                }
+                if (clen > src.remaining()) {
+                    throw new IOException("truncated CBOR string counter");
+                }
+                if (p + clen > scratch.length) {
+                    byte[] n = new byte[(int)Math.max(2 * scratch.length,
+                                                      p + clen)];
+                    System.arraycopy(scratch, 0, n, 0, p);
+                    scratch = n;
+                }
+                src.get(scratch, p, (int)clen);
+                p += clen;
+            }
+            key = ByteBuffer.wrap(scratch);
+            off = 0;
+            len = p;
+        }
+        ib = src.get() & 0xff;
+        long v = argument(src, ib);
+        if ((ib >> 5) == Cbor.MAJOR_NEGATIVE) {
+            v = -1 - v;
+        } else if ((ib >> 5) != Cbor.MAJOR_UNSIGNED || v < 0) {
+            throw new IOException("expected an integer count");
+        }
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw new IOException("count out of range: " + v);
+        }
+        add(key, off, (int)len, (int)v);
+    }
+
+    /**
+     * Read the argument of an item header.
+     *
+     * @return  The argument, or -1 for indefinite length
+     */
+    private static long argument(ByteBuffer src, int ib) throws IOException {
+        int info = ib & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+        case 24:
+            return src.get() & 0xffL;
+        case 25:
+            return src.getShort() & 0xffffL;
+        case 26:
+            return src.getInt() & 0xffffffffL;
+        case 27:
+            long v = src.getLong();
+            if (v < 0) {
+                throw new IOException("CBOR argument too large");
+            }
+            return v;
+        case 31:
+            return -1;
+        default:
+            throw new IOException("invalid CBOR header " + ib);
+        }
+    }
+
+    /* JSON/CBOR serialization */
+
+    public static class Serializer
+        extends StdSerializer<OffHeapStringCounter> {
+        public Serializer() {
+            super(OffHeapStringCounter.class);
+        }
+
+        @Override
+        public void serialize(OffHeapStringCounter value,
+                              final JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (!(jgen instanceof CBORGenerator)) {
+                jgen.writeStartObject();
+                for (Map.Entry<String, Integer> e :
+                         value.toStringCounter().getStrings().entrySet()) {
+                    jgen.writeNumberField(e.getKey(), e.getValue());
+                }
+                jgen.writeEndObject();
+                return;
+            }
+            final CBORGenerator cgen = (CBORGenerator)jgen;
+            cgen.writeTag(FeatureCollection.CBOR_STRING_COUNTER);
+            // Jackson needs to see the map start and end to track its
+            // context, but the entries are written as raw CBOR
+            cgen.writeStartObject();
+            final byte[] hdr = new byte[Cbor.MAX_HEADER];
+            final byte[] chunk = new byte[4096];
+            value.forEach(new Visitor() {
+                    public void visit(ByteBuffer utf8, int count)
+                        throws IOException {
+                        int len = utf8.remaining();
+                        cgen.writeBytes(hdr, 0, Cbor.header
+                                        (hdr, 0, Cbor.MAJOR_TEXT, len));
+                        while (utf8.hasRemaining()) {
+                            int n = Math.min(chunk.length, utf8.remaining());
+                            utf8.get(chunk, 0, n);
+                            cgen.writeBytes(chunk, 0, n);
+                        }
+                        cgen.writeBytes(hdr, 0, Cbor.integer(hdr, 0, count));
+                    }
+                });
+            cgen.writeEndObject();
+        }
+    }
+
+    public static class Deserializer
+        extends StdDeserializer<OffHeapStringCounter> {
+        /**
+         * generated serial version ID
+         */
+        private static final long serialVersionUID = 1L;
+
+        public Deserializer() {
+            super(OffHeapStringCounter.class);
+        }
+
+        @Override
+        public OffHeapStringCounter deserialize(JsonParser jp,
+                                                DeserializationContext dctx)
+            throws IOException {
+            if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+                throw new InvalidFormatException
+                    ("expected a map for a string counter", jp,
+                     OffHeapStringCounter.class);
+            }
+            OffHeapStringCounter oh = new OffHeapStringCounter();
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                if (jp.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+                    oh.close();
+                    throw new InvalidFormatException
+                        ("expected an integer count", jp,
+                         OffHeapStringCounter.class);
+                }
+                oh.add(key, jp.getIntValue());
+            }
+            return oh;
+        }
+    }
+}
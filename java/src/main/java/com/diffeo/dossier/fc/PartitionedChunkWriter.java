@@ -0,0 +1,527 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes a stream of collections to several chunk files by key.
+ *
+ * Each collection is routed to one of a fixed number of partitions
+ * by a hash of a key taken from it, such as its document ID, so a
+ * corpus can be sharded for parallel consumers as it is produced
+ * rather than in a separate pass.  Collections with the same key
+ * always land in the same partition, in the order they were written.
+ * Each partition is its own {@link ChunkWriter}, with its own queue,
+ * encoder threads, and I/O thread, so a slow partition does not hold
+ * up the others until its queue fills.
+ *
+ * <pre>
+ * PartitionedChunkWriter writer = new PartitionedChunkWriter
+ *     (mapper, Paths.get("out"), "corpus", 16,
+ *      PartitionedChunkWriter.byStringFeature("doc_id"));
+ * writer.write(fc1);
+ * writer.write(fc2);
+ * writer.close();
+ * </pre>
+ *
+ * Partition <i>i</i> is written to a temporary file next to its
+ * final name, <tt>corpus-0000<i>i</i>.fc</tt>.  Only when every
+ * partition has closed cleanly are the files renamed into place, and
+ * then a manifest, <tt>corpus.manifest</tt>, is written listing each
+ * partition's file name, record count, and size.  Any manifest of an
+ * earlier set with the same prefix is deleted before the first
+ * rename, and the new one is written last, so its presence means the
+ * whole set is complete; readers should find partitions through
+ * {@link #readManifest} rather than by listing the directory.  If any
+ * partition fails, the temporary files are deleted and nothing is
+ * renamed, leaving an earlier set untouched.
+ *
+ * Collections whose key is <tt>null</tt> are spread over the
+ * partitions in turn.  Like {@link ChunkWriter}, a writer may be
+ * shared by several producer threads.
+ */
+public class PartitionedChunkWriter implements Closeable, Flushable {
+    /**
+     * Extracts the partitioning key of a collection.
+     */
+    public interface KeyExtractor {
+        /**
+         * Get the key of a collection.
+         *
+         * @param fc  Collection about to be written
+         * @return    Key, or <tt>null</tt> if it has none
+         */
+        String key(FeatureCollection fc);
+    }
+
+    /**
+     * One entry of a manifest.
+     */
+    public static class Partition {
+        private final Path path;
+        private final long records;
+        private final long bytes;
+
+        Partition(Path path, long records, long bytes) {
+            this.path = path;
+            this.records = records;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get the partition's chunk file.
+         *
+         * @return  Path, resolved against the manifest's directory
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Get the number of collections in the partition.
+         *
+         * @return  Record count
+         */
+        public long getRecordCount() {
+            return records;
+        }
+
+        /**
+         * Get the size of the partition's chunk file.
+         *
+         * @return  Size in bytes
+         */
+        public long getByteCount() {
+            return bytes;
+        }
+    }
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String MANIFEST_HEADER = "# dossier.fc partitions 1";
+    private static final int MIN_BATCH_BYTES = 64 * 1024;
+
+    private final KeyExtractor keys;
+    private final ChunkWriter[] writers;
+    private final Path[] paths;
+    private final Path[] temps;
+    private final Path manifest;
+    private final AtomicLongArray counts;
+    private final AtomicLong unkeyed;
+    private boolean bloom;
+    private boolean closed;
+
+    /**
+     * Create a writer with default settings.
+     *
+     * The available processors are shared out as encoder threads,
+     * at least one per partition, and {@link ChunkWriter#DEFAULT_BATCH_BYTES}
+     * of write buffer is shared out likewise, at least 64 KiB per
+     * partition.  Each partition syncs on close.
+     *
+     * @param mapper      Object mapper to encode with
+     * @param directory   Directory to write the partitions and the
+     *                    manifest in
+     * @param prefix      Common prefix of the file names
+     * @param partitions  Number of partitions
+     * @param keys        Key extractor
+     * @throws IOException  if a file cannot be opened
+     */
+    public PartitionedChunkWriter(ObjectMapper mapper, Path directory,
+                                  String prefix, int partitions,
+                                  KeyExtractor keys)
+        throws IOException {
+        this(mapper, directory, prefix, partitions, keys,
+             ChunkWriter.DEFAULT_QUEUE_CAPACITY,
+             Math.max(1, Runtime.getRuntime().availableProcessors() /
+                      Math.max(1, partitions)),
+             Math.max(MIN_BATCH_BYTES,
+                      ChunkWriter.DEFAULT_BATCH_BYTES / Math.max(1, partitions)),
+             ChunkWriter.SyncPolicy.ON_CLOSE);
+    }
+
+    /**
+     * Create a writer.
+     *
+     * The queue, thread, and buffer settings apply to each partition
+     * separately; see {@link ChunkWriter}.
+     *
+     * @param mapper          Object mapper to encode with
+     * @param directory       Directory to write the partitions and
+     *                        the manifest in
+     * @param prefix          Common prefix of the file names
+     * @param partitions      Number of partitions
+     * @param keys            Key extractor
+     * @param queueCapacity   Queue length of each partition
+     * @param encoderThreads  Encoder threads of each partition, or 0
+     *                        to encode on the calling thread
+     * @param batchBytes      Write buffer size of each partition
+     * @param sync            When to force data to the device
+     * @throws IOException  if a file cannot be opened
+     */
+    public PartitionedChunkWriter(ObjectMapper mapper, Path directory,
+                                  String prefix, int partitions,
+                                  KeyExtractor keys, int queueCapacity,
+                                  int encoderThreads, int batchBytes,
+                                  ChunkWriter.SyncPolicy sync)
+        throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions < 1");
+        }
+        this.keys = keys;
+        this.writers = new ChunkWriter[partitions];
+        this.paths = new Path[partitions];
+        this.temps = new Path[partitions];
+        this.manifest = directory.resolve(prefix + MANIFEST_SUFFIX);
+        this.counts = new AtomicLongArray(partitions);
+        this.unkeyed = new AtomicLong();
+        this.bloom = false;
+        this.closed = false;
+        try {
+            for (int i = 0; i < partitions; i++) {
+                paths[i] = directory.resolve
+                    (String.format("%s-%05d.fc", prefix, i));
+                temps[i] = paths[i].resolveSibling
+                    (paths[i].getFileName() + ".tmp");
+                writers[i] = new ChunkWriter
+                    (mapper, FileChannel.open
+                     (temps[i], StandardOpenOption.CREATE,
+                      StandardOpenOption.WRITE,
+                      StandardOpenOption.TRUNCATE_EXISTING),
+                     queueCapacity, encoderThreads, batchBytes, sync);
+            }
+        } catch (IOException e) {
+            abandon();
+            throw e;
+        } catch (RuntimeException e) {
+            abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Get a key extractor that uses a string feature's value.
+     *
+     * Collections without the feature, or where it is not a
+     * {@link StringFeature}, have no key.
+     *
+     * @param feature  Feature name, such as a document ID feature
+     * @return         Key extractor
+     */
+    public static KeyExtractor byStringFeature(final String feature) {
+        return new KeyExtractor() {
+            public String key(FeatureCollection fc) {
+                Feature f = fc.rawFeatures().get(feature);
+                if (f instanceof StringFeature) {
+                    return ((StringFeature)f).getValue();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Find the partition of a key.
+     *
+     * This is a stable function of the key, the same in every JVM,
+     * so producers and consumers can agree on where a key lives.  It
+     * is part of the on-disk layout of a partitioned corpus and must
+     * never change: the key's UTF-8 bytes are hashed with 64-bit
+     * FNV-1a, the result is mixed with the MurmurHash3
+     * <tt>fmix64</tt> finalizer, and the partition is the mixed hash,
+     * shifted right one bit as an unsigned value, modulo the number
+     * of partitions.  This can be reproduced in any language.
+     *
+     * @param key         Key
+     * @param partitions  Number of partitions
+     * @return            Partition number between 0 and
+     *                    <tt>partitions</tt>
+     */
+    public static int partitionOf(String key, int partitions) {
+        return (int)((partitionHash(key) >>> 1) % partitions);
+    }
+
+    /**
+     * Hash a key for {@link #partitionOf}.
+     *
+     * This is deliberately independent of every other hash in this
+     * package, such as the {@link ChunkBloomIndex} one, so that they
+     * can change without moving keys between partitions.
+     *
+     * @param key  Key
+     * @return     64-bit hash
+     */
+    static long partitionHash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Write the partitions with canonical CBOR encoding.
+     *
+     * This must be called before the first record is written.
+     *
+     * @param c  <tt>true</tt> to encode with {@link CanonicalCbor}
+     * @see ChunkWriter#setCanonical
+     */
+    public void setCanonical(boolean c) {
+        for (ChunkWriter w : writers) {
+            w.setCanonical(c);
+        }
+    }
+
+    /**
+     * Write the partitions with CBOR string references.
+     *
+     * This must be called before the first record is written.
+     *
+     * @param refs  <tt>true</tt> to write string references
+     * @see ChunkWriter#setStringReferences
+     */
+    public void setStringReferences(boolean refs) {
+        for (ChunkWriter w : writers) {
+            w.setStringReferences(refs);
+        }
+    }
+
+    /**
+     * Build a {@link ChunkBloomIndex} of each partition.
+     *
+     * Each index is written next to its partition's temporary file and
+     * renamed to the sidecar of the final name along with the chunk,
+     * or deleted if the writer fails.  This must be called before the
+     * first record is written.
+     *
+     * @param blockRecords       Number of records per block
+     * @param falsePositiveRate  Target false-positive rate
+     * @see ChunkWriter#setBloomIndex
+     */
+    public void setBloomIndex(int blockRecords, double falsePositiveRate) {
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].setBloomIndex(ChunkBloomIndex.sidecarFor(temps[i]),
+                                     blockRecords, falsePositiveRate);
+        }
+        bloom = true;
+    }
+
+    /**
+     * Get the number of partitions.
+     *
+     * @return  Number of chunk files written
+     */
+    public int getPartitionCount() {
+        return writers.length;
+    }
+
+    /**
+     * Get the final path of a partition.
+     *
+     * @param partition  Partition number
+     * @return           Path the partition has once the writer closes
+     */
+    public Path getPath(int partition) {
+        return paths[partition];
+    }
+
+    /**
+     * Get the path of the manifest.
+     *
+     * @return  Path the manifest has once the writer closes
+     */
+    public Path getManifestPath() {
+        return manifest;
+    }
+
+    /**
+     * Get the number of collections routed to a partition so far.
+     *
+     * @param partition  Partition number
+     * @return           Record count
+     */
+    public long getRecordCount(int partition) {
+        return counts.get(partition);
+    }
+
+    /**
+     * Queue a collection to be written to its partition.
+     *
+     * This blocks if the partition's queue is full.
+     *
+     * @param fc  Collection to write
+     * @return    Partition it was routed to
+     * @throws IOException  if an earlier record of the partition
+     *                      failed, or if interrupted while waiting
+     */
+    public int write(FeatureCollection fc) throws IOException {
+        String key = keys.key(fc);
+        int p;
+        if (key == null) {
+            p = (int)(unkeyed.getAndIncrement() % writers.length);
+        } else {
+            p = partitionOf(key, writers.length);
+        }
+        writers[p].write(fc);
+        counts.incrementAndGet(p);
+        return p;
+    }
+
+    /**
+     * Wait until every collection queued so far has been written.
+     *
+     * @throws IOException  if any record failed to be written
+     */
+    public void flush() throws IOException {
+        for (ChunkWriter w : writers) {
+            w.flush();
+        }
+    }
+
+    /**
+     * Close every partition and publish the files.
+     *
+     * If every partition closes cleanly, any earlier manifest is
+     * deleted, the temporary files and their Bloom index sidecars are
+     * renamed to their final names, and the new manifest is written;
+     * otherwise they are deleted.  Calling this more than once has no
+     * further effect.
+     *
+     * @throws IOException  if any partition failed
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (ChunkWriter w : writers) {
+            try {
+                w.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            abandon();
+            throw failure;
+        }
+        // From here until the new manifest lands the directory holds a
+        // mix of old and new partitions, so the old manifest must not
+        // vouch for them
+        Files.deleteIfExists(manifest);
+        List<String> lines = new ArrayList<String>();
+        lines.add(MANIFEST_HEADER);
+        for (int i = 0; i < writers.length; i++) {
+            Path sidecar = ChunkBloomIndex.sidecarFor(paths[i]);
+            if (bloom) {
+                Files.move(ChunkBloomIndex.sidecarFor(temps[i]), sidecar,
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                // An earlier set's index would not describe this file
+                Files.deleteIfExists(sidecar);
+            }
+            Files.move(temps[i], paths[i],
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            lines.add(paths[i].getFileName() + "\t" + counts.get(i) + "\t" +
+                      Files.size(paths[i]));
+        }
+        Path tmp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Close whatever writers are open and delete their files */
+    private void abandon() {
+        for (int i = 0; i < writers.length; i++) {
+            Path sidecar = (bloom && temps[i] != null)
+                ? ChunkBloomIndex.sidecarFor(temps[i]) : null;
+            if (writers[i] != null) {
+                try {
+                    writers[i].close();
+                } catch (IOException e) {
+                    // already failing
+                }
+            }
+            for (Path p : new Path[] { temps[i], sidecar }) {
+                if (p == null) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    // best effort
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a manifest written by this class.
+     *
+     * @param manifest  Manifest file
+     * @return          Unmodifiable list of partitions, in order
+     * @throws IOException  if the file cannot be read or is invalid
+     */
+    public static List<Partition> readManifest(Path manifest)
+        throws IOException {
+        List<String> lines = Files.readAllLines(manifest,
+                                                StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(MANIFEST_HEADER)) {
+            throw new IOException("not a partition manifest: " + manifest);
+        }
+        List<Partition> partitions = new ArrayList<Partition>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                throw new IOException("bad manifest line: " + line);
+            }
+            try {
+                partitions.add(new Partition
+                               (manifest.resolveSibling(fields[0]),
+                                Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad manifest line: " + line, e);
+            }
+        }
+        return Collections.unmodifiableList(partitions);
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Read-only string multi-set stored as a compressed trie.
+ *
+ * This holds the same data as a {@link StringCounter} and serializes
+ * to the same CBOR form (tag 55800), but is built once and then
+ * answers prefix queries: {@link #prefixSum} returns the total count
+ * of all terms beginning with a prefix in time proportional to the
+ * prefix length, and {@link #forEachWithPrefix} visits those terms,
+ * in sorted order, in time proportional to their total length.
+ *
+ * The trie is a radix (Patricia) tree over the terms' UTF-16 chars,
+ * so a chain of nodes with a single child collapses into one node
+ * whose edge holds several chars.  Nodes are laid out breadth-first
+ * in a handful of parallel arrays, each node's children contiguous
+ * and sorted by their first char, and all edge labels share a single
+ * <tt>char</tt> array.  For vocabularies with long shared prefixes,
+ * such as URLs or hierarchical paths, this takes a fraction of the
+ * memory of a {@link java.util.HashMap} of {@link String} and
+ * {@link Integer} objects; {@link #getRetainedBytes} reports the
+ * size of the arrays.
+ *
+ * <pre>
+ * PrefixCounter urls = PrefixCounter.fromStringCounter(sc);
+ * long hits = urls.prefixSum("http://example.com/news/");
+ * </pre>
+ *
+ * A prefix counter is always read-only: {@link #setReadOnly} has no
+ * effect, so it can live in a writable {@link FeatureCollection}.
+ * Deserializing a feature collection produces {@link StringCounter}
+ * objects as usual; convert them with {@link #fromStringCounter}.
+ * Instances are immutable and thread-safe.
+ */
+@JsonSerialize(using=PrefixCounter.Serializer.class)
+public class PrefixCounter implements Feature {
+    /**
+     * Receives each term and count.
+     */
+    public interface Visitor {
+        void visit(String term, int count) throws IOException;
+    }
+
+    /* Node i's edge label is labels[labelStart[i] .. labelStart[i+1]) */
+    private final char[] labels;
+    private final int[] labelStart;
+    /* Node i's children are firstChild[i] .. firstChild[i+1]-1 */
+    private final int[] firstChild;
+    /* Node i is a complete term with count counts[i] */
+    private final BitSet terminal;
+    private final int[] counts;
+    /* Sum of counts of every term in node i's subtree */
+    private final long[] totals;
+    private final int size;
+
+    /**
+     * Build a counter from a map of terms to counts.
+     *
+     * @param strings  Terms and counts; not retained
+     */
+    public PrefixCounter(Map<String, Integer> strings) {
+        String[] terms = strings.keySet().toArray(new String[strings.size()]);
+        Arrays.sort(terms);
+        size = terms.length;
+
+        // Build breadth-first: each queue entry is a node whose
+        // children are the terms in [lo, hi) beyond char depth.
+        int maxNodes = 2 * terms.length + 1;
+        int[] lo = new int[maxNodes];
+        int[] hi = new int[maxNodes];
+        int[] depth = new int[maxNodes];
+        int[] parent = new int[maxNodes];
+        int[] starts = new int[maxNodes + 1];
+        int[] first = new int[maxNodes + 1];
+        int[] cnt = new int[maxNodes];
+        BitSet term = new BitSet();
+        StringBuilder chars = new StringBuilder();
+
+        int nodes = 1;
+        lo[0] = 0;
+        hi[0] = terms.length;
+        depth[0] = 0;
+        parent[0] = -1;
+        if (terms.length > 0 && terms[0].isEmpty()) {
+            term.set(0);
+            cnt[0] = strings.get(terms[0]).intValue();
+            lo[0] = 1;
+        }
+        for (int n = 0; n < nodes; n++) {
+            first[n] = nodes;
+            starts[n] = chars.length();
+            if (n > 0) {
+                String s = terms[lo[n]];
+                chars.append(s, depth[parent[n]], depth[n]);
+                if (s.length() == depth[n]) {
+                    // Sorted order puts the exact term first
+                    term.set(n);
+                    cnt[n] = strings.get(s).intValue();
+                    lo[n]++;
+                }
+            }
+            int d = depth[n];
+            int i = lo[n];
+            while (i < hi[n]) {
+                char c = terms[i].charAt(d);
+                int j = i + 1;
+                while (j < hi[n] && terms[j].charAt(d) == c) {
+                    j++;
+                }
+                lo[nodes] = i;
+                hi[nodes] = j;
+                depth[nodes] = commonPrefix(terms[i], terms[j - 1], d + 1);
+                parent[nodes] = n;
+                nodes++;
+                i = j;
+            }
+        }
+        first[nodes] = nodes;
+        starts[nodes] = chars.length();
+
+        labels = new char[chars.length()];
+        chars.getChars(0, chars.length(), labels, 0);
+        labelStart = Arrays.copyOf(starts, nodes + 1);
+        firstChild = Arrays.copyOf(first, nodes + 1);
+        counts = Arrays.copyOf(cnt, nodes);
+        terminal = term;
+        totals = new long[nodes];
+        for (int n = nodes - 1; n >= 0; n--) {
+            if (terminal.get(n)) {
+                totals[n] += counts[n];
+            }
+            if (n > 0) {
+                totals[parent[n]] += totals[n];
+            }
+        }
+    }
+
+    private static int commonPrefix(String a, String b, int from) {
+        int end = Math.min(a.length(), b.length());
+        int k = from;
+        while (k < end && a.charAt(k) == b.charAt(k)) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Build a counter with the contents of a {@link StringCounter}.
+     *
+     * @param sc  Counter to copy
+     * @return    New prefix counter
+     */
+    public static PrefixCounter fromStringCounter(StringCounter sc) {
+        return new PrefixCounter(sc.getStrings());
+    }
+
+    /**
+     * Copy this counter into a new {@link StringCounter}.
+     *
+     * @return  Writable counter with the same contents
+     */
+    public StringCounter toStringCounter() {
+        final StringCounter sc = new StringCounter();
+        try {
+            forEachWithPrefix("", new Visitor() {
+                    public void visit(String term, int count) {
+                        sc.getStrings().put(term, count);
+                    }
+                });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sc;
+    }
+
+    /**
+     * Get the number of distinct terms.
+     *
+     * @return  Number of terms
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the count for a term.
+     *
+     * @param term  Term to look up
+     * @return      Its count, or 0 if it is not present
+     */
+    public int get(String term) {
+        int n = exact(term);
+        return (n < 0) ? 0 : counts[n];
+    }
+
+    /**
+     * Check whether a term is present.
+     *
+     * @param term  Term to look up
+     * @return      <tt>true</tt> if the term has a count
+     */
+    public boolean contains(String term) {
+        return exact(term) >= 0;
+    }
+
+    /**
+     * Get the total count of all terms beginning with a prefix.
+     *
+     * @param prefix  Prefix to match; the empty string matches all
+     * @return        Sum of the counts of matching terms
+     */
+    public long prefixSum(String prefix) {
+        long found = find(prefix);
+        return (found < 0) ? 0 : totals[(int)(found >>> 32)];
+    }
+
+    /**
+     * Visit every term beginning with a prefix, in sorted order.
+     *
+     * Terms are sorted by {@link String#compareTo}.
+     *
+     * @param prefix   Prefix to match; the empty string matches all
+     * @param visitor  Receives each matching term and its count
+     * @throws IOException  if the visitor does
+     */
+    public void forEachWithPrefix(String prefix, Visitor visitor)
+        throws IOException {
+        long found = find(prefix);
+        if (found < 0) {
+            return;
+        }
+        // The path to n matched all of prefix and part of n's label
+        int n = (int)(found >>> 32);
+        int matched = (int)found;
+        StringBuilder sb = new StringBuilder(prefix);
+        sb.append(labels, labelStart[n] + matched,
+                  labelStart[n + 1] - labelStart[n] - matched);
+        visit(n, sb, visitor);
+    }
+
+    private void visit(int n, StringBuilder sb, Visitor visitor)
+        throws IOException {
+        if (terminal.get(n)) {
+            visitor.visit(sb.toString(), counts[n]);
+        }
+        int len = sb.length();
+        for (int c = firstChild[n]; c < firstChild[n + 1]; c++) {
+            sb.append(labels, labelStart[c], labelStart[c + 1] - labelStart[c]);
+            visit(c, sb, visitor);
+            sb.setLength(len);
+        }
+    }
+
+    /** Find the node for exactly a term, or -1 */
+    private int exact(String term) {
+        long found = find(term);
+        if (found < 0) {
+            return -1;
+        }
+        int n = (int)(found >>> 32);
+        int matched = (int)found;
+        if (!terminal.get(n) || labelStart[n + 1] - labelStart[n] != matched) {
+            return -1;
+        }
+        return n;
+    }
+
+    /**
+     * Find the shallowest node whose path begins with a string.
+     *
+     * @return  The node index in the high 32 bits and the number of
+     *          its label chars the string consumed in the low 32
+     *          bits, or -1 if no term begins with the string
+     */
+    private long find(String s) {
+        int n = 0;
+        int pos = 0;
+        int m = 0;
+        while (pos < s.length()) {
+            int label = labelStart[n] + m;
+            int end = labelStart[n + 1];
+            if (label < end) {
+                // Continue along the current edge
+                if (labels[label] != s.charAt(pos)) {
+                    return -1;
+                }
+                m++;
+                pos++;
+                continue;
+            }
+            n = child(n, s.charAt(pos));
+            if (n < 0) {
+                return -1;
+            }
+            m = 0;
+        }
+        return ((long)n << 32) | m;
+    }
+
+    /** Binary search a node's children by the first char of their label */
+    private int child(int n, char c) {
+        int lo = firstChild[n];
+        int hi = firstChild[n + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char k = labels[labelStart[mid]];
+            if (k < c) {
+                lo = mid + 1;
+            } else if (k > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the approximate heap size of this counter.
+     *
+     * @return  Bytes used by the trie arrays, including array headers
+     */
+    public long getRetainedBytes() {
+        long header = 16;
+        return 6 * header + 2L * labels.length +
+            4L * labelStart.length + 4L * firstChild.length +
+            4L * counts.length + 8L * totals.length +
+            terminal.size() / 8;
+    }
+
+    /**
+     * Get the read-only flag.
+     *
+     * @return  Always <tt>true</tt>
+     */
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * Set the read-only flag.
+     *
+     * This has no effect; a prefix counter is always read-only.
+     *
+     * @param ro  Ignored
+     */
+    public void setReadOnly(boolean ro) {
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        // The layout is fully determined by the contents
+        PrefixCounter rhs = (PrefixCounter)obj;
+        return Arrays.equals(labels, rhs.labels) &&
+            Arrays.equals(labelStart, rhs.labelStart) &&
+            Arrays.equals(firstChild, rhs.firstChild) &&
+            terminal.equals(rhs.terminal) &&
+            Arrays.equals(counts, rhs.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(labels) + Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("strings", toStringCounter().getStrings())
+            .toString();
+    }
+
+    /* JSON/CBOR serialization */
+
+    public static class Serializer extends StdSerializer<PrefixCounter> {
+        public Serializer() {
+            super(PrefixCounter.class);
+        }
+
+        @Override
+        public void serialize(PrefixCounter value, final JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (jgen instanceof CBORGenerator) {
+                ((CBORGenerator)jgen).writeTag
+                    (FeatureCollection.CBOR_STRING_COUNTER);
+            }
+            jgen.writeStartObject();
+            value.forEachWithPrefix("", new Visitor() {
+                    public void visit(String term, int count)
+                        throws IOException {
+                        jgen.writeNumberField(term, count);
+                    }
+                });
+            jgen.writeEndObject();
+        }
+    }
+
+    @JsonCreator
+    public static PrefixCounter fromJson(Map<String, Integer> s) {
+        return new PrefixCounter(s);
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+/**
+ * Vector of numbers in which most indices are zero.
+ *
+ * Only the nonzero entries are stored, as parallel arrays of
+ * zero-based indices in increasing order and their values.  Sparse
+ * vectors are typically derived from counter features, with one
+ * index per term of a vocabulary; see {@link TfIdfVectorizer}.
+ *
+ * <pre>
+ * SparseVector v = new SparseVector(new int[] { 2, 6 },
+ *                                   new double[] { 1.0, 2.0 });
+ * double x = v.get(6);
+ * </pre>
+ *
+ * A sparse vector is always read-only: {@link #setReadOnly} has no
+ * effect.  Instances are immutable and thread-safe.
+ */
+@JsonSerialize(using=SparseVector.Serializer.class)
+@JsonDeserialize(using=SparseVector.Deserializer.class)
+public class SparseVector implements Feature {
+    private static final int[] NO_INDICES = new int[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    private final int[] indices;
+    private final double[] values;
+
+    /**
+     * Create an empty vector.
+     */
+    public SparseVector() {
+        this(NO_INDICES, NO_VALUES, false);
+    }
+
+    /**
+     * Create a vector from indices and values.
+     *
+     * The arrays are copied.
+     *
+     * @param indices  Nonnegative indices in strictly increasing order
+     * @param values   Value at each index
+     * @throws IllegalArgumentException  if the arrays differ in
+     *         length or the indices are negative or out of order
+     */
+    public SparseVector(int[] indices, double[] values) {
+        this(indices.clone(), values.clone(), true);
+    }
+
+    private SparseVector(int[] indices, double[] values, boolean check) {
+        if (check) {
+            if (indices.length != values.length) {
+                throw new IllegalArgumentException
+                    ("indices and values differ in length");
+            }
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] < 0 ||
+                    (i > 0 && indices[i] <= indices[i - 1])) {
+                    throw new IllegalArgumentException
+                        ("indices not increasing at position " + i);
+                }
+            }
+        }
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Create a vector from arrays the caller gives up.
+     *
+     * The indices must already be valid.
+     */
+    static SparseVector wrap(int[] indices, double[] values) {
+        return new SparseVector(indices, values, false);
+    }
+
+    /**
+     * Get the number of stored entries.
+     *
+     * @return  Number of indices with a value
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Get the index of a stored entry.
+     *
+     * @param i  Position between 0 and {@link #size}
+     * @return   Vector index at that position
+     */
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Get the value of a stored entry.
+     *
+     * @param i  Position between 0 and {@link #size}
+     * @return   Value at that position
+     */
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Get the value at some vector index.
+     *
+     * @param index  Vector index
+     * @return       Value there, or 0 if it is not stored
+     */
+    public double get(int index) {
+        int p = Arrays.binarySearch(indices, index);
+        return (p < 0) ? 0.0 : values[p];
+    }
+
+    /**
+     * Get the indices of the stored entries.
+     *
+     * @return  New array of indices in increasing order
+     */
+    public int[] getIndices() {
+        return indices.clone();
+    }
+
+    /**
+     * Get the values of the stored entries.
+     *
+     * @return  New array of values, parallel to {@link #getIndices}
+     */
+    public double[] getValues() {
+        return values.clone();
+    }
+
+    /**
+     * Compute the dot product with another vector.
+     *
+     * @param other  Other vector
+     * @return       Sum of the products of values at shared indices
+     */
+    public double dot(SparseVector other) {
+        double sum = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < indices.length && j < other.indices.length) {
+            if (indices[i] < other.indices[j]) {
+                i++;
+            } else if (indices[i] > other.indices[j]) {
+                j++;
+            } else {
+                sum += values[i++] * other.values[j++];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Compute the Euclidean length of this vector.
+     *
+     * @return  Square root of the sum of the squared values
+     */
+    public double norm() {
+        double sum = 0.0;
+        for (double v : values) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Get the read-only flag.
+     *
+     * @return  Always <tt>true</tt>
+     */
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * Set the read-only flag.
+     *
+     * This has no effect; a sparse vector is always read-only.
+     *
+     * @param ro  Ignored
+     */
+    public void setReadOnly(boolean ro) {
+    }
+
+    /* Object methods */
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        SparseVector rhs = (SparseVector)obj;
+        return Arrays.equals(indices, rhs.indices) &&
+            Arrays.equals(values, rhs.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(indices) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SparseVector{");
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(indices[i]).append(": ").append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    /* JSON/CBOR serialization */
+
+    /*
+     * The wire format, shared with Python, is
+     *
+     *   55801([index, value, index, value, ...])
+     *
+     * Values that are whole numbers are written as integers, as in
+     * the format description; others are written as floats.  Readers
+     * accept either for any value, and the pairs in any index order.
+     */
+
+    /** Largest magnitude at which every whole double is exact */
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    static boolean isWhole(double v) {
+        return v == Math.rint(v) && Math.abs(v) <= MAX_EXACT &&
+            !(v == 0.0 && 1.0 / v < 0);
+    }
+
+    public static class Serializer extends StdSerializer<SparseVector> {
+        public Serializer() {
+            super(SparseVector.class);
+        }
+
+        @Override
+        public void serialize(SparseVector value, JsonGenerator jgen,
+                              SerializerProvider provider)
+            throws IOException {
+            if (jgen instanceof CBORGenerator) {
+                ((CBORGenerator)jgen).writeTag
+                    (FeatureCollection.CBOR_SPARSE_VECTOR);
+            }
+            jgen.writeStartArray();
+            for (int i = 0; i < value.indices.length; i++) {
+                jgen.writeNumber(value.indices[i]);
+                double v = value.values[i];
+                if (isWhole(v)) {
+                    jgen.writeNumber((long)v);
+                } else {
+                    jgen.writeNumber(v);
+                }
+            }
+            jgen.writeEndArray();
+        }
+    }
+
+    public static class Deserializer extends StdDeserializer<SparseVector> {
+        /**
+         * generated serial version ID
+         */
+        private static final long serialVersionUID = 1L;
+
+        public Deserializer() {
+            super(SparseVector.class);
+        }
+
+        @Override
+        public SparseVector deserialize(JsonParser jp,
+                                        DeserializationContext dctx)
+            throws IOException {
+            expect(jp, jp.getCurrentToken() == JsonToken.START_ARRAY);
+            int[] indices = new int[8];
+            double[] values = new double[8];
+            int n = 0;
+            boolean sorted = true;
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                expect(jp, jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT);
+                long index = jp.getLongValue();
+                expect(jp, index >= 0 && index <= Integer.MAX_VALUE);
+                JsonToken token = jp.nextToken();
+                expect(jp, token == JsonToken.VALUE_NUMBER_INT ||
+                       token == JsonToken.VALUE_NUMBER_FLOAT);
+                if (n == indices.length) {
+                    indices = Arrays.copyOf(indices, 2 * n);
+                    values = Arrays.copyOf(values, 2 * n);
+                }
+                indices[n] = (int)index;
+                values[n] = jp.getDoubleValue();
+                if (n > 0 && indices[n] <= indices[n - 1]) {
+                    sorted = false;
+                }
+                n++;
+            }
+            indices = Arrays.copyOf(indices, n);
+            values = Arrays.copyOf(values, n);
+            if (!sorted) {
+                sortPairs(jp, indices, values);
+            }
+            return wrap(indices, values);
+        }
+
+        private static void sortPairs(JsonParser jp, int[] indices,
+                                      double[] values)
+            throws IOException {
+            long[] packed = new long[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                packed[i] = ((long)indices[i] << 32) | i;
+            }
+            Arrays.sort(packed);
+            double[] copy = values.clone();
+            for (int i = 0; i < packed.length; i++) {
+                indices[i] = (int)(packed[i] >>> 32);
+                values[i] = copy[(int)packed[i]];
+                if (i > 0 && indices[i] == indices[i - 1]) {
+                    throw new InvalidFormatException
+                        ("duplicate index " + indices[i] +
+                         " in sparse vector", jp, SparseVector.class);
+                }
+            }
+        }
+
+        private static void expect(JsonParser jp, boolean ok)
+            throws IOException {
+            if (!ok) {
+                throw new InvalidFormatException
+                    ("unexpected " + jp.getCurrentToken() +
+                     " in sparse vector", jp, SparseVector.class);
+            }
+        }
+    }
+}
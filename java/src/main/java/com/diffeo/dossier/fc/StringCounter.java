@@ -120,6 +120,16 @@ public class StringCounter implements Feature {
         readOnly = ro;
     }
 
+    /**
+     * Get the underlying dictionary of strings, ignoring the
+     * read-only flag.
+     *
+     * This is used by readers that recycle counters in place.
+     */
+    Map<String, Integer> rawStrings() {
+        return strings;
+    }
+
     /* Object methods */
 
     @Override
@@ -0,0 +1,405 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+/**
+ * Sums {@link StringCounter} features in bounded memory.
+ *
+ * Counts are accumulated in an in-memory table of at most a fixed
+ * number of distinct terms.  When the table fills, its contents are
+ * sorted and spilled to a run file on local disk, and the table is
+ * emptied.  The final totals are produced by a k-way merge of all of
+ * the runs (and whatever is still in memory), in term order; if
+ * there are more runs than the merge fan-in, runs are first merged
+ * into larger runs.  Memory use is thus bounded by the table size
+ * and the fan-in regardless of the size of the input.
+ *
+ * <pre>
+ * StringCounterAggregator agg = new StringCounterAggregator(tmpDir, 1000000);
+ * for (File f : chunkFiles) {
+ *     ChunkReader reader = new ChunkReader(mapper, new FileInputStream(f));
+ *     agg.addChunk(reader, "NAME");
+ *     reader.close();
+ * }
+ * agg.writeChunk(mapper, out, "NAME");
+ * agg.close();
+ * </pre>
+ *
+ * Totals are kept as <tt>long</tt> values.  An aggregator is not
+ * safe for use from multiple threads.
+ */
+public class StringCounterAggregator implements Closeable {
+    /**
+     * Receives merged totals in term order.
+     */
+    public interface Visitor {
+        void visit(String term, long count) throws IOException;
+    }
+
+    public static final int DEFAULT_FAN_IN = 64;
+
+    private final File spillDir;
+    private final int maxEntries;
+    private final int fanIn;
+    private Map<String, long[]> table;
+    private List<File> runs;
+    private int runCounter;
+
+    /**
+     * Create an aggregator with the default merge fan-in.
+     *
+     * @param tmpDir      Directory in which to create spill files,
+     *                    or <tt>null</tt> for the system default
+     * @param maxEntries  Maximum number of distinct terms held in
+     *                    memory before spilling
+     * @throws IOException  if the spill directory cannot be created
+     */
+    public StringCounterAggregator(File tmpDir, int maxEntries)
+        throws IOException {
+        this(tmpDir, maxEntries, DEFAULT_FAN_IN);
+    }
+
+    /**
+     * Create an aggregator.
+     *
+     * @param tmpDir      Directory in which to create spill files,
+     *                    or <tt>null</tt> for the system default
+     * @param maxEntries  Maximum number of distinct terms held in
+     *                    memory before spilling
+     * @param fanIn       Maximum number of runs merged at once
+     * @throws IOException  if the spill directory cannot be created
+     */
+    public StringCounterAggregator(File tmpDir, int maxEntries, int fanIn)
+        throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fanIn < 2");
+        }
+        if (tmpDir == null) {
+            this.spillDir = Files.createTempDirectory("fc-agg").toFile();
+        } else {
+            this.spillDir = Files.createTempDirectory
+                (tmpDir.toPath(), "fc-agg").toFile();
+        }
+        this.maxEntries = maxEntries;
+        this.fanIn = fanIn;
+        this.table = new HashMap<String, long[]>();
+        this.runs = new ArrayList<File>();
+        this.runCounter = 0;
+    }
+
+    /**
+     * Add a count for a single term.
+     *
+     * @param term   Term to count
+     * @param count  Amount to add
+     * @throws IOException  if spilling to disk fails
+     */
+    public void add(String term, long count) throws IOException {
+        long[] cell = table.get(term);
+        if (cell == null) {
+            if (table.size() >= maxEntries) {
+                spill();
+            }
+            table.put(term, new long[] { count });
+        } else {
+            cell[0] += count;
+        }
+    }
+
+    /**
+     * Add every count in a string counter.
+     *
+     * @param sc  Counter to add
+     * @throws IOException  if spilling to disk fails
+     */
+    public void add(StringCounter sc) throws IOException {
+        for (Map.Entry<String, Integer> e : sc.getStrings().entrySet()) {
+            add(e.getKey(), e.getValue().longValue());
+        }
+    }
+
+    /**
+     * Add one feature of every collection in a chunk.
+     *
+     * Collections that do not have the feature, or where it is not a
+     * {@link StringCounter}, are skipped.  Collections are read with
+     * {@link ChunkReader#readInto}, so this does not allocate a new
+     * collection per record.
+     *
+     * @param reader       Chunk to read to the end
+     * @param featureName  Name of the feature to sum
+     * @return             Number of collections read
+     * @throws IOException  if reading or spilling fails
+     */
+    public long addChunk(ChunkReader reader, String featureName)
+        throws IOException {
+        FeatureCollection fc = new FeatureCollection();
+        long n = 0;
+        while (reader.readInto(fc)) {
+            Feature f = fc.getFeatures().get(featureName);
+            if (f instanceof StringCounter) {
+                add((StringCounter)f);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Stream the merged totals in term order.
+     *
+     * This consumes the aggregator: afterwards it is empty and can
+     * be reused.
+     *
+     * @param visitor  Receives each term and its total
+     * @throws IOException  if reading spill files fails
+     */
+    public void merge(Visitor visitor) throws IOException {
+        if (runs.isEmpty()) {
+            String[] terms = sortedTerms();
+            for (String term : terms) {
+                visitor.visit(term, table.get(term)[0]);
+            }
+            table.clear();
+            return;
+        }
+        if (!table.isEmpty()) {
+            spill();
+        }
+        while (runs.size() > fanIn) {
+            List<File> batch = new ArrayList<File>(runs.subList(0, fanIn));
+            runs.subList(0, fanIn).clear();
+            final File merged = newRun();
+            final DataOutputStream out = openRun(merged);
+            try {
+                mergeRuns(batch, new Visitor() {
+                        public void visit(String term, long count)
+                            throws IOException {
+                            writeEntry(out, term, count);
+                        }
+                    });
+            } finally {
+                out.close();
+            }
+            runs.add(merged);
+        }
+        List<File> all = runs;
+        runs = new ArrayList<File>();
+        mergeRuns(all, visitor);
+    }
+
+    /**
+     * Merge the totals into a single {@link StringCounter}.
+     *
+     * This requires the whole result to fit in memory, and every
+     * total to fit in an <tt>int</tt>.
+     *
+     * @return  Counter of all totals
+     * @throws IOException  if reading spill files fails
+     * @throws ArithmeticException  if a total overflows an <tt>int</tt>
+     */
+    public StringCounter toStringCounter() throws IOException {
+        final StringCounter sc = new StringCounter();
+        merge(new Visitor() {
+                public void visit(String term, long count) {
+                    sc.getStrings().put(term, Math.toIntExact(count));
+                }
+            });
+        return sc;
+    }
+
+    /**
+     * Write the totals as a single-record chunk.
+     *
+     * The record is a {@link FeatureCollection} with one
+     * {@link StringCounter} feature.  It is streamed directly to the
+     * output in term order, so the result never has to fit in memory.
+     *
+     * @param mapper       Object mapper to create the generator from
+     * @param out          Stream to write to; it is not closed
+     * @param featureName  Name of the feature to write
+     * @throws IOException  if reading spill files or writing fails
+     */
+    public void writeChunk(ObjectMapper mapper, OutputStream out,
+                           String featureName)
+        throws IOException {
+        final JsonGenerator jgen = mapper.getFactory().createGenerator(out);
+        jgen.writeStartArray();
+        jgen.writeStartObject();
+        jgen.writeStringField("v", FeatureCollection.Metadata.FC01_VERSION);
+        jgen.writeEndObject();
+        jgen.writeStartObject();
+        jgen.writeFieldName(featureName);
+        if (jgen instanceof CBORGenerator) {
+            ((CBORGenerator)jgen).writeTag
+                (FeatureCollection.CBOR_STRING_COUNTER);
+        }
+        jgen.writeStartObject();
+        merge(new Visitor() {
+                public void visit(String term, long count)
+                    throws IOException {
+                    jgen.writeFieldName(term);
+                    jgen.writeNumber(count);
+                }
+            });
+        jgen.writeEndObject();
+        jgen.writeEndObject();
+        jgen.writeEndArray();
+        jgen.flush();
+    }
+
+    /**
+     * Delete all spill files.
+     */
+    public void close() throws IOException {
+        table.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        spillDir.delete();
+    }
+
+    /* Spilling and merging */
+
+    private String[] sortedTerms() {
+        String[] terms = table.keySet().toArray(new String[table.size()]);
+        Arrays.sort(terms);
+        return terms;
+    }
+
+    private void spill() throws IOException {
+        File run = newRun();
+        DataOutputStream out = openRun(run);
+        try {
+            for (String term : sortedTerms()) {
+                writeEntry(out, term, table.get(term)[0]);
+            }
+        } finally {
+            out.close();
+        }
+        runs.add(run);
+        // A fresh table rather than clear(), so a huge table's
+        // memory is actually released
+        table = new HashMap<String, long[]>();
+    }
+
+    private File newRun() {
+        return new File(spillDir, "run-" + (runCounter++));
+    }
+
+    private static DataOutputStream openRun(File f) throws IOException {
+        return new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    }
+
+    private static void writeEntry(DataOutputStream out, String term,
+                                   long count)
+        throws IOException {
+        byte[] utf8 = term.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+        out.writeLong(count);
+    }
+
+    /** Read cursor over one sorted run file */
+    private static class Run implements Comparable<Run> {
+        final DataInputStream in;
+        String term;
+        long count;
+
+        Run(File f) throws IOException {
+            in = new DataInputStream
+                (new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            int len;
+            try {
+                len = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] utf8 = new byte[len];
+            in.readFully(utf8);
+            term = new String(utf8, StandardCharsets.UTF_8);
+            count = in.readLong();
+            return true;
+        }
+
+        public int compareTo(Run other) {
+            return term.compareTo(other.term);
+        }
+    }
+
+    private static void mergeRuns(List<File> files, Visitor visitor)
+        throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<Run>(files.size());
+        List<Run> open = new ArrayList<Run>(files.size());
+        try {
+            for (File f : files) {
+                Run r = new Run(f);
+                open.add(r);
+                if (r.advance()) {
+                    heap.add(r);
+                }
+            }
+            while (!heap.isEmpty()) {
+                Run r = heap.poll();
+                String term = r.term;
+                long total = r.count;
+                if (r.advance()) {
+                    heap.add(r);
+                }
+                while (!heap.isEmpty() && heap.peek().term.equals(term)) {
+                    r = heap.poll();
+                    total += r.count;
+                    if (r.advance()) {
+                        heap.add(r);
+                    }
+                }
+                visitor.visit(term, total);
+            }
+        } finally {
+            for (Run r : open) {
+                r.in.close();
+            }
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Converts counter features to TF-IDF weighted {@link SparseVector}s.
+ *
+ * This is the second pass of a two-pass pipeline.  The first pass
+ * computes {@link DocumentFrequencies} over a corpus; from those, the
+ * vectorizer gives each feature a vocabulary, numbering its terms
+ * from 0 in sorted order, and an inverse document frequency for
+ * each term,
+ *
+ * <pre>
+ * idf(t) = ln((1 + N) / (1 + df(t))) + 1
+ * </pre>
+ *
+ * where <i>N</i> is the number of documents.  This is the smoothed
+ * form, which is positive even for a term in every document.  The
+ * second pass then replaces every counter feature of a collection
+ * with a sparse vector whose value at a term's index is the term's
+ * count times its IDF, scaled by default to unit Euclidean length.
+ * Terms outside the vocabulary are dropped; other features are
+ * copied unchanged.
+ *
+ * <pre>
+ * DocumentFrequencies df = DocumentFrequencies.compute(mapper, chunks, 8);
+ * TfIdfVectorizer tfidf = new TfIdfVectorizer(df);
+ * tfidf.transform(mapper, chunks, outputs, 8);
+ * </pre>
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class TfIdfVectorizer {
+    /** One feature's terms and weights */
+    private static class Vocabulary {
+        final String[] terms;
+        final double[] idf;
+        final Map<String, Integer> index;
+
+        Vocabulary(String[] terms, double[] idf) {
+            this.terms = terms;
+            this.idf = idf;
+            this.index = new HashMap<String, Integer>
+                ((int)Math.min((long)terms.length * 4 / 3 + 1, 1 << 30));
+            for (int i = 0; i < terms.length; i++) {
+                index.put(terms[i], i);
+            }
+        }
+    }
+
+    private final Map<String, Vocabulary> vocabularies;
+    private final boolean normalize;
+
+    /**
+     * Create a vectorizer with every term and unit-length vectors.
+     *
+     * @param df  Document frequencies of the corpus
+     */
+    public TfIdfVectorizer(DocumentFrequencies df) {
+        this(df, 1, true);
+    }
+
+    /**
+     * Create a vectorizer.
+     *
+     * @param df         Document frequencies of the corpus
+     * @param minDf      Leave terms in fewer documents than this out
+     *                   of the vocabulary
+     * @param normalize  If true, scale every vector to unit length
+     */
+    public TfIdfVectorizer(DocumentFrequencies df, int minDf,
+                           boolean normalize) {
+        this.vocabularies = new HashMap<String, Vocabulary>();
+        this.normalize = normalize;
+        double n = df.getDocumentCount();
+        for (String feature : df.getFeatureNames()) {
+            Map<String, Integer> table = df.getFrequencies(feature);
+            List<String> kept = new ArrayList<String>(table.size());
+            for (Map.Entry<String, Integer> e : table.entrySet()) {
+                if (e.getValue().intValue() >= minDf) {
+                    kept.add(e.getKey());
+                }
+            }
+            String[] terms = kept.toArray(new String[kept.size()]);
+            Arrays.sort(terms);
+            double[] idf = new double[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                idf[i] = Math.log((1 + n) / (1 + table.get(terms[i]))) + 1;
+            }
+            vocabularies.put(feature, new Vocabulary(terms, idf));
+        }
+    }
+
+    /**
+     * Get the size of a feature's vocabulary.
+     *
+     * @param feature  Feature name
+     * @return         Number of terms, and so the vector dimension
+     */
+    public int getVocabularySize(String feature) {
+        Vocabulary v = vocabularies.get(feature);
+        return (v == null) ? 0 : v.terms.length;
+    }
+
+    /**
+     * Get the vector index of a term.
+     *
+     * @param feature  Feature name
+     * @param term     Term
+     * @return         Index, or -1 if the term is not in the vocabulary
+     */
+    public int indexOf(String feature, String term) {
+        Vocabulary v = vocabularies.get(feature);
+        if (v == null) {
+            return -1;
+        }
+        Integer i = v.index.get(term);
+        return (i == null) ? -1 : i.intValue();
+    }
+
+    /**
+     * Get the term at a vector index.
+     *
+     * @param feature  Feature name
+     * @param index    Index between 0 and the vocabulary size
+     * @return         Term
+     * @throws IndexOutOfBoundsException  if the index is out of range
+     */
+    public String getTerm(String feature, int index) {
+        Vocabulary v = vocabularies.get(feature);
+        if (v == null) {
+            throw new IndexOutOfBoundsException("no vocabulary for " + feature);
+        }
+        return v.terms[index];
+    }
+
+    /**
+     * Get the inverse document frequency of a term.
+     *
+     * @param feature  Feature name
+     * @param term     Term
+     * @return         IDF, or 0 if the term is not in the vocabulary
+     */
+    public double getIdf(String feature, String term) {
+        int i = indexOf(feature, term);
+        return (i < 0) ? 0.0 : vocabularies.get(feature).idf[i];
+    }
+
+    /**
+     * Weight one collection.
+     *
+     * @param fc  Collection to convert; it is not modified
+     * @return    New collection with a {@link SparseVector} in place
+     *            of each counter feature, read-only if the input is
+     */
+    public FeatureCollection vectorize(FeatureCollection fc) {
+        FeatureCollection result = new FeatureCollection();
+        Map<String, Feature> out = result.rawFeatures();
+        for (Map.Entry<String, Feature> e : fc.rawFeatures().entrySet()) {
+            Map<String, Integer> strings =
+                FeatureCollectionSum.counts(e.getValue());
+            if (strings == null) {
+                out.put(e.getKey(), e.getValue());
+            } else {
+                out.put(e.getKey(),
+                        vector(vocabularies.get(e.getKey()), strings));
+            }
+        }
+        result.setReadOnly(fc.isReadOnly());
+        return result;
+    }
+
+    private SparseVector vector(Vocabulary v, Map<String, Integer> strings) {
+        if (v == null) {
+            return new SparseVector();
+        }
+        // Pack (index, position) pairs so that one primitive sort
+        // puts the entries in index order
+        long[] packed = new long[strings.size()];
+        double[] weights = new double[strings.size()];
+        int n = 0;
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            Integer index = v.index.get(e.getKey());
+            int count = e.getValue().intValue();
+            if (index == null || count == 0) {
+                continue;
+            }
+            weights[n] = count * v.idf[index.intValue()];
+            packed[n] = ((long)index.intValue() << 32) | n;
+            n++;
+        }
+        Arrays.sort(packed, 0, n);
+        int[] indices = new int[n];
+        double[] values = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            indices[i] = (int)(packed[i] >>> 32);
+            values[i] = weights[(int)packed[i]];
+            sum += values[i] * values[i];
+        }
+        if (normalize && sum > 0) {
+            double scale = 1.0 / Math.sqrt(sum);
+            for (int i = 0; i < n; i++) {
+                values[i] *= scale;
+            }
+        }
+        return SparseVector.wrap(indices, values);
+    }
+
+    /**
+     * Weight every collection in a list of chunk files.
+     *
+     * Each input file is converted to the output file at the same
+     * position in the list, preserving record order.  Files are
+     * converted in parallel, each on its own worker thread, which
+     * decodes with {@link ChunkReader#readInto} and encodes into a
+     * {@link ChunkWriter}.
+     *
+     * @param mapper   Object mapper for reading and writing the chunks
+     * @param inputs   Input chunk files
+     * @param outputs  Output chunk files, one per input
+     * @param threads  Number of worker threads
+     * @return         Number of collections converted
+     * @throws IOException  if reading or writing fails
+     */
+    public long transform(final ObjectMapper mapper, List<File> inputs,
+                          List<File> outputs, int threads)
+        throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        if (inputs.size() != outputs.size()) {
+            throw new IllegalArgumentException
+                ("inputs and outputs differ in length");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool
+            (threads, ChunkWriter.daemonThreads("tfidf-vectorizer"));
+        try {
+            List<Future<Long>> converted = new ArrayList<Future<Long>>();
+            for (int i = 0; i < inputs.size(); i++) {
+                final File input = inputs.get(i);
+                final File output = outputs.get(i);
+                converted.add(pool.submit(new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return transform(mapper, input, output);
+                        }
+                    }));
+            }
+            long records = 0;
+            for (Future<Long> f : converted) {
+                records += await(f);
+            }
+            return records;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long transform(ObjectMapper mapper, File input, File output)
+        throws IOException {
+        long records = 0;
+        ChunkReader reader =
+            new ChunkReader(mapper, new FileInputStream(input));
+        try {
+            // With no encoder threads each record is encoded before
+            // write() returns, so the recycled input's features can
+            // be passed through without copying
+            ChunkWriter writer = new ChunkWriter
+                (mapper, FileChannel.open(output.toPath(),
+                                          StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING),
+                 ChunkWriter.DEFAULT_QUEUE_CAPACITY, 0,
+                 ChunkWriter.DEFAULT_BATCH_BYTES,
+                 ChunkWriter.SyncPolicy.ON_CLOSE);
+            try {
+                FeatureCollection fc = new FeatureCollection();
+                while (reader.readInto(fc)) {
+                    writer.write(vectorize(fc));
+                    records++;
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("TF-IDF conversion failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException
+                ("TF-IDF conversion interrupted");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class CanonicalCborTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+    private final CanonicalCbor canonical = new CanonicalCbor(mapper);
+
+    @Test
+    public void encodeStringCounter() throws IOException {
+        StringCounter sc = new StringCounter();
+        sc.add("bb", 500);
+        sc.add("c", 1);
+        sc.add("a", -2);
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("sc", sc);
+        fc.getFeatures().put("f", new StringFeature("x"));
+        fc.setReadOnly(true);
+
+        byte[] ref = {
+            (byte)0x82, // array of 2 items
+            (byte)0xa2, // map of 2 items
+            (byte)0x61, 0x76, 0x64, 0x66, 0x63, 0x30, 0x31, // "v": "fc01"
+            (byte)0x62, 0x72, 0x6f, 0x01, // "ro": 1
+            (byte)0xa2, // map of 2 items
+            (byte)0x61, 0x66, // string "f"
+            (byte)0x61, 0x78, // string "x"
+            (byte)0x62, 0x73, 0x63, // string "sc"
+            (byte)0xd9, (byte)0xd9, (byte)0xf8, // tag 55800
+            (byte)0xa3, // map of 3 items
+            (byte)0x61, 0x61, // string "a"
+            (byte)0x21, // integer -2
+            (byte)0x61, 0x63, // string "c"
+            (byte)0x01, // integer 1
+            (byte)0x62, 0x62, 0x62, // string "bb"
+            (byte)0x19, 0x01, (byte)0xf4, // integer 500
+        };
+        assertThat(canonical.encode(fc), is(equalTo(ref)));
+        assertThat(mapper.readValue(ref, FeatureCollection.class),
+                   is(equalTo(fc)));
+    }
+
+    @Test
+    public void vectorNaN() throws IOException {
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("v", SparseVector.wrap
+                             (new int[] { 1, 2 },
+                              new double[] { Double.NaN, 0.5 }));
+
+        byte[] ref = {
+            (byte)0x82, // array of 2 items
+            (byte)0xa1, // map of 1 item
+            (byte)0x61, 0x76, 0x64, 0x66, 0x63, 0x30, 0x31, // "v": "fc01"
+            (byte)0xa1, // map of 1 item
+            (byte)0x61, 0x76, // string "v"
+            (byte)0xd9, (byte)0xd9, (byte)0xf9, // tag 55801
+            (byte)0x84, // array of 4 items
+            (byte)0x01, // integer 1
+            (byte)0xf9, 0x7e, 0x00, // NaN
+            (byte)0x02, // integer 2
+            (byte)0xfb, 0x3f, (byte)0xe0, 0, 0, 0, 0, 0, 0, // 0.5
+        };
+        assertThat(canonical.encode(fc), is(equalTo(ref)));
+        assertThat(mapper.readValue(ref, FeatureCollection.class),
+                   is(equalTo(fc)));
+
+        CanonicalCbor refs = new CanonicalCbor(mapper, true);
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(refs.encode(fc)));
+        assertThat(reader.read(), is(equalTo(fc)));
+        reader.close();
+    }
+
+    @Test
+    public void namespaceSpansRecords() throws IOException {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        sc.add("alpha", 1);
+        fc.getFeatures().put("NAME", sc);
+        CanonicalCbor.Namespace ns = new CanonicalCbor.Namespace();
+        CanonicalCbor encoder = CanonicalCbor.forNamespace(mapper);
+        byte[] first = ns.rewrite(encoder.encode(fc), true);
+        byte[] second = ns.rewrite(encoder.encode(fc), false);
+        byte[] ref = {
+            (byte)0x82, // array of 2 items
+            (byte)0xa1, // map of 1 item
+            (byte)0x61, 0x76, // string "v"
+            (byte)0xd8, 0x19, 0x00, // tag 25, ref 0 "fc01"
+            (byte)0xa1, // map of 1 item
+            (byte)0xd8, 0x19, 0x01, // tag 25, ref 1 "NAME"
+            (byte)0xd9, (byte)0xd9, (byte)0xf8, // tag 55800
+            (byte)0xa1, // map of 1 item
+            (byte)0xd8, 0x19, 0x02, // tag 25, ref 2 "alpha"
+            0x01, // 1
+        };
+        assertThat(second, is(equalTo(ref)));
+        assertThat(CborDecoder.isStringRefNamespace(first, 0, first.length),
+                   is(true));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        out.write(second);
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(out.toByteArray()));
+        assertThat(reader.read(), is(equalTo(fc)));
+        assertThat(reader.read(), is(equalTo(fc)));
+        assertThat(reader.read(), is(nullValue()));
+        reader.close();
+
+        try {
+            ns.rewrite(new CanonicalCbor(mapper, true).encode(fc), true);
+            assertThat("record with references", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+    }
+
+    @Test
+    public void insertionOrderIndependent() throws IOException {
+        Map<String, Integer> forward = new LinkedHashMap<String, Integer>();
+        Map<String, Integer> backward = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 200; i++) {
+            forward.put("term " + i, i);
+            backward.put("term " + (199 - i), 199 - i);
+        }
+        FeatureCollection fc1 = new FeatureCollection();
+        StringCounter sc1 = new StringCounter();
+        sc1.setStrings(forward);
+        fc1.getFeatures().put("NAME", sc1);
+        GeoCoords geo1 = new GeoCoords();
+        geo1.add("Boston", -71.06, 42.36, Double.NaN, 0);
+        geo1.add("Austin", -97.74, 30.27, Double.NaN, 0);
+        fc1.getFeatures().put("!co_LOC", geo1);
+
+        FeatureCollection fc2 = new FeatureCollection();
+        GeoCoords geo2 = new GeoCoords();
+        geo2.add("Austin", -97.74, 30.27, Double.NaN, 0);
+        geo2.add("Boston", -71.06, 42.36, Double.NaN, 0);
+        fc2.getFeatures().put("!co_LOC", geo2);
+        StringCounter sc2 = new StringCounter();
+        sc2.setStrings(new HashMap<String, Integer>(backward));
+        fc2.getFeatures().put("NAME", sc2);
+
+        byte[] b1 = canonical.encode(fc1);
+        byte[] b2 = canonical.encode(fc2);
+        assertThat(b1, is(equalTo(b2)));
+        assertThat(mapper.readValue(b1, FeatureCollection.class),
+                   is(equalTo(fc1)));
+    }
+}
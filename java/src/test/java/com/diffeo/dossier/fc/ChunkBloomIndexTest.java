@@ -0,0 +1,113 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkBloomIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** Index of 10 blocks of 100 records with 10 terms each */
+    private static ChunkBloomIndex build(double rate) {
+        ChunkBloomIndex.Builder builder =
+            new ChunkBloomIndex.Builder(100, rate);
+        for (int r = 0; r < 1000; r++) {
+            long[] hashes = new long[10];
+            for (int t = 0; t < hashes.length; t++) {
+                hashes[t] = ChunkBloomIndex.hash("f", "term " + r + "/" + t);
+            }
+            builder.add(hashes, 50L * r, 50);
+        }
+        return builder.finish(50000L);
+    }
+
+    @Test
+    public void blocks() {
+        ChunkBloomIndex index = build(0.01);
+        assertThat(index.getNumBlocks(), is(10));
+        assertThat(index.getBlockRecords(), is(100));
+        assertThat(index.getBlockOffset(3), is(15000L));
+        assertThat(index.getBlockLength(3), is(5000L));
+        assertThat(index.getBlockRecordCount(9), is(100));
+    }
+
+    @Test
+    public void noFalseNegatives() {
+        ChunkBloomIndex index = build(0.01);
+        for (int r = 0; r < 1000; r++) {
+            for (int t = 0; t < 10; t++) {
+                String term = "term " + r + "/" + t;
+                assertThat(index.mightContain(r / 100, "f", term), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        for (double rate : new double[] { 0.1, 0.01 }) {
+            ChunkBloomIndex index = build(rate);
+            int hits = 0;
+            int probes = 0;
+            for (int b = 0; b < index.getNumBlocks(); b++) {
+                for (int i = 0; i < 10000; i++) {
+                    probes++;
+                    if (index.mightContain(b, "f", "absent " + i)) {
+                        hits++;
+                    }
+                }
+            }
+            assertThat((double)hits / probes, is(lessThan(1.5 * rate)));
+        }
+        // The feature name is part of the key
+        assertThat(build(0.001).mightContain(0, "g", "term 0/0"), is(false));
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        ChunkBloomIndex index = build(0.05);
+        Path path = new File(tmp.getRoot(), "chunk.fc.bloom").toPath();
+        index.write(path);
+        ChunkBloomIndex copy = ChunkBloomIndex.read(path);
+        assertThat(copy.getNumBlocks(), is(index.getNumBlocks()));
+        assertThat(copy.getFalsePositiveRate(), is(0.05));
+        assertThat(copy.getChunkLength(), is(50000L));
+        assertThat(copy.getFilterBytes(), is(index.getFilterBytes()));
+        for (int b = 0; b < index.getNumBlocks(); b++) {
+            assertThat(copy.getBlockOffset(b), is(index.getBlockOffset(b)));
+            assertThat(copy.getBlockLength(b), is(index.getBlockLength(b)));
+            for (int i = 0; i < 1000; i++) {
+                assertThat(copy.mightContain(b, "f", "x" + i),
+                           is(index.mightContain(b, "f", "x" + i)));
+            }
+        }
+        assertThat(ChunkBloomIndex.sidecarFor(new File("a/b.fc").toPath()),
+                   is(new File("a/b.fc.bloom").toPath()));
+    }
+
+    @Test
+    public void rejectsBadFiles() throws IOException {
+        File f = tmp.newFile("junk");
+        java.nio.file.Files.write(f.toPath(), new byte[] { 1, 2, 3 });
+        try {
+            ChunkBloomIndex.read(f.toPath());
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkPublisherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+    private ExecutorService pool;
+    private File chunk;
+
+    private static FeatureCollection make(int i) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        for (int j = 0; j <= i % 30; j++) {
+            sc.add("term \u00e9 " + j, i);
+        }
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("id", new StringFeature(Integer.toString(i)));
+        GeoCoords geo = new GeoCoords();
+        geo.add("here", i, -i, Double.NaN, 0.5);
+        fc.getFeatures().put("!co_LOC", geo);
+        return fc;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        pool = Executors.newFixedThreadPool(4);
+        chunk = tmp.newFile("input.fc");
+        ChunkWriter writer = new ChunkWriter(mapper, chunk.toPath());
+        for (int i = 0; i < 500; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /** Subscriber that records everything and requests on command */
+    private static class Recorder implements Flow.Subscriber<FeatureCollection> {
+        final List<FeatureCollection> items =
+            new ArrayList<FeatureCollection>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+        private final long initial;
+
+        Recorder(long initial) {
+            this.initial = initial;
+        }
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            if (initial > 0) {
+                s.request(initial);
+            }
+        }
+
+        public synchronized void onNext(FeatureCollection fc) {
+            items.add(fc);
+        }
+
+        public void onError(Throwable t) {
+            error = t;
+            finished.countDown();
+        }
+
+        public void onComplete() {
+            completed = true;
+            finished.countDown();
+        }
+
+        synchronized int size() {
+            return items.size();
+        }
+    }
+
+    /** Executor that can wait until none of its tasks are left */
+    private static class IdleExecutor implements Executor {
+        private final Executor delegate;
+        private int active;
+
+        IdleExecutor(Executor delegate) {
+            this.delegate = delegate;
+        }
+
+        public void execute(final Runnable r) {
+            synchronized (this) {
+                active++;
+            }
+            delegate.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            done();
+                        }
+                    }
+                });
+        }
+
+        private synchronized void done() {
+            active--;
+            notifyAll();
+        }
+
+        /**
+         * Wait until every task, including any it scheduled in turn,
+         * has finished; a task is counted before the one that
+         * scheduled it finishes, so this never returns early.
+         */
+        synchronized void awaitIdle() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 30000;
+            while (active > 0) {
+                long left = deadline - System.currentTimeMillis();
+                assertThat("executor went idle", left > 0, is(true));
+                wait(left);
+            }
+        }
+    }
+
+    private void readAll(int readAhead) throws Exception {
+        ChunkPublisher pub =
+            new ChunkPublisher(mapper, chunk.toPath(), pool, readAhead);
+        Recorder r = new Recorder(Long.MAX_VALUE);
+        pub.subscribe(r);
+        assertThat(r.finished.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(r.error, is(nullValue()));
+        assertThat(r.completed, is(true));
+        assertThat(r.items, hasSize(500));
+        for (int i = 0; i < 500; i++) {
+            assertThat(r.items.get(i), is(equalTo(make(i))));
+        }
+    }
+
+    @Test
+    public void onDemand() throws Exception {
+        readAll(0);
+    }
+
+    @Test
+    public void readAhead() throws Exception {
+        readAll(16);
+    }
+
+    @Test
+    public void readAheadStringReferences() throws Exception {
+        // Two namespaces, the second cut short by the end of the file
+        ChunkWriter writer = new ChunkWriter(mapper, chunk.toPath());
+        writer.setStringReferences(true);
+        for (int i = 0; i < 500; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+        readAll(0);
+        readAll(16);
+    }
+
+    @Test
+    public void respectsDemand() throws Exception {
+        IdleExecutor idle = new IdleExecutor(pool);
+        ChunkPublisher pub =
+            new ChunkPublisher(mapper, chunk.toPath(), idle, 8);
+        Recorder r = new Recorder(0);
+        pub.subscribe(r);
+        idle.awaitIdle();
+        assertThat(r.size(), is(0));
+
+        r.subscription.request(3);
+        idle.awaitIdle();
+        assertThat(r.size(), is(3));
+        assertThat(r.items.get(2), is(equalTo(make(2))));
+
+        r.subscription.cancel();
+        r.subscription.request(10);
+        idle.awaitIdle();
+        assertThat(r.size(), is(3));
+        assertThat(r.completed, is(false));
+        assertThat(r.error, is(nullValue()));
+    }
+
+    @Test
+    public void badRequest() throws Exception {
+        Recorder r = new Recorder(0);
+        new ChunkPublisher(mapper, chunk.toPath(), pool, 0).subscribe(r);
+        r.subscription.request(0);
+        assertThat(r.finished.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(r.error, is(instanceOf(IllegalArgumentException.class)));
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(chunk, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        for (int readAhead : new int[] { 0, 4 }) {
+            Recorder r = new Recorder(Long.MAX_VALUE);
+            new ChunkPublisher(mapper, chunk.toPath(), pool, readAhead)
+                .subscribe(r);
+            assertThat(r.finished.await(30, TimeUnit.SECONDS), is(true));
+            assertThat(r.error, is(instanceOf(IOException.class)));
+            assertThat(r.size(), is(499));
+        }
+    }
+
+    @Test
+    public void copyThroughSubscriber() throws Exception {
+        File out = tmp.newFile("output.fc");
+        ChunkSubscriber sink = new ChunkSubscriber
+            (new ChunkWriter(mapper, out.toPath()), 4);
+        new ChunkPublisher(mapper, chunk.toPath(), pool, 8).subscribe(sink);
+        assertThat(sink.getCompletion().get(30, TimeUnit.SECONDS), is(500L));
+
+        ChunkReader reader = new ChunkReader
+            (mapper, new java.io.FileInputStream(out));
+        for (int i = 0; i < 500; i++) {
+            assertThat(reader.read(), is(equalTo(make(i))));
+        }
+        assertThat(reader.read(), is(nullValue()));
+        reader.close();
+    }
+
+    @Test
+    public void subscriberRequestsAsWriterAccepts() throws Exception {
+        File out = tmp.newFile("handoff.fc");
+        ChunkSubscriber sink = new ChunkSubscriber
+            (new ChunkWriter(mapper, out.toPath()), 4);
+        final AtomicLong requested = new AtomicLong();
+        final CountDownLatch replenished = new CountDownLatch(4);
+        sink.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                    if (requested.getAndAdd(n) >= 4) {
+                        replenished.countDown();
+                    }
+                }
+
+                public void cancel() {
+                }
+            });
+        assertThat(requested.get(), is(4L));
+        for (int i = 0; i < 4; i++) {
+            sink.onNext(make(i));
+        }
+        assertThat(replenished.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(requested.get(), is(8L));
+        sink.onComplete();
+        assertThat(sink.getCompletion().get(30, TimeUnit.SECONDS), is(4L));
+    }
+
+    /** Subscription that only counts cancellations */
+    private static class CountingSubscription implements Flow.Subscription {
+        final AtomicLong cancels = new AtomicLong();
+
+        public void request(long n) {
+        }
+
+        public void cancel() {
+            cancels.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void uncheckedWriteFailureCompletes() throws Exception {
+        final ChunkWriter writer = new ChunkWriter
+            (mapper, tmp.newFile("rejected.fc").toPath()) {
+                @Override
+                public void write(FeatureCollection fc) {
+                    throw new RejectedExecutionException("encoder pool");
+                }
+            };
+        ChunkSubscriber sink = new ChunkSubscriber(writer, 4);
+        CountingSubscription s = new CountingSubscription();
+        sink.onSubscribe(s);
+        sink.onNext(make(0));
+        try {
+            sink.getCompletion().get(30, TimeUnit.SECONDS);
+            assertThat("ExecutionException", is("thrown"));
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(),
+                       is(instanceOf(RejectedExecutionException.class)));
+        }
+        assertThat(s.cancels.get(), is(1L));
+        try {
+            writer.flush();
+            assertThat("closed writer", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+    }
+
+    @Test
+    public void uncheckedRequestFailureCompletes() throws Exception {
+        ChunkSubscriber sink = new ChunkSubscriber
+            (new ChunkWriter(mapper, tmp.newFile("request.fc").toPath()), 4);
+        final AtomicLong requests = new AtomicLong();
+        sink.onSubscribe(new CountingSubscription() {
+                @Override
+                public void request(long n) {
+                    if (requests.getAndIncrement() > 0) {
+                        throw new IllegalStateException("request");
+                    }
+                }
+            });
+        sink.onNext(make(0));
+        try {
+            sink.getCompletion().get(30, TimeUnit.SECONDS);
+            assertThat("ExecutionException", is("thrown"));
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(),
+                       is(instanceOf(IllegalStateException.class)));
+        }
+    }
+}
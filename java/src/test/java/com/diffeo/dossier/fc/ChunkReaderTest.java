@@ -0,0 +1,298 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+public class ChunkReaderTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(String name, int count) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        sc.add(name, count);
+        sc.add("common", 1);
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("id", new StringFeature(name));
+        return fc;
+    }
+
+    private byte[] chunk(FeatureCollection... fcs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (FeatureCollection fc : fcs) {
+            out.write(mapper.writeValueAsBytes(fc));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readFresh() throws IOException {
+        FeatureCollection fc1 = make("a", 1);
+        FeatureCollection fc2 = make("b", 2);
+        fc2.setReadOnly(true);
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(chunk(fc1, fc2)));
+        FeatureCollection r1 = reader.read();
+        FeatureCollection r2 = reader.read();
+        assertThat(r1, is(equalTo(fc1)));
+        assertThat(r2, is(equalTo(fc2)));
+        assertThat(r2.isReadOnly(), is(true));
+        assertThat(reader.read(), is(nullValue()));
+        reader.close();
+    }
+
+    @Test
+    public void readIntoRecycles() throws IOException {
+        FeatureCollection fc1 = make("a", 1);
+        FeatureCollection fc2 = make("b", 2);
+        fc2.getFeatures().put("@NAME", new FeatureTokens());
+        FeatureCollection fc3 = make("c", 3);
+        fc3.setReadOnly(true);
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(chunk(fc1, fc2, fc3)));
+
+        FeatureCollection fc = new FeatureCollection();
+        assertThat(reader.readInto(fc), is(true));
+        assertThat(fc, is(equalTo(fc1)));
+        Feature name = fc.getFeatures().get("NAME");
+        Feature id = fc.getFeatures().get("id");
+
+        assertThat(reader.readInto(fc), is(true));
+        assertThat(fc, is(equalTo(fc2)));
+        assertThat(fc.getFeatures().get("NAME"), is(sameInstance(name)));
+        assertThat(fc.getFeatures().get("id"), is(sameInstance(id)));
+
+        assertThat(reader.readInto(fc), is(true));
+        assertThat(fc, is(equalTo(fc3)));
+        assertThat(fc.isReadOnly(), is(true));
+        assertThat(fc.getFeatures(), not(hasKey("@NAME")));
+        assertThat(fc.getFeatures().get("NAME"), is(sameInstance(name)));
+        assertThat(name.isReadOnly(), is(true));
+
+        assertThat(reader.readInto(fc), is(false));
+        reader.close();
+    }
+
+    @Test
+    public void rejectsBadVersion() throws IOException {
+        byte[] ref = {
+            (byte)0x82,  // array of 2 items
+            (byte)0xa1,  // map of 1 item
+            (byte)0x61, 0x76,  // string "v"
+            (byte)0x64, 0x46, 0x4F, 0x4F, 0x21,  // string "FOO!"
+            (byte)0xa0,  // map of 0 items
+        };
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(ref));
+        try {
+            reader.readInto(new FeatureCollection());
+            assertThat("incorrect version", is("rejected"));
+        } catch (JsonMappingException e) {
+            // expected case
+        }
+        reader.close();
+    }
+
+    @Test
+    public void readsCountersOffHeap() throws IOException {
+        FeatureCollection fc1 = make("a", 1);
+        FeatureCollection fc2 = make("b", 2);
+        FeatureCollection fc3 = make("c", 3);
+        fc3.getFeatures().remove("NAME");
+        CanonicalCbor refs = new CanonicalCbor(mapper, true);
+        ByteArrayOutputStream withRefs = new ByteArrayOutputStream();
+        for (FeatureCollection fc : new FeatureCollection[] { fc1, fc2, fc3 }) {
+            withRefs.write(refs.encode(fc));
+        }
+
+        for (byte[] bytes : new byte[][] { chunk(fc1, fc2, fc3),
+                                           withRefs.toByteArray() }) {
+            ChunkReader reader = new ChunkReader
+                (mapper, new ByteArrayInputStream(bytes));
+            reader.setOffHeapFeatures(Collections.singleton("NAME"));
+
+            FeatureCollection fresh = reader.read();
+            Feature f = fresh.getFeatures().get("NAME");
+            assertThat(f, is(instanceOf(OffHeapStringCounter.class)));
+            OffHeapStringCounter oh = (OffHeapStringCounter)f;
+            assertThat(oh.toStringCounter(),
+                       is(equalTo(fc1.getFeatures().get("NAME"))));
+            assertThat(fresh.getFeatures().get("id"),
+                       is(equalTo(fc1.getFeatures().get("id"))));
+            oh.close();
+
+            FeatureCollection fc = new FeatureCollection();
+            assertThat(reader.readInto(fc), is(true));
+            OffHeapStringCounter recycled =
+                (OffHeapStringCounter)fc.getFeatures().get("NAME");
+            assertThat(recycled.toStringCounter(),
+                       is(equalTo(fc2.getFeatures().get("NAME"))));
+
+            // A record without the counter frees it
+            assertThat(reader.readInto(fc), is(true));
+            assertThat(fc, is(equalTo(fc3)));
+            try {
+                recycled.size();
+                assertThat("dropped off-heap counter", is("closed"));
+            } catch (IllegalStateException e) {
+                // expected case
+            }
+            assertThat(reader.readInto(fc), is(false));
+            reader.close();
+        }
+    }
+
+    /** Bytes allocated by this thread so far, or -1 if unknown */
+    private static long allocated() {
+        java.lang.management.ThreadMXBean mx =
+            ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hs =
+            (com.sun.management.ThreadMXBean)mx;
+        if (!hs.isThreadAllocatedMemorySupported() ||
+            !hs.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return hs.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Records with the same 100 terms and varying counts */
+    private byte[] steadyChunk(int records) throws IOException {
+        FeatureCollection[] fcs = new FeatureCollection[records];
+        for (int i = 0; i < records; i++) {
+            FeatureCollection fc = new FeatureCollection();
+            StringCounter sc = new StringCounter();
+            for (int j = 0; j < 100; j++) {
+                sc.add("term " + j, (i + j) % 10 + 1);
+            }
+            fc.getFeatures().put("NAME", sc);
+            fc.getFeatures().put("lang", new StringFeature("en"));
+            fcs[i] = fc;
+        }
+        return chunk(fcs);
+    }
+
+    @Test
+    public void readIntoAllocation() throws IOException {
+        assumeTrue(allocated() >= 0);
+        byte[] bytes = steadyChunk(2000);
+        long[] perRecord = new long[2];
+        for (int pass = 0; pass < 3; pass++) {
+            ChunkReader reader = new ChunkReader
+                (mapper, new ByteArrayInputStream(bytes));
+            FeatureCollection fc = new FeatureCollection();
+            // Warm up the reader's recycled objects
+            for (int i = 0; i < 100; i++) {
+                reader.readInto(fc);
+            }
+            long before = allocated();
+            for (int i = 100; i < 2000; i++) {
+                reader.readInto(fc);
+            }
+            perRecord[0] = (allocated() - before) / 1900;
+            reader.close();
+
+            reader = new ChunkReader(mapper, new ByteArrayInputStream(bytes));
+            for (int i = 0; i < 100; i++) {
+                reader.read();
+            }
+            before = allocated();
+            for (int i = 100; i < 2000; i++) {
+                reader.read();
+            }
+            perRecord[1] = (allocated() - before) / 1900;
+            reader.close();
+        }
+        // Recycling 100 counter entries would cost far more than this
+        assertThat(perRecord[0], is(lessThan(1024L)));
+        assertThat(perRecord[0], is(lessThan(perRecord[1] / 4)));
+    }
+
+    @Test
+    public void offHeapBetweenRecords() throws IOException {
+        // Enough records that Jackson has buffered some when switching
+        FeatureCollection[] fcs = new FeatureCollection[500];
+        for (int i = 0; i < fcs.length; i++) {
+            fcs[i] = make("name " + i, i);
+        }
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(chunk(fcs)));
+        FeatureCollection fc = new FeatureCollection();
+        assertThat(reader.readInto(fc), is(true));
+        assertThat(fc, is(equalTo(fcs[0])));
+        reader.setOffHeapFeatures(Collections.singleton("NAME"));
+        for (int i = 1; i < fcs.length; i++) {
+            assertThat(reader.readInto(fc), is(true));
+            OffHeapStringCounter oh =
+                (OffHeapStringCounter)fc.getFeatures().get("NAME");
+            assertThat(oh.toStringCounter(),
+                       is(equalTo(fcs[i].getFeatures().get("NAME"))));
+            assertThat(fc.getFeatures().get("id"),
+                       is(equalTo(fcs[i].getFeatures().get("id"))));
+        }
+        assertThat(reader.readInto(fc), is(false));
+        reader.close();
+    }
+
+    @Test
+    public void offHeapFromJson() throws IOException {
+        ObjectMapper json = new ObjectMapper();
+        FeatureCollection fc1 = make("a", 1);
+        ChunkReader reader = new ChunkReader
+            (json, new ByteArrayInputStream(json.writeValueAsBytes(fc1)));
+        reader.setOffHeapFeatures(Collections.singleton("NAME"));
+        FeatureCollection fc = reader.read();
+        OffHeapStringCounter oh =
+            (OffHeapStringCounter)fc.getFeatures().get("NAME");
+        assertThat(oh.toStringCounter(),
+                   is(equalTo(fc1.getFeatures().get("NAME"))));
+        oh.close();
+        assertThat(reader.read(), is(nullValue()));
+        reader.close();
+    }
+
+    @Test
+    public void closeFreesOffHeapCounters() throws IOException {
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(chunk(make("a", 1),
+                                                    make("b", 2))));
+        reader.setOffHeapFeatures(Collections.singleton("NAME"));
+        FeatureCollection fc = new FeatureCollection();
+        assertThat(reader.readInto(fc), is(true));
+        Feature first = fc.getFeatures().get("NAME");
+        assertThat(reader.readInto(fc), is(true));
+        OffHeapStringCounter oh =
+            (OffHeapStringCounter)fc.getFeatures().get("NAME");
+        assertThat(oh, is(sameInstance(first)));
+        assertThat(oh.get("b"), is(2));
+        assertThat(oh.get("a"), is(0));
+        reader.close();
+        try {
+            oh.size();
+            assertThat("off-heap counter after close", is("closed"));
+        } catch (IllegalStateException e) {
+            // expected case
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkScannerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private Path chunk;
+    private List<FeatureCollection> all;
+    private ZipfCorpus corpus;
+
+    private void writeCorpus(boolean canonical) throws IOException {
+        corpus = new ZipfCorpus(11, 5000, 1.1);
+        corpus.setFeatures(2);
+        corpus.setMeanTerms(10);
+        chunk = new File(tmp.getRoot(), "corpus.fc").toPath();
+        ChunkWriter writer = new ChunkWriter(mapper, chunk);
+        writer.setCanonical(canonical);
+        writer.setBloomIndex(ChunkBloomIndex.sidecarFor(chunk), 20, 0.01);
+        all = new ArrayList<FeatureCollection>();
+        for (int i = 0; i < 500; i++) {
+            FeatureCollection fc = corpus.next();
+            all.add(fc);
+            writer.write(fc);
+        }
+        writer.close();
+    }
+
+    private List<String> scan(ChunkScanner scanner, String feature,
+                              String term)
+        throws IOException {
+        final List<String> ids = new ArrayList<String>();
+        long n = scanner.scan(feature, term, new ChunkScanner.Visitor() {
+                public void visit(FeatureCollection fc) {
+                    ids.add(((StringFeature)fc.getFeatures().get("id"))
+                            .getValue());
+                }
+            });
+        assertThat(n, is((long)ids.size()));
+        return ids;
+    }
+
+    private List<String> expected(String feature, String term) {
+        List<String> ids = new ArrayList<String>();
+        for (FeatureCollection fc : all) {
+            Feature f = fc.getFeatures().get(feature);
+            if ((f instanceof StringCounter &&
+                 ((StringCounter)f).getStrings().containsKey(term)) ||
+                (f instanceof StringFeature &&
+                 term.equals(((StringFeature)f).getValue()))) {
+                ids.add(((StringFeature)fc.getFeatures().get("id"))
+                        .getValue());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void sidecarWritten() throws IOException {
+        writeCorpus(false);
+        ChunkBloomIndex index =
+            ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(chunk));
+        assertThat(index.getNumBlocks(), is(25));
+        long records = 0;
+        long end = 0;
+        for (int b = 0; b < index.getNumBlocks(); b++) {
+            assertThat(index.getBlockOffset(b), is(end));
+            end += index.getBlockLength(b);
+            records += index.getBlockRecordCount(b);
+        }
+        assertThat(records, is(500L));
+        assertThat(end, is(chunk.toFile().length()));
+        assertThat(index.getChunkLength(), is(end));
+    }
+
+    @Test
+    public void rewriteDropsStaleIndex() throws IOException {
+        writeCorpus(false);
+        Path sidecar = ChunkBloomIndex.sidecarFor(chunk);
+        ChunkBloomIndex stale = ChunkBloomIndex.read(sidecar);
+
+        // Truncating the chunk deletes its index
+        ChunkWriter writer = new ChunkWriter(mapper, chunk);
+        assertThat(Files.exists(sidecar), is(false));
+        for (int i = 0; i < 100; i++) {
+            writer.write(all.get(i));
+        }
+        writer.close();
+
+        // An index that does not match the file is refused
+        try {
+            new ChunkScanner(mapper, chunk, stale);
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failedWriteDropsStaleIndex() throws IOException {
+        writeCorpus(false);
+        Path sidecar = ChunkBloomIndex.sidecarFor(chunk);
+        FileChannel channel = FileChannel.open
+            (chunk, StandardOpenOption.WRITE,
+             StandardOpenOption.TRUNCATE_EXISTING);
+        ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 4, 1, 1024, ChunkWriter.SyncPolicy.NONE);
+        writer.setBloomIndex(sidecar, 20, 0.01);
+        writer.write(all.get(0));
+        assertThat(Files.exists(sidecar), is(false));
+        FeatureCollection bad = new FeatureCollection();
+        bad.getFeatures().put("bad", new Feature() {
+                public boolean isReadOnly() { return false; }
+                public void setReadOnly(boolean ro) { }
+                public String getBoom() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+        try {
+            writer.write(bad);
+            writer.close();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // already reported
+        }
+        assertThat(Files.exists(sidecar), is(false));
+    }
+
+    @Test
+    public void indexesAppendedRecords() throws IOException {
+        writeCorpus(false);
+        long before = Files.size(chunk);
+        Path sidecar = ChunkBloomIndex.sidecarFor(chunk);
+        FileChannel channel = FileChannel.open
+            (chunk, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 4, 1, 1024, ChunkWriter.SyncPolicy.NONE);
+        writer.setBloomIndex(sidecar, 20, 0.01);
+        FeatureCollection extra = new FeatureCollection();
+        extra.getFeatures().put("id", new StringFeature("appended"));
+        for (int i = 0; i < 30; i++) {
+            writer.write(all.get(i));
+        }
+        writer.write(extra);
+        writer.close();
+
+        ChunkBloomIndex index = ChunkBloomIndex.read(sidecar);
+        assertThat(index.getBlockOffset(0), is(before));
+        assertThat(index.getChunkLength(), is(Files.size(chunk)));
+        ChunkScanner scanner = new ChunkScanner(mapper, chunk, index);
+        assertThat(scan(scanner, "id", "appended"), contains("appended"));
+        // Only the appended copy is indexed
+        String id = ((StringFeature)all.get(3).getFeatures().get("id"))
+            .getValue();
+        assertThat(scan(scanner, "id", id), contains(id));
+        scanner.close();
+    }
+
+    @Test
+    public void scansMatchBruteForce() throws IOException {
+        writeCorpus(true);
+        ChunkScanner scanner = new ChunkScanner
+            (mapper, chunk,
+             ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(chunk)));
+        for (int rank : new int[] { 0, 10, 200, 3000 }) {
+            String term = corpus.getTerm(rank);
+            assertThat(scan(scanner, "f1", term), is(expected("f1", term)));
+        }
+        assertThat(scan(scanner, "f0", "no such term"), is(empty()));
+        assertThat(scanner.getBlocksSkipped(), is(greaterThan(25L)));
+        scanner.close();
+    }
+
+    @Test
+    public void findsStringFeature() throws IOException {
+        writeCorpus(false);
+        ChunkScanner scanner = new ChunkScanner
+            (mapper, chunk,
+             ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(chunk)));
+        assertThat(scan(scanner, "id", "321"), contains("321"));
+        assertThat(scanner.getBlocksRead(), is(lessThan(3L)));
+        assertThat(scanner.getBlocksRead() + scanner.getBlocksSkipped(),
+                   is(25L));
+        scanner.close();
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(int i) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        for (int j = 0; j <= i % 50; j++) {
+            sc.add("term " + j, i);
+        }
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("id", new StringFeature(Integer.toString(i)));
+        return fc;
+    }
+
+    private void checkFile(File f, int n) throws IOException {
+        ChunkReader reader = new ChunkReader(mapper, new FileInputStream(f));
+        for (int i = 0; i < n; i++) {
+            assertThat(reader.read(), is(equalTo(make(i))));
+        }
+        assertThat(reader.read(), is(nullValue()));
+        reader.close();
+    }
+
+    @Test
+    public void preservesOrder() throws IOException {
+        File f = tmp.newFile("order.fc");
+        ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+        for (int i = 0; i < 1000; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+        checkFile(f, 1000);
+    }
+
+    @Test
+    public void smallQueueAndBatches() throws IOException {
+        File f = tmp.newFile("small.fc");
+        FileChannel channel = FileChannel.open
+            (f.toPath(), StandardOpenOption.WRITE);
+        // A batch smaller than most records exercises the direct path
+        ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 2, 3, 64, ChunkWriter.SyncPolicy.ON_BATCH);
+        for (int i = 0; i < 200; i++) {
+            writer.write(make(i));
+            if (i % 50 == 0) {
+                writer.flush();
+            }
+        }
+        writer.close();
+        checkFile(f, 200);
+    }
+
+    @Test
+    public void inlineEncoding() throws IOException {
+        File f = tmp.newFile("inline.fc");
+        FileChannel channel = FileChannel.open
+            (f.toPath(), StandardOpenOption.WRITE);
+        ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 4, 0, 1024, ChunkWriter.SyncPolicy.NONE);
+        for (int i = 0; i < 100; i++) {
+            writer.write(make(i));
+        }
+        writer.flush();
+        checkFile(f, 100);
+        writer.close();
+    }
+
+    @Test
+    public void reportsErrors() throws IOException {
+        File f = tmp.newFile("error.fc");
+        ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+        FeatureCollection bad = new FeatureCollection();
+        bad.getFeatures().put("bad", new Feature() {
+                public boolean isReadOnly() { return false; }
+                public void setReadOnly(boolean ro) { }
+                public String getBoom() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+        writer.write(make(0));
+        writer.write(bad);
+        try {
+            writer.flush();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            writer.close();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void throwingListenerFailsWriter() throws IOException {
+        File f = tmp.newFile("listener.fc");
+        ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+        writer.setRecordListener(new ChunkWriter.RecordListener() {
+                public void recordWritten(long seq, long offset, int length,
+                                          byte[] digest, boolean duplicate) {
+                    throw new IllegalStateException("listener");
+                }
+            });
+        writer.write(make(0));
+        try {
+            writer.flush();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            assertThat(e.getCause(),
+                       is(instanceOf(IllegalStateException.class)));
+        }
+        // The I/O thread keeps draining, so producers are not wedged
+        for (int i = 0; i < 10; i++) {
+            try {
+                writer.write(make(i));
+                assertThat("IOException", is("thrown"));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            writer.close();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void unwritableChannelFailsClose() throws IOException {
+        File f = tmp.newFile("readonly.fc");
+        FileChannel channel = FileChannel.open
+            (f.toPath(), StandardOpenOption.READ);
+        ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 4, 1, 1024, ChunkWriter.SyncPolicy.NONE);
+        try {
+            for (int i = 0; i < 10; i++) {
+                writer.write(make(i));
+            }
+            writer.close();
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // already reported
+        }
+    }
+
+    @Test
+    public void skipsDuplicates() throws IOException {
+        File f = tmp.newFile("dedup.fc");
+        ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+        writer.setCanonical(true);
+        writer.setSkipDuplicates(true);
+        // The listener runs on the I/O thread, so it only records what
+        // it sees, and the test thread checks it after close()
+        final List<Long> seqs =
+            Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> offsets =
+            Collections.synchronizedList(new ArrayList<Long>());
+        final List<Integer> digestLengths =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Boolean> dups =
+            Collections.synchronizedList(new ArrayList<Boolean>());
+        writer.setRecordListener(new ChunkWriter.RecordListener() {
+                public void recordWritten(long seq, long offset, int length,
+                                          byte[] digest, boolean duplicate) {
+                    seqs.add(seq);
+                    offsets.add(offset);
+                    digestLengths.add(digest == null ? -1 : digest.length);
+                    dups.add(duplicate);
+                }
+            });
+        for (int i = 0; i < 30; i++) {
+            writer.write(make(i % 10));
+        }
+        writer.close();
+        checkFile(f, 10);
+        assertThat(seqs, hasSize(30));
+        for (int i = 0; i < 30; i++) {
+            assertThat(seqs.get(i), is((long)i));
+            assertThat(digestLengths.get(i), is(32));
+            assertThat(dups.get(i), is(i >= 10));
+        }
+        for (int i = 10; i < 30; i++) {
+            assertThat(offsets.get(i), is(offsets.get(i % 10)));
+        }
+        try {
+            writer.setCanonical(false);
+            assertThat("IllegalStateException", is("thrown"));
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesRacingCloseAreNotLost() throws Exception {
+        File f = tmp.newFile("race.fc");
+        FileChannel channel = FileChannel.open
+            (f.toPath(), StandardOpenOption.WRITE);
+        // A one-record queue keeps producers blocked in write()
+        final ChunkWriter writer = new ChunkWriter
+            (mapper, channel, 1, 1, 64, ChunkWriter.SyncPolicy.NONE);
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread p = new Thread(new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            while (true) {
+                                writer.write(make(0));
+                                written.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            // closed
+                        }
+                    }
+                });
+            p.start();
+            producers.add(p);
+        }
+        started.await();
+        writer.close();
+        for (Thread p : producers) {
+            p.join(10000);
+            assertThat(p.isAlive(), is(false));
+        }
+
+        ChunkReader reader = new ChunkReader(mapper, new FileInputStream(f));
+        int n = 0;
+        while (reader.read() != null) {
+            n++;
+        }
+        reader.close();
+        assertThat(n, is(written.get()));
+    }
+}
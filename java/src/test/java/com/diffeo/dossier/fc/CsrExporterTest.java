@@ -0,0 +1,107 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CsrExporterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(int i) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter name = new StringCounter();
+        for (int j = 0; j < i % 7; j++) {
+            name.add("name " + ((i + j) % 13), j + 1);
+        }
+        fc.getFeatures().put("NAME", name);
+        if (i % 3 == 0) {
+            StringCounter other = new StringCounter();
+            other.add("\u00e9t\u00e9", i);
+            other.add("z", 1);
+            fc.getFeatures().put("OTHER", other);
+        }
+        return fc;
+    }
+
+    private static StringCounter rowOf(CsrMatrix m, int row) {
+        StringCounter sc = new StringCounter();
+        int last = -1;
+        for (long k = m.rowStart(row); k < m.rowEnd(row); k++) {
+            assertThat(m.column(k), is(greaterThan(last)));
+            last = m.column(k);
+            sc.getStrings().put(m.term(m.column(k)), m.value(k));
+        }
+        return sc;
+    }
+
+    @Test
+    public void exportAndRead() throws IOException {
+        List<File> chunks = new ArrayList<File>();
+        List<FeatureCollection> all = new ArrayList<FeatureCollection>();
+        for (int c = 0; c < 4; c++) {
+            File f = tmp.newFile("chunk" + c + ".fc");
+            FileOutputStream out = new FileOutputStream(f);
+            for (int i = 0; i < 25; i++) {
+                FeatureCollection fc = make(c * 25 + i);
+                all.add(fc);
+                out.write(mapper.writeValueAsBytes(fc));
+            }
+            out.close();
+            chunks.add(f);
+        }
+
+        Map<String, File> outputs = new HashMap<String, File>();
+        outputs.put("NAME", new File(tmp.getRoot(), "NAME.csr"));
+        outputs.put("OTHER", new File(tmp.getRoot(), "OTHER.csr"));
+        CsrExporter exporter = new CsrExporter(mapper, 3, tmp.getRoot());
+        assertThat(exporter.export(chunks, outputs), is(100));
+
+        CsrMatrix name = CsrMatrix.open(outputs.get("NAME"));
+        CsrMatrix other = CsrMatrix.open(outputs.get("OTHER"));
+        assertThat(name.getNumRows(), is(100));
+        assertThat(name.getNumTerms(), is(13));
+        assertThat(other.getNumTerms(), is(2));
+        for (int row = 0; row < 100; row++) {
+            FeatureCollection fc = all.get(row);
+            assertThat(rowOf(name, row),
+                       is(equalTo(fc.getFeatures().get("NAME"))));
+            Feature o = fc.getFeatures().get("OTHER");
+            if (o == null) {
+                assertThat(other.rowEnd(row), is(other.rowStart(row)));
+            } else {
+                assertThat(rowOf(other, row), is(equalTo(o)));
+            }
+        }
+        for (int col = 0; col < name.getNumTerms(); col++) {
+            assertThat(name.indexOf(name.term(col)), is(col));
+        }
+        assertThat(other.indexOf("\u00e9t\u00e9"), is(1));
+        assertThat(other.indexOf("missing"), is(-1));
+        name.close();
+        other.close();
+    }
+}
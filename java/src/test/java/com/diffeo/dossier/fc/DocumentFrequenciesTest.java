@@ -0,0 +1,99 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocumentFrequenciesTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(String... terms) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        for (String t : terms) {
+            sc.add(t, 1);
+        }
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("type", new StringFeature("PER"));
+        return fc;
+    }
+
+    @Test
+    public void countsDocumentsNotOccurrences() {
+        DocumentFrequencies df = new DocumentFrequencies();
+        df.add(make("a", "a", "b"));
+        df.add(make("a"));
+        df.add(new FeatureCollection());
+        assertThat(df.getDocumentCount(), is(3L));
+        assertThat(df.getDocumentFrequency("NAME", "a"), is(2));
+        assertThat(df.getDocumentFrequency("NAME", "b"), is(1));
+        assertThat(df.getDocumentFrequency("NAME", "c"), is(0));
+        assertThat(df.getDocumentFrequency("OTHER", "a"), is(0));
+        assertThat(df.getFeatureNames(), contains("NAME"));
+    }
+
+    @Test
+    public void mergeEqualsWhole() {
+        DocumentFrequencies whole = new DocumentFrequencies();
+        DocumentFrequencies left = new DocumentFrequencies();
+        DocumentFrequencies right = new DocumentFrequencies();
+        for (int i = 0; i < 20; i++) {
+            FeatureCollection fc = make("t" + (i % 3), "u" + (i % 5));
+            whole.add(fc);
+            (i < 7 ? left : right).add(fc);
+        }
+        left.merge(right);
+        assertThat(left.getDocumentCount(), is(whole.getDocumentCount()));
+        assertThat(left.getFrequencies("NAME"),
+                   is(whole.getFrequencies("NAME")));
+        // The merged-in table is unchanged
+        assertThat(right.getDocumentCount(), is(13L));
+    }
+
+    @Test
+    public void computeInParallel() throws IOException {
+        ZipfCorpus corpus = new ZipfCorpus(17, 500, 1.1);
+        List<File> chunks = new ArrayList<File>();
+        DocumentFrequencies expected = new DocumentFrequencies();
+        for (int c = 0; c < 7; c++) {
+            File f = tmp.newFile("chunk" + c + ".fc");
+            ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+            for (int i = 0; i < 40; i++) {
+                FeatureCollection fc = corpus.next();
+                expected.add(fc);
+                writer.write(fc);
+            }
+            writer.close();
+            chunks.add(f);
+        }
+
+        DocumentFrequencies df = DocumentFrequencies.compute(mapper, chunks, 3);
+        assertThat(df.getDocumentCount(), is(280L));
+        assertThat(df.getFeatureNames(), is(expected.getFeatureNames()));
+        for (String name : expected.getFeatureNames()) {
+            assertThat(df.getFrequencies(name),
+                       is(expected.getFrequencies(name)));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class FeatureCollectionCacheTest {
+    private static FeatureCollection make(int i) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        for (int j = 0; j < 10; j++) {
+            sc.add("term " + j, i);
+        }
+        fc.getFeatures().put("NAME", sc);
+        return fc;
+    }
+
+    private static FeatureCollection cached(int i) {
+        FeatureCollection fc = make(i);
+        fc.setReadOnly(true);
+        return fc;
+    }
+
+    private static long weight(int i) {
+        return MemoryEstimator.estimate("id" + i) +
+            MemoryEstimator.estimate(make(i));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        long w = weight(0);
+        FeatureCollectionCache cache = new FeatureCollectionCache(3 * w, 1);
+        for (int i = 0; i < 3; i++) {
+            cache.put("id" + i, make(i));
+        }
+        assertThat(cache.size(), is(3));
+        assertThat(cache.getWeightedSize(), is(3 * w));
+
+        // Touch id0 so that id1 is the least recently used
+        assertThat(cache.getIfPresent("id0"), is(equalTo(cached(0))));
+        cache.put("id3", make(3));
+        assertThat(cache.getIfPresent("id1"), is(nullValue()));
+        assertThat(cache.getIfPresent("id0"), is(notNullValue()));
+        assertThat(cache.getIfPresent("id2"), is(notNullValue()));
+        assertThat(cache.getIfPresent("id3"), is(notNullValue()));
+        assertThat(cache.getEvictions(), is(1L));
+        assertThat(cache.getHits(), is(4L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHitRate(), is(0.8));
+
+        cache.invalidate("id0");
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getWeightedSize(), is(2 * w));
+        cache.invalidateAll();
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getWeightedSize(), is(0L));
+    }
+
+    @Test
+    public void entriesAreReadOnly() {
+        FeatureCollectionCache cache = new FeatureCollectionCache(1 << 20);
+        cache.put("a", make(1));
+        FeatureCollection fc = cache.getIfPresent("a");
+        assertThat(fc.isReadOnly(), is(true));
+        try {
+            ((StringCounter)fc.getFeatures().get("NAME")).add("x", 1);
+            assertThat("UnsupportedOperationException", is("thrown"));
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOversized() {
+        FeatureCollectionCache cache =
+            new FeatureCollectionCache(weight(0) - 1, 1);
+        cache.put("id0", make(0));
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getRejections(), is(1L));
+    }
+
+    @Test
+    public void concurrentLoads() throws Exception {
+        final FeatureCollectionCache cache =
+            new FeatureCollectionCache(50 * weight(0));
+        final AtomicInteger loads = new AtomicInteger();
+        final FeatureCollectionCache.Loader loader =
+            new FeatureCollectionCache.Loader() {
+                public FeatureCollection load(String id) {
+                    loads.incrementAndGet();
+                    return make(Integer.parseInt(id.substring(2)));
+                }
+            };
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (int i = 0; i < 2000; i++) {
+                            int k = (i * 7 + seed) % 20;
+                            FeatureCollection fc = cache.get("id" + k, loader);
+                            assertThat(fc, is(equalTo(cached(k))));
+                        }
+                        return null;
+                    }
+                }));
+        }
+        for (Future<Void> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        assertThat(cache.getHits() + cache.getMisses(), is(16000L));
+        assertThat((long)loads.get(), is(cache.getMisses()));
+        assertThat(cache.getWeightedSize(),
+                   is(lessThanOrEqualTo(50 * weight(0))));
+    }
+}
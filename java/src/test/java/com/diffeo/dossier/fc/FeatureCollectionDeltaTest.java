@@ -0,0 +1,152 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class FeatureCollectionDeltaTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection profile() {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter name = new StringCounter();
+        for (int i = 0; i < 1000; i++) {
+            name.add("name " + i, i + 1);
+        }
+        fc.getFeatures().put("NAME", name);
+        fc.getFeatures().put("title", new StringFeature("before"));
+        fc.getFeatures().put("gone", new StringFeature("x"));
+        GeoCoords geo = new GeoCoords();
+        geo.add("Boston", -71.06, 42.36, Double.NaN, Double.NaN);
+        fc.getFeatures().put("!co_LOC", geo);
+        return fc;
+    }
+
+    private static FeatureCollection changed() {
+        FeatureCollection fc = profile();
+        StringCounter name = (StringCounter)fc.getFeatures().get("NAME");
+        name.add("name 5", 10);
+        name.getStrings().remove("name 7");
+        name.add("new name", 1);
+        fc.getFeatures().put("title", new StringFeature("after"));
+        fc.getFeatures().remove("gone");
+        StringCounter added = new StringCounter();
+        added.add("x", 1);
+        fc.getFeatures().put("added", added);
+        return fc;
+    }
+
+    @Test
+    public void diff() {
+        FeatureCollectionDelta delta =
+            FeatureCollectionDelta.diff(profile(), changed());
+        assertThat(delta.getRemoved(), contains("gone"));
+        assertThat(delta.getReplaced().keySet(),
+                   containsInAnyOrder("title", "added"));
+        assertThat(delta.getPatches().keySet(), contains("NAME"));
+        FeatureCollectionDelta.CounterPatch patch =
+            delta.getPatches().get("NAME");
+        assertThat(patch.getChanged().size(), is(2));
+        assertThat(patch.getChanged(), hasEntry("name 5", 16));
+        assertThat(patch.getChanged(), hasEntry("new name", 1));
+        assertThat(patch.getRemoved(), contains("name 7"));
+
+        assertThat(FeatureCollectionDelta.diff(profile(), profile()).isEmpty(),
+                   is(true));
+    }
+
+    @Test
+    public void roundTripAndApply() throws IOException {
+        FeatureCollection after = changed();
+        after.setReadOnly(true);
+        FeatureCollectionDelta delta =
+            FeatureCollectionDelta.diff(profile(), after);
+        byte[] bytes = mapper.writeValueAsBytes(delta);
+        assertThat(bytes.length,
+                   is(lessThan(mapper.writeValueAsBytes(after).length / 10)));
+
+        FeatureCollectionDelta decoded =
+            mapper.readValue(bytes, FeatureCollectionDelta.class);
+        assertThat(decoded, is(equalTo(delta)));
+
+        FeatureCollection fc = profile();
+        fc.setReadOnly(true);
+        decoded.apply(fc);
+        assertThat(fc, is(equalTo(after)));
+        assertThat(fc.getFeatures().get("NAME").isReadOnly(), is(true));
+    }
+
+    @Test
+    public void applyCopiesReplacements() {
+        FeatureCollection to = changed();
+        FeatureCollectionDelta delta =
+            FeatureCollectionDelta.diff(profile(), to);
+        FeatureCollection a = profile();
+        FeatureCollection b = profile();
+        delta.apply(a);
+        delta.apply(b);
+        assertThat(a, is(equalTo(to)));
+        assertThat(b, is(equalTo(to)));
+
+        Feature added = a.getFeatures().get("added");
+        assertThat(added, is(not(sameInstance(to.getFeatures().get("added")))));
+        assertThat(added, is(not(sameInstance(b.getFeatures().get("added")))));
+        ((StringCounter)added).add("x", 5);
+        a.setReadOnly(true);
+        assertThat(b.getFeatures().get("added"),
+                   is(equalTo(to.getFeatures().get("added"))));
+        assertThat(b.getFeatures().get("added").isReadOnly(), is(false));
+        assertThat(to.getFeatures().get("added").isReadOnly(), is(false));
+        assertThat(delta.getReplaced().get("added"),
+                   is(sameInstance(to.getFeatures().get("added"))));
+    }
+
+    @Test
+    public void patchesNeedCbor() throws IOException {
+        ObjectMapper json = new ObjectMapper();
+        FeatureCollectionDelta delta =
+            FeatureCollectionDelta.diff(profile(), changed());
+        try {
+            json.writeValueAsBytes(delta);
+            assertThat("IOException", is("thrown"));
+        } catch (IOException e) {
+            // expected
+        }
+        delta.getPatches().clear();
+        FeatureCollectionDelta decoded = json.readValue
+            (json.writeValueAsBytes(delta), FeatureCollectionDelta.class);
+        assertThat(decoded.getRemoved(), is(equalTo(delta.getRemoved())));
+        assertThat(decoded.getReplaced(), is(equalTo(delta.getReplaced())));
+        assertThat(decoded.getPatches().isEmpty(), is(true));
+    }
+
+    @Test
+    public void applyChecksFirst() {
+        FeatureCollectionDelta delta =
+            FeatureCollectionDelta.diff(profile(), changed());
+        FeatureCollection fc = profile();
+        fc.getFeatures().put("NAME", new StringFeature("not a counter"));
+        FeatureCollection copy = profile();
+        copy.getFeatures().put("NAME", new StringFeature("not a counter"));
+        try {
+            delta.apply(fc);
+            assertThat("IllegalArgumentException", is("thrown"));
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertThat(fc, is(equalTo(copy)));
+    }
+}
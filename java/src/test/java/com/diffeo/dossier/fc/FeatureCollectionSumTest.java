@@ -0,0 +1,85 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class FeatureCollectionSumTest {
+    @Test
+    public void small() {
+        FeatureCollection fc1 = new FeatureCollection();
+        StringCounter foo1 = new StringCounter();
+        foo1.add("a", 1);
+        foo1.add("b", 3);
+        fc1.getFeatures().put("foo", foo1);
+        fc1.getFeatures().put("title", new StringFeature("ignored"));
+
+        FeatureCollection fc2 = new FeatureCollection();
+        StringCounter foo2 = new StringCounter();
+        foo2.add("b", 1);
+        foo2.add("c", -2);
+        fc2.getFeatures().put("foo", PrefixCounter.fromStringCounter(foo2));
+        StringCounter bar = new StringCounter();
+        bar.add("x", 5);
+        fc2.getFeatures().put("bar", bar);
+        fc2.setReadOnly(true);
+
+        FeatureCollection expected = new FeatureCollection();
+        StringCounter foo = new StringCounter();
+        foo.add("a", 1);
+        foo.add("b", 4);
+        foo.add("c", -2);
+        expected.getFeatures().put("foo", foo);
+        StringCounter bar2 = new StringCounter();
+        bar2.add("x", 5);
+        expected.getFeatures().put("bar", bar2);
+
+        List<FeatureCollection> fcs = Arrays.asList(fc1, fc2);
+        assertThat(FeatureCollectionSum.sum(fcs), is(equalTo(expected)));
+        assertThat(FeatureCollectionSum.parallelSum(fcs),
+                   is(equalTo(expected)));
+        assertThat(FeatureCollectionSum.parallelSum(fcs.stream()),
+                   is(equalTo(expected)));
+        // Inputs are untouched
+        assertThat(foo1.getStrings().get("b"), is(3));
+        assertThat(FeatureCollectionSum.parallelSum
+                   (Collections.<FeatureCollection>emptyList()),
+                   is(equalTo(new FeatureCollection())));
+    }
+
+    @Test
+    public void parallelEqualsSequential() {
+        ZipfCorpus corpus = new ZipfCorpus(3, 50000, 0.9);
+        corpus.setFeatures(3);
+        corpus.setMeanTerms(400);
+        List<FeatureCollection> fcs = new ArrayList<FeatureCollection>();
+        for (int i = 0; i < 3000; i++) {
+            fcs.add(corpus.next());
+        }
+        FeatureCollection expected = FeatureCollectionSum.sum(fcs);
+        // Large enough that the top-level merges run per feature
+        assertThat(((StringCounter)expected.getFeatures().get("f0"))
+                   .getStrings().size(), is(greaterThan(16384)));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertThat(FeatureCollectionSum.parallelSum(fcs, pool),
+                       is(equalTo(expected)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
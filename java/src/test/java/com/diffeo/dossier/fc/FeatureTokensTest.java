@@ -0,0 +1,101 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class FeatureTokensTest {
+    private static FeatureTokens tomBrady() {
+        FeatureTokens ft = new FeatureTokens();
+        ft.add("tom brady",
+               new String[] { "test", "test" },
+               new int[] { 0, 0 },
+               new int[] { 0, 1 });
+        ft.add("tom brady",
+               new String[] { "nltk" },
+               new int[] { 5 },
+               new int[] { 2 });
+        return ft;
+    }
+
+    @Test
+    public void addSequences() {
+        FeatureTokens ft = tomBrady();
+        assertThat(ft.getTokens(), hasKey("tom brady"));
+        FeatureTokens.TokenSequences seqs = ft.getTokens().get("tom brady");
+        assertThat(seqs.size(), is(2));
+        assertThat(seqs.length(0), is(2));
+        assertThat(seqs.getTaggerId(0, 1), is("test"));
+        assertThat(seqs.getSentenceId(0, 1), is(0));
+        assertThat(seqs.getTokenId(0, 1), is(1));
+        assertThat(seqs.length(1), is(1));
+        assertThat(seqs.getTaggerId(1, 0), is("nltk"));
+        assertThat(seqs.getSentenceId(1, 0), is(5));
+        assertThat(seqs.getTokenId(1, 0), is(2));
+    }
+
+    @Test
+    public void readOnlyAdd() {
+        FeatureTokens ft = tomBrady();
+        ft.setReadOnly(true);
+        try {
+            ft.add("x", new String[0], new int[0], new int[0]);
+            assertThat("UnsupportedOperationException", is("raised"));
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void roundTripCbor() throws IOException {
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("@NAME", tomBrady());
+
+        ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+        byte[] cbor = mapper.writeValueAsBytes(fc);
+        FeatureCollection fc2 = mapper.readValue(cbor, FeatureCollection.class);
+        assertThat(fc2.getFeatures().get("@NAME"),
+                   is(instanceOf(FeatureTokens.class)));
+        assertThat(fc2, is(equalTo(fc)));
+    }
+
+    @Test
+    public void deserializeFromCbor() throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+        byte[] ref = {
+            (byte)0x82, (byte)0xa1, 0x61, 0x76, 0x64, 0x66, 0x63,
+            0x30, 0x31, // header
+            (byte)0xa1, // map of 1 item
+            (byte)0x65, 0x40, 0x4e, 0x41, 0x4d, 0x45, // string "@NAME"
+            (byte)0xd9, (byte)0xd9, (byte)0xfc, // tag 55804
+            (byte)0xa1, // map of 1 item
+            (byte)0x63, 0x66, 0x6f, 0x6f, // string "foo"
+            (byte)0x81, // array of 1 sequence
+            (byte)0x81, // array of 1 token
+            (byte)0x83, // array of 3 items
+            (byte)0x64, 0x6e, 0x6c, 0x74, 0x6b, // string "nltk"
+            (byte)0x05, // integer 5
+            (byte)0x02, // integer 2
+        };
+        FeatureCollection fc = mapper.readValue(ref, FeatureCollection.class);
+        Feature f = fc.getFeatures().get("@NAME");
+        assertThat(f, is(instanceOf(FeatureTokens.class)));
+
+        FeatureTokens expected = new FeatureTokens();
+        expected.add("foo", new String[] { "nltk" },
+                     new int[] { 5 }, new int[] { 2 });
+        assertThat((FeatureTokens)f, is(equalTo(expected)));
+    }
+}
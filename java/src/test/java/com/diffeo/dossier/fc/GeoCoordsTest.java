@@ -0,0 +1,90 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class GeoCoordsTest {
+    @Test
+    public void addCoordinates() {
+        GeoCoords geo = new GeoCoords();
+        geo.add("Boston", -72, 44, 2, Double.NaN);
+        geo.add("Boston", 99, -22, Double.NaN, 1434218285);
+
+        GeoCoords.Coordinates c = geo.getCoords().get("Boston");
+        assertThat(c.size(), is(2));
+        assertThat(c.getLongitude(0), is(-72.0));
+        assertThat(c.getLatitude(0), is(44.0));
+        assertThat(c.getAltitude(0), is(2.0));
+        assertThat(Double.isNaN(c.getTime(0)), is(true));
+        assertThat(Double.isNaN(c.getAltitude(1)), is(true));
+        assertThat(c.getTime(1), is(1434218285.0));
+    }
+
+    @Test
+    public void readOnlyAdd() {
+        GeoCoords geo = new GeoCoords();
+        geo.setReadOnly(true);
+        try {
+            geo.add("Boston", 0, 0, 0, 0);
+            assertThat("UnsupportedOperationException", is("raised"));
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void roundTripCbor() throws IOException {
+        GeoCoords geo = new GeoCoords();
+        geo.add("Boston", -72, 44, 2, Double.NaN);
+        geo.add("Boston", 99, -22, Double.NaN, 1434218285);
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("!co_LOC", geo);
+
+        ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+        byte[] cbor = mapper.writeValueAsBytes(fc);
+        FeatureCollection fc2 = mapper.readValue(cbor, FeatureCollection.class);
+        assertThat(fc2.getFeatures().get("!co_LOC"),
+                   is(instanceOf(GeoCoords.class)));
+        assertThat(fc2, is(equalTo(fc)));
+    }
+
+    @Test
+    public void deserializeFromCbor() throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+        byte[] ref = {
+            (byte)0x82, (byte)0xa1, 0x61, 0x76, 0x64, 0x66, 0x63,
+            0x30, 0x31, // header
+            (byte)0xa1, // map of 1 item
+            (byte)0x61, 0x21, // string "!"
+            (byte)0xd9, (byte)0xd9, (byte)0xfd, // tag 55805
+            (byte)0xa1, // map of 1 item
+            (byte)0x63, 0x66, 0x6f, 0x6f, // string "foo"
+            (byte)0x81, // array of 1 coordinate
+            (byte)0x84, // array of 4 items
+            (byte)0x38, 0x36, // integer -55
+            (byte)0x16, // integer 22
+            (byte)0x00, // integer 0
+            (byte)0xf6, // null
+        };
+        FeatureCollection fc = mapper.readValue(ref, FeatureCollection.class);
+        Feature f = fc.getFeatures().get("!");
+        assertThat(f, is(instanceOf(GeoCoords.class)));
+
+        GeoCoords expected = new GeoCoords();
+        expected.add("foo", -55, 22, 0, Double.NaN);
+        assertThat((GeoCoords)f, is(equalTo(expected)));
+    }
+}
@@ -0,0 +1,462 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * End-to-end load test over synthetic chunk files.
+ *
+ * The harness generates a corpus of chunk files with
+ * {@link ZipfCorpus}, then runs each configured pipeline at each
+ * configured thread count.  Worker threads take whole files from a
+ * shared list, so every run processes the same records.  Pipelines
+ * are cumulative:
+ *
+ * <dl>
+ * <dt><tt>read</tt></dt>
+ * <dd>decode every record with {@link ChunkReader#readInto}</dd>
+ * <dt><tt>transform</tt></dt>
+ * <dd>also modify every counter, adding a <tt>__total</tt> term
+ *     holding the sum of its counts</dd>
+ * <dt><tt>write</tt></dt>
+ * <dd>also re-encode every record with a per-thread
+ *     {@link ChunkWriter}</dd>
+ * </dl>
+ *
+ * Each run reports records and input megabytes per second, the
+ * 50th and 99th percentile and maximum per-record latency, and the
+ * number and total time of garbage collections per collector.  The
+ * report is written as JSON.
+ *
+ * Run it from the <tt>java</tt> directory with the
+ * <tt>loadtest</tt> profile, passing options in
+ * <tt>loadtest.args</tt>:
+ *
+ * <pre>
+ * mvn -Ploadtest verify -Dloadtest.args="--threads=1,2,4,8 --out=load.json"
+ * </pre>
+ *
+ * Options are <tt>--name=value</tt> pairs named after the fields
+ * of {@link Options}, with lists separated by commas.
+ */
+public class LoadHarness {
+    public enum Pipeline { READ, TRANSFORM, WRITE }
+
+    /** Harness configuration; all fields have usable defaults */
+    public static class Options {
+        public long seed = 1;
+        public int files = 8;
+        public int records = 2000;
+        public int vocabulary = 100000;
+        public double exponent = 1.0;
+        public int features = 4;
+        public int terms = 50;
+        public double[] scripts = { 1, 0, 0, 0 };
+        public int[] threads = { 1, 2, 4 };
+        public Pipeline[] pipelines = Pipeline.values();
+        public int warmup = 1;
+        public String dir = null;
+        public String out = null;
+
+        /**
+         * Parse command-line options.
+         *
+         * Every argument may hold several whitespace-separated
+         * options, so a single property can carry them all.
+         *
+         * @param args  Arguments of the form <tt>--name=value</tt>
+         * @return      Parsed options
+         */
+        public static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                for (String opt : arg.trim().split("\\s+")) {
+                    if (opt.isEmpty()) {
+                        continue;
+                    }
+                    int eq = opt.indexOf('=');
+                    if (!opt.startsWith("--") || eq < 0) {
+                        throw new IllegalArgumentException
+                            ("expected --name=value: " + opt);
+                    }
+                    o.set(opt.substring(2, eq), opt.substring(eq + 1));
+                }
+            }
+            return o;
+        }
+
+        private void set(String name, String value) {
+            if (name.equals("seed")) {
+                seed = Long.parseLong(value);
+            } else if (name.equals("files")) {
+                files = Integer.parseInt(value);
+            } else if (name.equals("records")) {
+                records = Integer.parseInt(value);
+            } else if (name.equals("vocabulary")) {
+                vocabulary = Integer.parseInt(value);
+            } else if (name.equals("exponent")) {
+                exponent = Double.parseDouble(value);
+            } else if (name.equals("features")) {
+                features = Integer.parseInt(value);
+            } else if (name.equals("terms")) {
+                terms = Integer.parseInt(value);
+            } else if (name.equals("scripts")) {
+                String[] parts = value.split(",");
+                scripts = new double[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    scripts[i] = Double.parseDouble(parts[i]);
+                }
+            } else if (name.equals("threads")) {
+                String[] parts = value.split(",");
+                threads = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    threads[i] = Integer.parseInt(parts[i]);
+                }
+            } else if (name.equals("pipelines")) {
+                String[] parts = value.split(",");
+                pipelines = new Pipeline[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    pipelines[i] = Pipeline.valueOf(parts[i].toUpperCase());
+                }
+            } else if (name.equals("warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (name.equals("dir")) {
+                dir = value;
+            } else if (name.equals("out")) {
+                out = value;
+            } else {
+                throw new IllegalArgumentException("unknown option " + name);
+            }
+        }
+    }
+
+    /** Garbage collection activity of one collector during a run */
+    public static class GcStats {
+        public long collections;
+        public long millis;
+    }
+
+    /** Measurements of one pipeline at one thread count */
+    public static class Result {
+        public Pipeline pipeline;
+        public int threads;
+        public long records;
+        public long bytesIn;
+        public long bytesOut;
+        public double seconds;
+        public double recordsPerSec;
+        public double mbPerSec;
+        public double p50Micros;
+        public double p99Micros;
+        public double maxMicros;
+        public Map<String, GcStats> gc;
+    }
+
+    /** The complete machine-readable report */
+    public static class Report {
+        public String javaVersion;
+        public String vm;
+        public int processors;
+        public long maxHeap;
+        public Options options;
+        public long corpusRecords;
+        public long corpusBytes;
+        public List<Result> results = new ArrayList<Result>();
+    }
+
+    private final Options options;
+    private final ObjectMapper mapper;
+
+    public LoadHarness(Options options) {
+        this.options = options;
+        this.mapper = new ObjectMapper(new CBORFactory());
+    }
+
+    /**
+     * Generate the corpus and run every configuration.
+     *
+     * @param dir  Scratch directory for the corpus and outputs
+     * @return     The report
+     * @throws IOException  if any file cannot be read or written
+     */
+    public Report run(File dir) throws IOException {
+        Report report = new Report();
+        report.javaVersion = System.getProperty("java.version");
+        report.vm = System.getProperty("java.vm.name");
+        report.processors = Runtime.getRuntime().availableProcessors();
+        report.maxHeap = Runtime.getRuntime().maxMemory();
+        report.options = options;
+
+        ZipfCorpus corpus = new ZipfCorpus
+            (options.seed, options.vocabulary, options.exponent,
+             options.scripts);
+        corpus.setFeatures(options.features);
+        corpus.setMeanTerms(options.terms);
+        List<File> files = corpus.writeChunks
+            (mapper, dir, options.files, options.records);
+        report.corpusRecords = (long)options.files * options.records;
+        for (File f : files) {
+            report.corpusBytes += f.length();
+        }
+
+        try {
+            for (int i = 0; i < options.warmup; i++) {
+                for (Pipeline p : options.pipelines) {
+                    runOnce(files, p, options.threads[0], dir);
+                }
+            }
+            for (Pipeline p : options.pipelines) {
+                for (int t : options.threads) {
+                    report.results.add(runOnce(files, p, t, dir));
+                }
+            }
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Run one pipeline over a corpus.
+     *
+     * @param files     Chunk files to process
+     * @param pipeline  Stages to run
+     * @param threads   Number of worker threads
+     * @param dir       Directory for output files, which are deleted
+     * @return          Measurements of the run
+     * @throws IOException  if any worker fails
+     */
+    public Result runOnce(final List<File> files, final Pipeline pipeline,
+                          int threads, final File dir)
+        throws IOException {
+        final AtomicInteger nextFile = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+
+        System.gc();
+        Map<String, GcStats> gcBefore = gcSnapshot();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final File out = new File(dir, "out-" + i + ".fc");
+            futures.add(pool.submit(new Callable<Worker>() {
+                    public Worker call() throws IOException {
+                        Worker w = new Worker(pipeline, out);
+                        int i;
+                        while ((i = nextFile.getAndIncrement()) < files.size()) {
+                            w.process(files.get(i));
+                        }
+                        w.finish();
+                        return w;
+                    }
+                }));
+        }
+
+        List<Worker> workers = new ArrayList<Worker>();
+        try {
+            for (Future<Worker> f : futures) {
+                workers.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("worker failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        Map<String, GcStats> gcAfter = gcSnapshot();
+
+        Result r = new Result();
+        r.pipeline = pipeline;
+        r.threads = threads;
+        int n = 0;
+        for (Worker w : workers) {
+            r.records += w.count;
+            r.bytesIn += w.bytesIn;
+            r.bytesOut += w.bytesOut;
+        }
+        long[] latencies = new long[(int)r.records];
+        for (Worker w : workers) {
+            System.arraycopy(w.latencies, 0, latencies, n, w.count);
+            n += w.count;
+        }
+        Arrays.sort(latencies);
+        r.seconds = elapsed / 1e9;
+        r.recordsPerSec = r.records / r.seconds;
+        r.mbPerSec = r.bytesIn / 1e6 / r.seconds;
+        r.p50Micros = percentile(latencies, 0.50) / 1e3;
+        r.p99Micros = percentile(latencies, 0.99) / 1e3;
+        r.maxMicros = percentile(latencies, 1.0) / 1e3;
+        r.gc = new LinkedHashMap<String, GcStats>();
+        for (Map.Entry<String, GcStats> e : gcAfter.entrySet()) {
+            GcStats before = gcBefore.get(e.getKey());
+            GcStats delta = new GcStats();
+            delta.collections = e.getValue().collections -
+                (before == null ? 0 : before.collections);
+            delta.millis = e.getValue().millis -
+                (before == null ? 0 : before.millis);
+            r.gc.put(e.getKey(), delta);
+        }
+        return r;
+    }
+
+    /** Nearest-rank percentile of sorted values */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static Map<String, GcStats> gcSnapshot() {
+        Map<String, GcStats> m = new LinkedHashMap<String, GcStats>();
+        for (GarbageCollectorMXBean gc :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            GcStats s = new GcStats();
+            s.collections = Math.max(gc.getCollectionCount(), 0);
+            s.millis = Math.max(gc.getCollectionTime(), 0);
+            m.put(gc.getName(), s);
+        }
+        return m;
+    }
+
+    /** Per-thread pipeline state */
+    private class Worker {
+        final Pipeline pipeline;
+        final File out;
+        final FeatureCollection fc = new FeatureCollection();
+        ChunkWriter writer;
+        long[] latencies = new long[1024];
+        int count = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+
+        Worker(Pipeline pipeline, File out) throws IOException {
+            this.pipeline = pipeline;
+            this.out = out;
+            if (pipeline == Pipeline.WRITE) {
+                // Encode inline, since fc is recycled after write()
+                writer = new ChunkWriter
+                    (mapper, FileChannel.open(out.toPath(),
+                                              StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING),
+                     ChunkWriter.DEFAULT_QUEUE_CAPACITY, 0,
+                     ChunkWriter.DEFAULT_BATCH_BYTES,
+                     ChunkWriter.SyncPolicy.NONE);
+            }
+        }
+
+        void process(File f) throws IOException {
+            bytesIn += f.length();
+            ChunkReader reader = new ChunkReader
+                (mapper, new FileInputStream(f));
+            try {
+                while (true) {
+                    long t0 = System.nanoTime();
+                    if (!reader.readInto(fc)) {
+                        break;
+                    }
+                    if (pipeline != Pipeline.READ) {
+                        transform(fc);
+                    }
+                    if (writer != null) {
+                        writer.write(fc);
+                    }
+                    record(System.nanoTime() - t0);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            }
+            latencies[count++] = nanos;
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.close();
+                bytesOut = out.length();
+                Files.delete(out.toPath());
+            }
+        }
+    }
+
+    private static void transform(FeatureCollection fc) {
+        for (Feature f : fc.getFeatures().values()) {
+            if (f instanceof StringCounter) {
+                StringCounter sc = (StringCounter)f;
+                int total = 0;
+                for (Integer n : sc.getStrings().values()) {
+                    total += n.intValue();
+                }
+                sc.add("__total", total);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        File dir;
+        boolean cleanup = false;
+        if (options.dir != null) {
+            dir = new File(options.dir);
+        } else {
+            dir = Files.createTempDirectory("fc-load").toFile();
+            cleanup = true;
+        }
+        Report report;
+        try {
+            report = new LoadHarness(options).run(dir);
+        } finally {
+            if (cleanup) {
+                dir.delete();
+            }
+        }
+
+        ObjectMapper json = new ObjectMapper();
+        json.enable(SerializationFeature.INDENT_OUTPUT);
+        if (options.out != null) {
+            json.writeValue(new File(options.out), report);
+        } else {
+            System.out.println(json.writeValueAsString(report));
+        }
+    }
+}
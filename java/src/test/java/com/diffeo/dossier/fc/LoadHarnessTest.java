@@ -0,0 +1,79 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LoadHarnessTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void corpusIsDeterministicAndSkewed() {
+        double[] scripts = { 1, 1, 1, 1 };
+        ZipfCorpus a = new ZipfCorpus(7, 1000, 1.2, scripts);
+        ZipfCorpus b = new ZipfCorpus(7, 1000, 1.2, scripts);
+        for (int i = 0; i < 10; i++) {
+            assertThat(a.next(), is(equalTo(b.next())));
+        }
+
+        int[] hist = new int[1000];
+        for (int i = 0; i < 100000; i++) {
+            hist[a.nextRank()]++;
+        }
+        assertThat(hist[0], is(greaterThan(hist[1])));
+        assertThat(hist[1], is(greaterThan(hist[10])));
+        assertThat(hist[10], is(greaterThan(hist[999])));
+    }
+
+    @Test
+    public void smallRun() throws IOException {
+        LoadHarness.Options o = LoadHarness.Options.parse(new String[] {
+                "--files=3 --records=50 --vocabulary=500",
+                "--threads=1,2 --scripts=1,1,1,1 --warmup=0",
+            });
+        LoadHarness.Report report = new LoadHarness(o).run(tmp.getRoot());
+        assertThat(report.corpusRecords, is(150L));
+        assertThat(report.results, hasSize(6));
+        for (LoadHarness.Result r : report.results) {
+            assertThat(r.records, is(150L));
+            assertThat(r.bytesIn, is(report.corpusBytes));
+            assertThat(r.p50Micros, is(lessThanOrEqualTo(r.p99Micros)));
+            assertThat(r.p99Micros, is(lessThanOrEqualTo(r.maxMicros)));
+            if (r.pipeline == LoadHarness.Pipeline.WRITE) {
+                // Every counter gained a __total term
+                assertThat(r.bytesOut, is(greaterThan(r.bytesIn)));
+            } else {
+                assertThat(r.bytesOut, is(0L));
+            }
+        }
+        // Corpus and output files are removed afterwards
+        assertThat(tmp.getRoot().list().length, is(0));
+
+        JsonNode json = new ObjectMapper().valueToTree(report);
+        assertThat(json.get("results").get(0).has("recordsPerSec"), is(true));
+    }
+
+    @Test
+    public void percentiles() {
+        long[] v = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        assertThat(LoadHarness.percentile(v, 0.5), is(5L));
+        assertThat(LoadHarness.percentile(v, 0.99), is(10L));
+        assertThat(LoadHarness.percentile(new long[0], 0.5), is(0L));
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class MemoryEstimatorTest {
+    @Test
+    public void strings() {
+        // 24-byte String plus a 16-byte array header and the chars
+        assertThat(MemoryEstimator.estimate(""), is(40L));
+        assertThat(MemoryEstimator.estimate("abcdefgh"), is(48L));
+        assertThat(MemoryEstimator.estimate("caf\u00e9"), is(48L));
+        assertThat(MemoryEstimator.estimate("\u6771\u4eac"), is(48L));
+        assertThat(MemoryEstimator.estimate("\u6771\u4eac\u6771\u4eac\u6771"),
+                   is(56L));
+        assertThat(MemoryEstimator.estimate((String)null), is(0L));
+    }
+
+    @Test
+    public void features() {
+        assertThat(MemoryEstimator.estimate(new StringFeature("abc")),
+                   is(24L + 40 + 8));
+        assertThat(MemoryEstimator.estimate(new StringFeature()), is(24L));
+
+        StringCounter sc = new StringCounter();
+        assertThat(MemoryEstimator.estimate(sc), is(24L + 48));
+        sc.add("a", 1);
+        // table of 16 references, one node, one small cached Integer
+        long one = 24 + 48 + 80 + 32 + 48;
+        assertThat(MemoryEstimator.estimate(sc), is(one));
+        sc.add("b", 1000);
+        assertThat(MemoryEstimator.estimate(sc), is(one + 32 + 48 + 16));
+
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("NAME", sc);
+        assertThat(MemoryEstimator.estimate(fc),
+                   is(24L + 48 + 80 + 32 + 48 + MemoryEstimator.estimate(sc)));
+    }
+
+    @Test
+    public void growsWithContent() {
+        ZipfCorpus corpus = new ZipfCorpus(1, 1000, 1.0);
+        FeatureCollection small = corpus.next();
+        corpus.setMeanTerms(500);
+        FeatureCollection large = corpus.next();
+        assertThat(MemoryEstimator.estimate(large),
+                   is(greaterThan(MemoryEstimator.estimate(small))));
+
+        GeoCoords geo = new GeoCoords();
+        long empty = MemoryEstimator.estimate(geo);
+        geo.add("Boston", -71.06, 42.36, Double.NaN, Double.NaN);
+        assertThat(MemoryEstimator.estimate(geo), is(greaterThan(empty)));
+    }
+}
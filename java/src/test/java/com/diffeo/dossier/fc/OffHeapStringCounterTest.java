@@ -0,0 +1,199 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class OffHeapStringCounterTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static StringCounter sample(int n) {
+        StringCounter sc = new StringCounter();
+        for (int i = 0; i < n; i++) {
+            sc.add("term " + i, i);
+        }
+        sc.add("Jos\u00e9", 3);
+        sc.add("\u6771\u4eac", 4);
+        sc.add("\ud83d\ude00", 5);
+        return sc;
+    }
+
+    @Test
+    public void addAndGet() {
+        OffHeapStringCounter oh = new OffHeapStringCounter();
+        oh.add("John Smith", 1);
+        oh.add("John Smith", 1);
+        oh.add("JS", 5);
+        assertThat(oh.size(), is(2));
+        assertThat(oh.get("John Smith"), is(2));
+        assertThat(oh.get("JS"), is(5));
+        assertThat(oh.get("nobody"), is(0));
+        oh.close();
+    }
+
+    @Test
+    public void growsPastInitialSize() {
+        StringCounter sc = sample(10000);
+        OffHeapStringCounter oh = new OffHeapStringCounter(4, 16);
+        for (java.util.Map.Entry<String, Integer> e :
+                 sc.getStrings().entrySet()) {
+            oh.add(e.getKey(), e.getValue());
+        }
+        assertThat(oh.size(), is(sc.getStrings().size()));
+        assertThat(oh.toStringCounter(), is(equalTo(sc)));
+        oh.close();
+    }
+
+    @Test
+    public void readOnlyAdd() {
+        OffHeapStringCounter oh = new OffHeapStringCounter();
+        oh.setReadOnly(true);
+        try {
+            oh.add("a", 1);
+            assertThat("UnsupportedOperationException", is("raised"));
+        } catch (UnsupportedOperationException e) {
+        }
+        oh.close();
+    }
+
+    @Test
+    public void closedCounterFails() {
+        OffHeapStringCounter oh = new OffHeapStringCounter();
+        oh.close();
+        oh.close();
+        try {
+            oh.size();
+            assertThat("IllegalStateException", is("raised"));
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void directCborRoundTrip() throws IOException {
+        StringCounter sc = sample(500);
+        OffHeapStringCounter oh = OffHeapStringCounter.fromStringCounter(sc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        oh.writeCbor(out);
+
+        // Readable as an ordinary StringCounter...
+        StringCounter back = mapper.readValue
+            (out.toByteArray(), StringCounter.class);
+        assertThat(back, is(equalTo(sc)));
+
+        // ...and directly back off-heap, from a direct buffer
+        byte[] bytes = out.toByteArray();
+        ByteBuffer src = ByteBuffer.allocateDirect(bytes.length);
+        src.put(bytes).flip();
+        OffHeapStringCounter oh2 = OffHeapStringCounter.readCbor(src);
+        assertThat(src.hasRemaining(), is(false));
+        assertThat(oh2, is(equalTo(oh)));
+        assertThat(oh2.hashCode(), is(oh.hashCode()));
+        oh.close();
+        oh2.close();
+    }
+
+    @Test
+    public void readIndefiniteCbor() throws IOException {
+        byte[] ref = {
+            (byte)0xbf, // map of ??? items
+            (byte)0x7f, // text string of ??? chunks
+            (byte)0x61, 0x61, // chunk "a"
+            (byte)0x61, 0x62, // chunk "b"
+            (byte)0xff, // end string
+            (byte)0x20, // integer -1
+            (byte)0x61, 0x63, // string "c"
+            (byte)0x18, 0x64, // integer 100
+            (byte)0xff, // end map
+        };
+        OffHeapStringCounter oh =
+            OffHeapStringCounter.readCbor(ByteBuffer.wrap(ref));
+        assertThat(oh.size(), is(2));
+        assertThat(oh.get("ab"), is(-1));
+        assertThat(oh.get("c"), is(100));
+        oh.close();
+    }
+
+    @Test
+    public void rejectsOversizedHeaders() {
+        byte[][] bad = {
+            { (byte)0xd9, (byte)0xd9, (byte)0xf8, // tag 55800
+              (byte)0xba, 0x10, 0x00, 0x00, 0x00, // map of 2^28 items
+              (byte)0x61, 0x61, 0x01 },
+            { (byte)0xbb, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff,
+              (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, // 2^63-1 items
+              (byte)0x61, 0x61, 0x01 },
+            { (byte)0xa1, // map of 1 item
+              (byte)0x7a, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff, // long key
+              0x61, 0x01 },
+        };
+        for (byte[] b : bad) {
+            try {
+                OffHeapStringCounter.readCbor(ByteBuffer.wrap(b));
+                assertThat("oversized header", is("rejected"));
+            } catch (IOException e) {
+                // expected case
+            }
+        }
+    }
+
+    @Test
+    public void headerIsOnlyAHint() throws IOException {
+        StringCounter sc = sample(5000);
+        OffHeapStringCounter oh = OffHeapStringCounter.fromStringCounter(sc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        oh.writeCbor(out);
+        OffHeapStringCounter small = new OffHeapStringCounter(4, 16);
+        small.readCborInto(ByteBuffer.wrap(out.toByteArray()));
+        assertThat(small, is(equalTo(oh)));
+
+        // Refilling reuses the memory and drops the old terms
+        OffHeapStringCounter one = new OffHeapStringCounter();
+        one.add("x", 1);
+        out.reset();
+        one.writeCbor(out);
+        long bytes = small.getOffHeapBytes();
+        small.readCborInto(ByteBuffer.wrap(out.toByteArray()));
+        assertThat(small, is(equalTo(one)));
+        assertThat(small.getOffHeapBytes(), is(bytes));
+        oh.close();
+        one.close();
+        small.close();
+    }
+
+    @Test
+    public void jacksonInFeatureCollection() throws IOException {
+        StringCounter sc = sample(100);
+        OffHeapStringCounter oh = OffHeapStringCounter.fromStringCounter(sc);
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("big", oh);
+        fc.getFeatures().put("id", new StringFeature("x"));
+        byte[] cbor = mapper.writeValueAsBytes(fc);
+
+        FeatureCollection fc2 = mapper.readValue(cbor, FeatureCollection.class);
+        assertThat((StringCounter)fc2.getFeatures().get("big"),
+                   is(equalTo(sc)));
+        assertThat(((StringFeature)fc2.getFeatures().get("id")).getValue(),
+                   is("x"));
+
+        OffHeapStringCounter oh2 = mapper.readValue
+            (mapper.writeValueAsBytes(oh), OffHeapStringCounter.class);
+        assertThat(oh2, is(equalTo(oh)));
+        oh.close();
+        oh2.close();
+    }
+}
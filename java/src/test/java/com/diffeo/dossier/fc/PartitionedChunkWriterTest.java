@@ -0,0 +1,306 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartitionedChunkWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(int i) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        sc.add("term " + (i % 7), i);
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("id", new StringFeature("doc " + (i % 100)));
+        return fc;
+    }
+
+    private List<FeatureCollection> readAll(Path path) throws IOException {
+        List<FeatureCollection> out = new ArrayList<FeatureCollection>();
+        ChunkReader reader = new ChunkReader
+            (mapper, Files.newInputStream(path));
+        FeatureCollection fc = reader.read();
+        while (fc != null) {
+            out.add(fc);
+            fc = reader.read();
+        }
+        reader.close();
+        return out;
+    }
+
+    @Test
+    public void routesByKey() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir, "corpus", 4,
+             PartitionedChunkWriter.byStringFeature("id"));
+        for (int i = 0; i < 1000; i++) {
+            int p = writer.write(make(i));
+            assertThat(p, is(PartitionedChunkWriter.partitionOf
+                             ("doc " + (i % 100), 4)));
+        }
+        assertThat(Files.exists(writer.getManifestPath()), is(false));
+        writer.close();
+
+        List<PartitionedChunkWriter.Partition> parts =
+            PartitionedChunkWriter.readManifest(dir.resolve("corpus.manifest"));
+        assertThat(parts, hasSize(4));
+        long total = 0;
+        for (int p = 0; p < 4; p++) {
+            PartitionedChunkWriter.Partition part = parts.get(p);
+            assertThat(part.getPath(), is(dir.resolve
+                                          (String.format("corpus-%05d.fc", p))));
+            assertThat(part.getPath(), is(writer.getPath(p)));
+            assertThat(part.getByteCount(), is(Files.size(part.getPath())));
+            assertThat(part.getRecordCount(), is(writer.getRecordCount(p)));
+            assertThat(part.getRecordCount(), is(greaterThan(0L)));
+
+            // Records keep their relative order within a partition
+            int last = -1;
+            for (FeatureCollection fc : readAll(part.getPath())) {
+                String id = ((StringFeature)fc.getFeatures().get("id"))
+                    .getValue();
+                assertThat(PartitionedChunkWriter.partitionOf(id, 4), is(p));
+                int count = ((StringCounter)fc.getFeatures().get("NAME"))
+                    .getStrings().values().iterator().next();
+                assertThat(count, is(greaterThan(last)));
+                last = count;
+                total++;
+            }
+            assertThat(total, is(greaterThan(0L)));
+        }
+        assertThat(total, is(1000L));
+
+        String[] names = dir.toFile().list();
+        assertThat(names, arrayWithSize(5));
+        for (String name : names) {
+            assertThat(name, not(endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    public void partitionsArePinned() {
+        // Existing corpora depend on these; computed independently
+        // from the documented FNV-1a and fmix64 definition
+        assertThat(PartitionedChunkWriter.partitionHash(""),
+                   is(0xefd01f60ba992926L));
+        assertThat(PartitionedChunkWriter.partitionHash("doc 42"),
+                   is(0xd839c574f0e08e84L));
+        assertThat(PartitionedChunkWriter.partitionOf("doc 42", 16), is(2));
+        assertThat(PartitionedChunkWriter.partitionOf("doc 42", 1000),
+                   is(82));
+        assertThat(PartitionedChunkWriter.partitionOf("caf\u00e9", 1000),
+                   is(427));
+        assertThat(PartitionedChunkWriter.partitionOf("\ud83d\ude00", 1000),
+                   is(19));
+    }
+
+    @Test
+    public void spreadsUnkeyed() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir, "corpus", 3,
+             PartitionedChunkWriter.byStringFeature("missing"));
+        for (int i = 0; i < 30; i++) {
+            assertThat(writer.write(make(i)), is(i % 3));
+        }
+        writer.close();
+        for (PartitionedChunkWriter.Partition part :
+                 PartitionedChunkWriter.readManifest(writer.getManifestPath())) {
+            assertThat(part.getRecordCount(), is(10L));
+            assertThat(readAll(part.getPath()), hasSize(10));
+        }
+    }
+
+    @Test
+    public void forwardsOptions() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir, "refs", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        writer.setStringReferences(true);
+        writer.setBloomIndex(16, 0.01);
+        for (int i = 0; i < 200; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+
+        int p = PartitionedChunkWriter.partitionOf("doc 42", 2);
+        Path chunk = writer.getPath(p);
+        byte[] head = Files.readAllBytes(chunk);
+        assertThat(CborDecoder.isStringRefNamespace(head, 0, head.length),
+                   is(true));
+        ChunkScanner scanner = new ChunkScanner
+            (mapper, chunk,
+             ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(chunk)));
+        final List<FeatureCollection> found = new ArrayList<FeatureCollection>();
+        scanner.scan("id", "doc 42", new ChunkScanner.Visitor() {
+                public void visit(FeatureCollection fc) {
+                    found.add(fc);
+                }
+            });
+        scanner.close();
+        assertThat(found, hasSize(2));
+    }
+
+    @Test
+    public void failureLeavesNothing() throws IOException {
+        File dir = tmp.newFolder("out");
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir.toPath(), "bad", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        // String references reject feature types they do not know
+        writer.setStringReferences(true);
+        writer.setBloomIndex(16, 0.01);
+        for (int i = 0; i < 10; i++) {
+            writer.write(make(i));
+        }
+        FeatureCollection bad = make(10);
+        bad.getFeatures().put("opaque", new Feature() {
+                public boolean isReadOnly() {
+                    return false;
+                }
+
+                public void setReadOnly(boolean ro) {
+                }
+            });
+        try {
+            writer.write(bad);
+            writer.flush();
+            assertThat("unencodable feature", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+        try {
+            writer.close();
+            assertThat("close after failure", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+        assertThat(dir.list(), is(emptyArray()));
+    }
+
+    @Test
+    public void failureKeepsEarlierSet() throws IOException {
+        File dir = tmp.newFolder("out");
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir.toPath(), "corpus", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        writer.setBloomIndex(16, 0.01);
+        for (int i = 0; i < 100; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+        String[] published = dir.list();
+        assertThat(published, arrayWithSize(5));
+
+        writer = new PartitionedChunkWriter
+            (mapper, dir.toPath(), "corpus", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        writer.setStringReferences(true);
+        writer.setBloomIndex(16, 0.01);
+        for (int i = 0; i < 10; i++) {
+            writer.write(make(i));
+        }
+        FeatureCollection bad = make(10);
+        bad.getFeatures().put("opaque", new Feature() {
+                public boolean isReadOnly() {
+                    return false;
+                }
+
+                public void setReadOnly(boolean ro) {
+                }
+            });
+        try {
+            writer.write(bad);
+            writer.flush();
+            assertThat("unencodable feature", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+        try {
+            writer.close();
+            assertThat("close after failure", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+        assertThat(dir.list(), arrayContainingInAnyOrder(published));
+        long total = 0;
+        for (PartitionedChunkWriter.Partition part :
+                 PartitionedChunkWriter.readManifest(writer.getManifestPath())) {
+            assertThat(readAll(part.getPath()),
+                       hasSize((int)part.getRecordCount()));
+            ChunkBloomIndex.read(ChunkBloomIndex.sidecarFor(part.getPath()));
+            total += part.getRecordCount();
+        }
+        assertThat(total, is(100L));
+    }
+
+    @Test
+    public void replacesEarlierSet() throws IOException {
+        File dir = tmp.newFolder("out");
+        PartitionedChunkWriter writer = new PartitionedChunkWriter
+            (mapper, dir.toPath(), "corpus", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        writer.setBloomIndex(16, 0.01);
+        for (int i = 0; i < 100; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+
+        // Without an index of its own, the new set must not keep the
+        // old one's sidecars
+        writer = new PartitionedChunkWriter
+            (mapper, dir.toPath(), "corpus", 2,
+             PartitionedChunkWriter.byStringFeature("id"));
+        for (int i = 0; i < 20; i++) {
+            writer.write(make(i));
+        }
+        writer.close();
+        assertThat(dir.list(), arrayWithSize(3));
+        long total = 0;
+        for (PartitionedChunkWriter.Partition part :
+                 PartitionedChunkWriter.readManifest(writer.getManifestPath())) {
+            assertThat(Files.exists(ChunkBloomIndex.sidecarFor
+                                    (part.getPath())), is(false));
+            total += part.getRecordCount();
+        }
+        assertThat(total, is(20L));
+    }
+
+    @Test
+    public void rejectsBadManifest() throws IOException {
+        File f = tmp.newFile("corpus.manifest");
+        Files.write(f.toPath(), "corpus-00000.fc\t1\t2\n".getBytes("UTF-8"));
+        try {
+            PartitionedChunkWriter.readManifest(f.toPath());
+            assertThat("missing header", is("rejected"));
+        } catch (IOException e) {
+            // expected case
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class PrefixCounterTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static StringCounter urls(int n) {
+        StringCounter sc = new StringCounter();
+        Random random = new Random(17);
+        String[] sections = { "news", "sports", "world", "opinion", "arts" };
+        for (int i = 0; i < n; i++) {
+            String url = "http://www.example" + (i % 7) + ".com/" +
+                sections[random.nextInt(sections.length)] + "/2014/" +
+                (1 + random.nextInt(12)) + "/" + i + "/story.html";
+            sc.add(url, 1 + random.nextInt(100));
+        }
+        return sc;
+    }
+
+    private static List<String> collect(PrefixCounter pc, String prefix,
+                                        final long[] sum)
+        throws IOException {
+        final List<String> terms = new ArrayList<String>();
+        pc.forEachWithPrefix(prefix, new PrefixCounter.Visitor() {
+                public void visit(String term, int count) {
+                    terms.add(term);
+                    sum[0] += count;
+                }
+            });
+        return terms;
+    }
+
+    @Test
+    public void basics() throws IOException {
+        StringCounter sc = new StringCounter();
+        sc.add("", 1);
+        sc.add("a", 2);
+        sc.add("ab", 3);
+        sc.add("abc", 4);
+        sc.add("abd", 5);
+        sc.add("b", 6);
+        sc.add("\u6771\u4eac", 7);
+        PrefixCounter pc = PrefixCounter.fromStringCounter(sc);
+
+        assertThat(pc.size(), is(7));
+        assertThat(pc.get("ab"), is(3));
+        assertThat(pc.get("abc"), is(4));
+        assertThat(pc.get("abe"), is(0));
+        assertThat(pc.contains(""), is(true));
+        assertThat(pc.contains("x"), is(false));
+        assertThat(pc.prefixSum(""), is(28L));
+        assertThat(pc.prefixSum("a"), is(14L));
+        assertThat(pc.prefixSum("ab"), is(12L));
+        assertThat(pc.prefixSum("abc"), is(4L));
+        assertThat(pc.prefixSum("abcd"), is(0L));
+        assertThat(pc.prefixSum("\u6771"), is(7L));
+
+        long[] sum = new long[1];
+        assertThat(collect(pc, "a", sum), contains("a", "ab", "abc", "abd"));
+        assertThat(sum[0], is(14L));
+        assertThat(collect(pc, "", sum),
+                   contains("", "a", "ab", "abc", "abd", "b", "\u6771\u4eac"));
+        assertThat(collect(pc, "z", sum), is(empty()));
+        assertThat(pc.toStringCounter(), is(equalTo(sc)));
+    }
+
+    @Test
+    public void prefixesMatchScan() throws IOException {
+        StringCounter sc = urls(5000);
+        PrefixCounter pc = PrefixCounter.fromStringCounter(sc);
+        String[] prefixes = {
+            "http://www.example3.com/", "http://www.example3.com/news/2014/1",
+            "http://www.example", "http://www.example0.com/arts/2014/12/",
+            "https:", "http://www.example1.com/sports/2014/5/40",
+        };
+        for (String prefix : prefixes) {
+            long expected = 0;
+            int matches = 0;
+            for (Map.Entry<String, Integer> e : sc.getStrings().entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    expected += e.getValue();
+                    matches++;
+                }
+            }
+            long[] sum = new long[1];
+            assertThat(prefix, pc.prefixSum(prefix), is(expected));
+            assertThat(prefix, collect(pc, prefix, sum), hasSize(matches));
+            assertThat(prefix, sum[0], is(expected));
+        }
+        for (Map.Entry<String, Integer> e : sc.getStrings().entrySet()) {
+            assertThat(pc.get(e.getKey()), is(e.getValue()));
+        }
+    }
+
+    @Test
+    public void serializesAsStringCounter() throws IOException {
+        StringCounter sc = urls(100);
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("url", PrefixCounter.fromStringCounter(sc));
+        byte[] bytes = mapper.writeValueAsBytes(fc);
+        FeatureCollection back = mapper.readValue(bytes, FeatureCollection.class);
+        assertThat(back.getFeatures().get("url"),
+                   is(equalTo((Feature)sc)));
+
+        FeatureCollection plain = new FeatureCollection();
+        plain.getFeatures().put("url", sc);
+        assertThat(new CanonicalCbor(mapper).encode(fc),
+                   is(equalTo(new CanonicalCbor(mapper).encode(plain))));
+    }
+
+    @Test
+    public void smallerThanHashMap() {
+        StringCounter sc = urls(20000);
+        PrefixCounter pc = PrefixCounter.fromStringCounter(sc);
+        // A conservative lower bound on the HashMap's footprint with
+        // compact strings: per entry, a 32-byte node, a 24-byte
+        // String, a 16-byte array header plus one byte per char, a
+        // 16-byte Integer, and a 4-byte table slot
+        long hashMapBytes = 0;
+        for (String term : sc.getStrings().keySet()) {
+            hashMapBytes += 32 + 24 + 16 + term.length() + 16 + 4;
+        }
+        assertThat(pc.getRetainedBytes(), is(lessThan(hashMapBytes / 2)));
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class SparseVectorTest {
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static SparseVector example() {
+        return new SparseVector(new int[] { 2, 6, 9 },
+                                new double[] { 1.0, 2.0, 0.25 });
+    }
+
+    @Test
+    public void lookup() {
+        SparseVector v = example();
+        assertThat(v.size(), is(3));
+        assertThat(v.getIndex(1), is(6));
+        assertThat(v.getValue(2), is(0.25));
+        assertThat(v.get(6), is(2.0));
+        assertThat(v.get(7), is(0.0));
+        assertThat(v.get(100), is(0.0));
+    }
+
+    @Test
+    public void dotAndNorm() {
+        SparseVector v = example();
+        SparseVector w = new SparseVector(new int[] { 0, 6, 9 },
+                                          new double[] { 5.0, 3.0, 4.0 });
+        assertThat(v.dot(w), is(closeTo(7.0, 1e-12)));
+        assertThat(w.norm(), is(closeTo(Math.sqrt(50.0), 1e-12)));
+        assertThat(new SparseVector().norm(), is(0.0));
+    }
+
+    @Test
+    public void rejectsBadArrays() {
+        try {
+            new SparseVector(new int[] { 3, 1 }, new double[] { 1.0, 1.0 });
+            assertThat("IllegalArgumentException", is("thrown"));
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new SparseVector(new int[] { 1 }, new double[] { 1.0, 1.0 });
+            assertThat("IllegalArgumentException", is("thrown"));
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void alwaysReadOnly() {
+        SparseVector v = example();
+        v.setReadOnly(false);
+        assertThat(v.isReadOnly(), is(true));
+    }
+
+    @Test
+    public void documentedEncoding() throws IOException {
+        // [{"v": "fc01"}, {"feature": 55801([2, 1, 6, 2])}]
+        byte[] cbor = new CanonicalCbor(mapper).encode(oneFeature
+            (new SparseVector(new int[] { 2, 6 }, new double[] { 1, 2 })));
+        byte[] expected = {
+            (byte)0x82, (byte)0xa1, 0x61, 'v', 0x64, 'f', 'c', '0', '1',
+            (byte)0xa1, 0x67, 'f', 'e', 'a', 't', 'u', 'r', 'e',
+            (byte)0xd9, (byte)0xd9, (byte)0xf9,
+            (byte)0x84, 0x02, 0x01, 0x06, 0x02,
+        };
+        assertThat(cbor, is(expected));
+    }
+
+    @Test
+    public void roundTripCbor() throws IOException {
+        FeatureCollection fc = oneFeature(example());
+        byte[] cbor = mapper.writeValueAsBytes(fc);
+        FeatureCollection fc2 = mapper.readValue(cbor, FeatureCollection.class);
+        assertThat(fc2.getFeatures().get("feature"),
+                   is(instanceOf(SparseVector.class)));
+        assertThat(fc2, is(fc));
+
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(cbor));
+        assertThat(reader.read(), is(fc));
+        reader.close();
+
+        byte[] canonical = new CanonicalCbor(mapper).encode(fc);
+        assertThat(mapper.readValue(canonical, FeatureCollection.class),
+                   is(fc));
+    }
+
+    @Test
+    public void readsUnsortedPairs() throws IOException {
+        byte[] cbor = {
+            (byte)0x82, (byte)0xa1, 0x61, 'v', 0x64, 'f', 'c', '0', '1',
+            (byte)0xa1, 0x61, 'f',
+            (byte)0xd9, (byte)0xd9, (byte)0xf9,
+            (byte)0x84, 0x06, 0x02, 0x02, 0x01,
+        };
+        FeatureCollection fc = mapper.readValue(cbor, FeatureCollection.class);
+        SparseVector v = (SparseVector)fc.getFeatures().get("f");
+        assertThat(v.getIndices(), is(new int[] { 2, 6 }));
+        assertThat(v.getValues(), is(new double[] { 1.0, 2.0 }));
+    }
+
+    @Test
+    public void rejectsOddLength() throws IOException {
+        byte[] cbor = {
+            (byte)0x82, (byte)0xa1, 0x61, 'v', 0x64, 'f', 'c', '0', '1',
+            (byte)0xa1, 0x61, 'f',
+            (byte)0xd9, (byte)0xd9, (byte)0xf9,
+            (byte)0x83, 0x06, 0x02, 0x02,
+        };
+        try {
+            mapper.readValue(cbor, FeatureCollection.class);
+            assertThat("JsonMappingException", is("thrown"));
+        } catch (JsonMappingException e) {
+            // expected
+        }
+    }
+
+    private static FeatureCollection oneFeature(Feature f) {
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("feature", f);
+        return fc;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StringCounterAggregatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static StringCounter counter(int i) {
+        StringCounter sc = new StringCounter();
+        for (int j = 0; j < 20; j++) {
+            sc.add("term " + ((i * 7 + j) % 101), j + 1);
+        }
+        return sc;
+    }
+
+    private static StringCounter expected(int n) {
+        StringCounter total = new StringCounter();
+        for (int i = 0; i < n; i++) {
+            for (java.util.Map.Entry<String, Integer> e :
+                     counter(i).getStrings().entrySet()) {
+                total.add(e.getKey(), e.getValue());
+            }
+        }
+        return total;
+    }
+
+    @Test
+    public void inMemoryOnly() throws IOException {
+        StringCounterAggregator agg =
+            new StringCounterAggregator(tmp.getRoot(), 1000);
+        for (int i = 0; i < 50; i++) {
+            agg.add(counter(i));
+        }
+        assertThat(agg.toStringCounter(), is(equalTo(expected(50))));
+        agg.close();
+    }
+
+    @Test
+    public void spillsAndMerges() throws IOException {
+        // A tiny table and fan-in force many runs and multi-pass merges
+        StringCounterAggregator agg =
+            new StringCounterAggregator(tmp.getRoot(), 7, 3);
+        for (int i = 0; i < 50; i++) {
+            agg.add(counter(i));
+        }
+        final List<String> order = new ArrayList<String>();
+        final StringCounter sc = new StringCounter();
+        agg.merge(new StringCounterAggregator.Visitor() {
+                public void visit(String term, long count) {
+                    order.add(term);
+                    sc.add(term, (int)count);
+                }
+            });
+        assertThat(sc, is(equalTo(expected(50))));
+        for (int i = 1; i < order.size(); i++) {
+            assertThat(order.get(i - 1), is(lessThan(order.get(i))));
+        }
+        agg.close();
+    }
+
+    @Test
+    public void chunkInChunkOut() throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            FeatureCollection fc = new FeatureCollection();
+            fc.getFeatures().put("NAME", counter(i));
+            chunk.write(mapper.writeValueAsBytes(fc));
+        }
+        StringCounterAggregator agg =
+            new StringCounterAggregator(tmp.getRoot(), 10);
+        ChunkReader reader = new ChunkReader
+            (mapper, new ByteArrayInputStream(chunk.toByteArray()));
+        assertThat(agg.addChunk(reader, "NAME"), is(30L));
+        reader.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        agg.writeChunk(mapper, out, "NAME");
+        agg.close();
+
+        FeatureCollection fc = mapper.readValue
+            (out.toByteArray(), FeatureCollection.class);
+        assertThat((StringCounter)fc.getFeatures().get("NAME"),
+                   is(equalTo(expected(30))));
+    }
+}
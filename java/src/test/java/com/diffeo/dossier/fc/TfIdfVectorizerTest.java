@@ -0,0 +1,135 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TfIdfVectorizerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    private static FeatureCollection make(String... terms) {
+        FeatureCollection fc = new FeatureCollection();
+        StringCounter sc = new StringCounter();
+        for (String t : terms) {
+            sc.add(t, 1);
+        }
+        fc.getFeatures().put("NAME", sc);
+        fc.getFeatures().put("type", new StringFeature("PER"));
+        return fc;
+    }
+
+    private static DocumentFrequencies corpus() {
+        DocumentFrequencies df = new DocumentFrequencies();
+        df.add(make("a", "b"));
+        df.add(make("a", "c"));
+        df.add(make("a"));
+        return df;
+    }
+
+    @Test
+    public void vocabulary() {
+        TfIdfVectorizer tfidf = new TfIdfVectorizer(corpus());
+        assertThat(tfidf.getVocabularySize("NAME"), is(3));
+        assertThat(tfidf.indexOf("NAME", "a"), is(0));
+        assertThat(tfidf.indexOf("NAME", "c"), is(2));
+        assertThat(tfidf.indexOf("NAME", "d"), is(-1));
+        assertThat(tfidf.getTerm("NAME", 1), is("b"));
+        assertThat(tfidf.getVocabularySize("OTHER"), is(0));
+        // df(a) = 3 of N = 3; df(b) = 1
+        assertThat(tfidf.getIdf("NAME", "a"), is(closeTo(1.0, 1e-12)));
+        assertThat(tfidf.getIdf("NAME", "b"),
+                   is(closeTo(Math.log(2.0) + 1, 1e-12)));
+    }
+
+    @Test
+    public void minimumDocumentFrequency() {
+        TfIdfVectorizer tfidf = new TfIdfVectorizer(corpus(), 2, true);
+        assertThat(tfidf.getVocabularySize("NAME"), is(1));
+        assertThat(tfidf.indexOf("NAME", "b"), is(-1));
+    }
+
+    @Test
+    public void weights() {
+        TfIdfVectorizer tfidf = new TfIdfVectorizer(corpus(), 1, false);
+        FeatureCollection fc = tfidf.vectorize(make("b", "a", "a", "zzz"));
+        assertThat(fc.getFeatures().get("type"),
+                   is((Feature)new StringFeature("PER")));
+        SparseVector v = (SparseVector)fc.getFeatures().get("NAME");
+        assertThat(v.getIndices(), is(new int[] { 0, 1 }));
+        assertThat(v.getValue(0), is(closeTo(2.0, 1e-12)));
+        assertThat(v.getValue(1), is(closeTo(Math.log(2.0) + 1, 1e-12)));
+    }
+
+    @Test
+    public void normalized() {
+        TfIdfVectorizer tfidf = new TfIdfVectorizer(corpus());
+        SparseVector v = (SparseVector)
+            tfidf.vectorize(make("b", "a", "c")).getFeatures().get("NAME");
+        assertThat(v.size(), is(3));
+        assertThat(v.norm(), is(closeTo(1.0, 1e-12)));
+        assertThat(v.get(1), is(closeTo(v.get(2), 1e-12)));
+        assertThat(v.get(0), is(lessThan(v.get(1))));
+
+        SparseVector empty = (SparseVector)
+            tfidf.vectorize(make("zzz")).getFeatures().get("NAME");
+        assertThat(empty.size(), is(0));
+    }
+
+    @Test
+    public void transformChunks() throws IOException {
+        ZipfCorpus corpus = new ZipfCorpus(5, 300, 1.0);
+        List<File> inputs = new ArrayList<File>();
+        List<File> outputs = new ArrayList<File>();
+        List<FeatureCollection> all = new ArrayList<FeatureCollection>();
+        for (int c = 0; c < 5; c++) {
+            File f = tmp.newFile("chunk" + c + ".fc");
+            ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+            for (int i = 0; i < 30; i++) {
+                FeatureCollection fc = corpus.next();
+                all.add(fc);
+                writer.write(fc);
+            }
+            writer.close();
+            inputs.add(f);
+            outputs.add(new File(tmp.getRoot(), "tfidf" + c + ".fc"));
+        }
+
+        DocumentFrequencies df = DocumentFrequencies.compute(mapper, inputs, 4);
+        TfIdfVectorizer tfidf = new TfIdfVectorizer(df);
+        assertThat(tfidf.transform(mapper, inputs, outputs, 3), is(150L));
+
+        int n = 0;
+        for (File out : outputs) {
+            ChunkReader reader =
+                new ChunkReader(mapper, new FileInputStream(out));
+            FeatureCollection fc;
+            while ((fc = reader.read()) != null) {
+                assertThat(fc, is(tfidf.vectorize(all.get(n++))));
+            }
+            reader.close();
+        }
+        assertThat(n, is(150));
+    }
+}
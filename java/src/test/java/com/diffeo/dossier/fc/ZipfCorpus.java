@@ -0,0 +1,240 @@
+/**
+ * dossier.fc Feature Collections
+ *
+ * This software is released under an MIT/X11 open source license.
+ * Copyright 2014 Diffeo, Inc.
+ *
+ */
+
+package com.diffeo.dossier.fc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Generator of synthetic feature collections.
+ *
+ * Every generated collection has an <tt>id</tt> {@link StringFeature}
+ * and a configurable number of {@link StringCounter} features named
+ * <tt>f0</tt>, <tt>f1</tt>, and so on.  Each counter is filled by
+ * drawing terms from a shared vocabulary with a Zipfian distribution:
+ * the term of rank <i>k</i> (counting from 1) is drawn with
+ * probability proportional to 1/<i>k</i><sup><i>s</i></sup>.  The
+ * number of draws per feature is uniform between 1 and twice the
+ * configured mean, so record sizes vary the way real documents do.
+ *
+ * Vocabulary terms are built from one of four scripts, chosen per
+ * term according to configurable weights: ASCII, accented Latin, CJK
+ * ideographs, and characters outside the Basic Multilingual Plane
+ * (which need surrogate pairs in Java and four bytes in UTF-8).
+ *
+ * Generation is deterministic for a given seed and configuration.
+ * Instances are not thread-safe.
+ */
+public class ZipfCorpus {
+    private final Random random;
+    private final String[] vocabulary;
+    /** Cumulative probability of drawing a rank at or below each index */
+    private final double[] cdf;
+    private int features = 4;
+    private int meanTerms = 50;
+    private long nextId = 0;
+
+    /**
+     * Create a generator with an all-ASCII vocabulary.
+     *
+     * @param seed        Random seed
+     * @param vocabulary  Number of distinct terms
+     * @param exponent    Zipf exponent <i>s</i>; 0 is uniform, and
+     *                    natural-language text is close to 1
+     */
+    public ZipfCorpus(long seed, int vocabulary, double exponent) {
+        this(seed, vocabulary, exponent, new double[] { 1, 0, 0, 0 });
+    }
+
+    /**
+     * Create a generator.
+     *
+     * @param seed        Random seed
+     * @param vocabulary  Number of distinct terms
+     * @param exponent    Zipf exponent <i>s</i>
+     * @param scripts     Relative weights of ASCII, accented Latin,
+     *                    CJK, and supplementary-plane terms
+     */
+    public ZipfCorpus(long seed, int vocabulary, double exponent,
+                      double[] scripts) {
+        if (vocabulary < 1) {
+            throw new IllegalArgumentException("vocabulary < 1");
+        }
+        if (scripts.length != 4) {
+            throw new IllegalArgumentException("need 4 script weights");
+        }
+        this.random = new Random(seed);
+        this.vocabulary = new String[vocabulary];
+        this.cdf = new double[vocabulary];
+        double total = 0;
+        for (int k = 0; k < vocabulary; k++) {
+            total += 1.0 / Math.pow(k + 1, exponent);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < vocabulary; k++) {
+            cdf[k] /= total;
+        }
+        double[] scriptCdf = new double[4];
+        double sum = 0;
+        for (int i = 0; i < 4; i++) {
+            sum += scripts[i];
+            scriptCdf[i] = sum;
+        }
+        if (!(sum > 0)) {
+            throw new IllegalArgumentException("script weights sum to 0");
+        }
+        for (int k = 0; k < vocabulary; k++) {
+            double r = random.nextDouble() * sum;
+            int script = 0;
+            while (script < 3 && r >= scriptCdf[script]) {
+                script++;
+            }
+            this.vocabulary[k] = term(k, script);
+        }
+    }
+
+    /** Alphabets for each script; supplementary code points are ints */
+    private static final int[][] ALPHABETS = {
+        range('a', 'z'),
+        range(0xe0, 0xff),
+        range(0x4e00, 0x4e00 + 255),
+        range(0x1f600, 0x1f64f),
+    };
+
+    private static int[] range(int from, int to) {
+        int[] r = new int[to - from + 1];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = from + i;
+        }
+        return r;
+    }
+
+    /** Build the distinct term for a rank, spelled in a script */
+    private String term(int rank, int script) {
+        int[] alphabet = ALPHABETS[script];
+        StringBuilder sb = new StringBuilder();
+        // A random prefix gives realistic lengths, and the rank
+        // spelled in the alphabet afterwards keeps terms distinct
+        int len = 2 + random.nextInt(8);
+        for (int i = 0; i < len; i++) {
+            sb.appendCodePoint(alphabet[random.nextInt(alphabet.length)]);
+        }
+        sb.append(' ');
+        int n = rank;
+        do {
+            sb.appendCodePoint(alphabet[n % alphabet.length]);
+            n /= alphabet.length;
+        } while (n > 0);
+        return sb.toString();
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * Set the number of counter features per collection.
+     *
+     * @param n  Number of {@link StringCounter} features
+     */
+    public void setFeatures(int n) {
+        features = n;
+    }
+
+    public int getMeanTerms() {
+        return meanTerms;
+    }
+
+    /**
+     * Set the mean number of term draws per feature.
+     *
+     * @param n  Mean number of draws, at least 1
+     */
+    public void setMeanTerms(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("meanTerms < 1");
+        }
+        meanTerms = n;
+    }
+
+    /**
+     * Get a vocabulary term.
+     *
+     * @param rank  Zero-based rank, most frequent first
+     * @return      The term
+     */
+    public String getTerm(int rank) {
+        return vocabulary[rank];
+    }
+
+    /**
+     * Draw one term rank.
+     *
+     * @return  Zero-based rank
+     */
+    public int nextRank() {
+        int k = Arrays.binarySearch(cdf, random.nextDouble());
+        // binarySearch returns (-(insertion point) - 1) on a miss
+        return (k >= 0) ? k : Math.min(-k - 1, cdf.length - 1);
+    }
+
+    /**
+     * Generate the next collection.
+     *
+     * @return  A new feature collection
+     */
+    public FeatureCollection next() {
+        FeatureCollection fc = new FeatureCollection();
+        fc.getFeatures().put("id", new StringFeature(Long.toString(nextId++)));
+        for (int f = 0; f < features; f++) {
+            StringCounter sc = new StringCounter();
+            int draws = 1 + random.nextInt(2 * meanTerms);
+            for (int i = 0; i < draws; i++) {
+                sc.add(vocabulary[nextRank()], 1);
+            }
+            fc.getFeatures().put("f" + f, sc);
+        }
+        return fc;
+    }
+
+    /**
+     * Write a corpus of chunk files.
+     *
+     * @param mapper   CBOR object mapper
+     * @param dir      Directory to create the files in
+     * @param files    Number of chunk files
+     * @param records  Number of collections in each file
+     * @return         The files written
+     * @throws IOException  if a file cannot be written
+     */
+    public List<File> writeChunks(ObjectMapper mapper, File dir,
+                                  int files, int records)
+        throws IOException {
+        List<File> result = new ArrayList<File>();
+        for (int i = 0; i < files; i++) {
+            File f = new File(dir, String.format("corpus-%05d.fc", i));
+            ChunkWriter writer = new ChunkWriter(mapper, f.toPath());
+            try {
+                for (int j = 0; j < records; j++) {
+                    writer.write(next());
+                }
+            } finally {
+                writer.close();
+            }
+            result.add(f);
+        }
+        return result;
+    }
+}